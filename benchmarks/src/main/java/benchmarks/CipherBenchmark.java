@@ -0,0 +1,109 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cipher.CryptrChunkedCipher;
+import cipher.CryptrCipher;
+import cipher.CryptrSession;
+
+/**
+ * CipherBenchmark measures encrypting and decrypting a file with each mode of CryptrCipher
+ * and CryptrChunkedCipher, from 1 KiB to 1 GiB.
+ *
+ * cipherWithPassword derives the key on every call, so at small sizes it mostly measures the
+ * KDF, while cipherWithSession derives it once per trial and shows the cost of the cipher
+ * alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherBenchmark {
+
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long size;
+
+    private Path dir;
+    private String input;
+    private String output;
+    private String keyFile;
+    private String encrypted;
+    private String encryptedKeyFile;
+    private CryptrSession session;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("cryptr-bench");
+        input = Payloads.random(dir, "input", size).toString();
+        output = dir.resolve("output").toString();
+        keyFile = dir.resolve("output.KEY").toString();
+        encrypted = dir.resolve("encrypted").toString();
+        encryptedKeyFile = dir.resolve("encrypted.KEY").toString();
+        session = new CryptrSession(PASSWORD);
+
+        check(CryptrCipher.encryptWithKey(input, encrypted, encryptedKeyFile));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        session.close();
+        Payloads.delete(dir);
+    }
+
+    @Benchmark
+    public int encryptWithKey() {
+        return check(CryptrCipher.encryptWithKey(input, output, keyFile));
+    }
+
+    @Benchmark
+    public int decryptWithKey() {
+        return check(CryptrCipher.decryptWithKey(encrypted, output, encryptedKeyFile));
+    }
+
+    @Benchmark
+    public int encryptWithPassword() {
+        return check(CryptrCipher.cipherWithPassword(input, output, PASSWORD, CryptrCipher.Mode.ENCRYPT));
+    }
+
+    @Benchmark
+    public int encryptWithSession() {
+        return check(CryptrCipher.cipherWithSession(input, output, session, CryptrCipher.Mode.ENCRYPT));
+    }
+
+    @Benchmark
+    public int encryptChunkedWithKey() {
+        return check(CryptrChunkedCipher.encryptWithKey(input, output, keyFile));
+    }
+
+    /**
+     * Fails the benchmark if an operation did not succeed, so errors are never measured.
+     */
+    private static int check(int response) {
+        if (response != 0) {
+            throw new IllegalStateException("operation failed with " + response);
+        }
+        return response;
+    }
+
+}
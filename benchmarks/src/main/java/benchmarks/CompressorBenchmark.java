@@ -0,0 +1,117 @@
+package benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import compressor.CryptrCompressor;
+
+/**
+ * CompressorBenchmark measures archiving a set of files with CryptrCompressor, on text which
+ * compresses well and on random data which does not, serially, in parallel and with each
+ * compression profile. The payload is split over several files so the parallel mode has
+ * entries to work on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressorBenchmark {
+
+    private static final int FILES = 8;
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long size;
+
+    @Param({"compressible", "random"})
+    public String data;
+
+    private Path dir;
+    private String[] files;
+    private String zipFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("cryptr-bench");
+        files = new String[FILES];
+        for (int i = 0; i < FILES; i++) {
+            long fileSize = size / FILES + (i < size % FILES ? 1 : 0);
+            Path file = data.equals("random")
+                    ? Payloads.random(dir, "input" + i, fileSize)
+                    : Payloads.text(dir, "input" + i, fileSize);
+            files[i] = file.toString();
+        }
+        zipFile = dir.resolve("output.zip").toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Payloads.delete(dir);
+    }
+
+    @Benchmark
+    public int compress() {
+        return check(CryptrCompressor.compress(files, zipFile));
+    }
+
+    @Benchmark
+    public int compressAdaptive() throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Path.of(zipFile)))) {
+            return check(CryptrCompressor.compress(files, out, true, null));
+        }
+    }
+
+    @Benchmark
+    public int compressParallel() {
+        return check(CryptrCompressor.compressParallel(files, zipFile, ForkJoinPool.commonPool()));
+    }
+
+    @Benchmark
+    public int compressFastest() {
+        return check(CryptrCompressor.compressParallel(files, zipFile, ForkJoinPool.commonPool(),
+                CryptrCompressor.Profile.FASTEST));
+    }
+
+    @Benchmark
+    public int compressBalanced() {
+        return check(CryptrCompressor.compressParallel(files, zipFile, ForkJoinPool.commonPool(),
+                CryptrCompressor.Profile.BALANCED));
+    }
+
+    @Benchmark
+    public int compressSmallest() {
+        return check(CryptrCompressor.compressParallel(files, zipFile, ForkJoinPool.commonPool(),
+                CryptrCompressor.Profile.SMALLEST));
+    }
+
+    /**
+     * Fails the benchmark if the archive was not written, so errors are never measured.
+     */
+    private static int check(int response) {
+        if (response != -1) {
+            throw new IllegalStateException("compression failed with " + response);
+        }
+        return response;
+    }
+
+}
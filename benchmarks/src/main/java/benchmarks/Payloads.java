@@ -0,0 +1,78 @@
+package benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Payloads creates the input files for benchmarks. Files are generated from a fixed seed, so
+ * every run measures the same data.
+ */
+class Payloads {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] WORDS = {"cryptr", "encrypt", "decrypt", "archive", "password", "key",
+            "chunk", "stream", "buffer", "channel", "cipher", "deflate", "the", "a", "of", "and", "with"};
+
+    /**
+     * Writes a file of random bytes, which do not compress.
+     */
+    static Path random(Path dir, String name, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Path file = dir.resolve(name);
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes a file of text made from a small vocabulary, which compresses about as well as
+     * typical documents and logs.
+     */
+    static Path text(Path dir, String name, long size) throws IOException {
+        Random random = new Random(size);
+        Path file = dir.resolve(name);
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE)) {
+            long written = 0;
+            long line = 0;
+            while (written < size) {
+                StringBuilder builder = new StringBuilder().append(line++).append(':');
+                int words = 4 + random.nextInt(12);
+                for (int i = 0; i < words; i++) {
+                    builder.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                byte[] bytes = builder.append('\n').toString().getBytes(StandardCharsets.US_ASCII);
+                int length = (int) Math.min(bytes.length, size - written);
+                out.write(bytes, 0, length);
+                written += length;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     */
+    static void delete(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package cipher;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CryptrAlgorithm is an authenticated cipher the chunked format can encrypt chunks with. Every
+ * algorithm takes a 256-bit key and a 12 byte nonce and appends a 16 byte tag, so chunks have
+ * the same layout whichever algorithm a file was encrypted with.
+ *
+ * The ID of an algorithm is stored in the header of every file, so IDs must never change.
+ */
+enum CryptrAlgorithm {
+
+    AES_GCM(0, "AES/GCM/NoPadding", "AES"),
+    CHACHA20_POLY1305(1, "ChaCha20-Poly1305", "ChaCha20");
+
+    final int id;
+    final String transformation;
+    final String keyAlgorithm;
+
+    CryptrAlgorithm(int id, String transformation, String keyAlgorithm) {
+        this.id = id;
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /**
+     * @return the algorithm with the given ID, or null if there is none
+     */
+    static CryptrAlgorithm of(int id) {
+        for (CryptrAlgorithm algorithm : values()) {
+            if (algorithm.id == id) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the parameters to initialize a cipher of this algorithm with for a nonce
+     */
+    AlgorithmParameterSpec parameters(byte[] nonce) {
+        if (this == AES_GCM) {
+            return new GCMParameterSpec(CryptrChunkedCipher.TAG_LENGTH * 8, nonce);
+        }
+        return new IvParameterSpec(nonce);
+    }
+
+    /**
+     * Keys are derived and stored as AES keys, but providers only accept keys of their own
+     * algorithm, so other algorithms use the same key bytes under their own name.
+     *
+     * @return the key to initialize a cipher of this algorithm with
+     */
+    SecretKey key(SecretKey key) {
+        if (key.getAlgorithm().equals(keyAlgorithm)) {
+            return key;
+        }
+        return new SecretKeySpec(key.getEncoded(), keyAlgorithm);
+    }
+
+}
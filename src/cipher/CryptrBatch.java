@@ -0,0 +1,366 @@
+package cipher;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * CryptrBatch runs many CryptrJobs concurrently, with a limit on how many files are being
+ * processed at once, and reports a result for every job.
+ *
+ * Jobs are also admitted against a memory budget, using the estimate of each job, so a batch
+ * mixing many small files with a few very large ones neither runs the large ones all at once
+ * nor leaves cores idle behind them. A job which does not fit may be overtaken by smaller ones
+ * further down the list, but only a bounded number of times before it is admitted next. A job
+ * larger than the whole budget runs on its own.
+ *
+ * By default jobs run on virtual threads when the JRE supports them, and otherwise on a pool
+ * with one thread per job in flight. Since encrypting a file mostly waits on I/O, running many
+ * files at once keeps both the disk and all cores busy.
+ *
+ * The outputs of a batch are staged in a CryptrSyncGroup and committed together once all jobs
+ * have finished, so a large batch costs a few fsyncs rather than two per file.
+ */
+public class CryptrBatch implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4 * Runtime.getRuntime().availableProcessors();
+    public static final long DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int maxInFlight;
+    private final long memoryBudget;
+
+    /**
+     * The outcome of a single job in a batch.
+     */
+    public static class Result {
+        public final CryptrJob job;
+        public final int response;
+        public final long nanos;
+
+        Result(CryptrJob job, int response, long nanos) {
+            this.job = job;
+            this.response = response;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return true iff the job succeeded
+         */
+        public boolean succeeded() {
+            return response == 0;
+        }
+    }
+
+    /**
+     * Creates a batch runner with the default limit of files in flight.
+     */
+    public CryptrBatch() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates a batch runner which runs jobs on virtual threads if available, or else on a
+     * pool of its own.
+     *
+     * @param maxInFlight - maximum number of files to process at once
+     */
+    public CryptrBatch(int maxInFlight) {
+        this(maxInFlight, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Creates a batch runner which runs jobs on virtual threads if available, or else on a
+     * pool of its own.
+     *
+     * @param maxInFlight - maximum number of files to process at once
+     * @param memoryBudget - maximum estimated memory in bytes of the jobs running at once
+     */
+    public CryptrBatch(int maxInFlight, long memoryBudget) {
+        this(newExecutor(maxInFlight), maxInFlight, memoryBudget, true);
+    }
+
+    /**
+     * Creates a batch runner which runs jobs on the given executor. The executor is not shut
+     * down when the batch runner is closed.
+     *
+     * @param executor - executor to run jobs on
+     * @param maxInFlight - maximum number of files to process at once
+     */
+    public CryptrBatch(ExecutorService executor, int maxInFlight) {
+        this(executor, maxInFlight, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Creates a batch runner which runs jobs on the given executor. The executor is not shut
+     * down when the batch runner is closed.
+     *
+     * @param executor - executor to run jobs on
+     * @param maxInFlight - maximum number of files to process at once
+     * @param memoryBudget - maximum estimated memory in bytes of the jobs running at once
+     */
+    public CryptrBatch(ExecutorService executor, int maxInFlight, long memoryBudget) {
+        this(executor, maxInFlight, memoryBudget, false);
+    }
+
+    private CryptrBatch(ExecutorService executor, int maxInFlight, long memoryBudget, boolean ownsExecutor) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        if (memoryBudget < 1) {
+            throw new IllegalArgumentException("memoryBudget must be positive");
+        }
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.memoryBudget = memoryBudget;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Admits jobs by the number of jobs and the memory running at once. Jobs are looked at in
+     * order, within a window of the next few jobs which have not started yet.
+     */
+    private static class Admission {
+        private final int maxJobs;
+        private final long budget;
+        private final int lookahead;
+        private int jobs;
+        private long bytes;
+        private int bypassed;
+
+        Admission(int maxJobs, long budget) {
+            this.maxJobs = maxJobs;
+            this.budget = budget;
+            this.lookahead = 2 * maxJobs;
+        }
+
+        /**
+         * Waits until one of the next jobs fits and reserves its memory.
+         *
+         * @param started - which jobs have started, where all jobs before head have
+         * @param head - index of the first job which has not started
+         * @param costs - estimated memory of each job, known for the whole window
+         * @return the index of the admitted job
+         */
+        synchronized int admit(boolean[] started, int head, long[] costs) throws InterruptedException {
+            while (true) {
+                if (jobs < maxJobs) {
+                    // once the first job was overtaken often enough, nothing else goes before it
+                    int window = bypassed >= lookahead ? 1 : lookahead;
+                    for (int i = head, seen = 0; i < started.length && seen < window; i++) {
+                        if (started[i]) {
+                            continue;
+                        }
+                        seen++;
+                        if (jobs == 0 || bytes + costs[i] <= budget) {
+                            bypassed = i == head ? 0 : bypassed + 1;
+                            started[i] = true;
+                            jobs++;
+                            bytes += costs[i];
+                            return i;
+                        }
+                    }
+                }
+                wait();
+            }
+        }
+
+        synchronized void release(long cost) {
+            jobs--;
+            bytes -= cost;
+            notifyAll();
+        }
+
+        synchronized void awaitIdle() throws InterruptedException {
+            while (jobs > 0) {
+                wait();
+            }
+        }
+
+        synchronized void awaitIdleUninterruptibly() {
+            boolean interrupted = false;
+            while (jobs > 0) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs a list of jobs and waits for all of them to finish.
+     *
+     * @param jobs - jobs to run
+     * @return the result of every job, in the same order as jobs
+     */
+    public List<Result> run(List<CryptrJob> jobs) {
+        return run(jobs, result -> { });
+    }
+
+    /**
+     * Runs a list of jobs, waits for all of them to finish and commits their outputs. If the
+     * calling thread is interrupted, the batch is cancelled: running jobs are interrupted and
+     * stop at their next block with -3, and jobs which have not started yet are not run and
+     * also fail with -3. The outputs of jobs which finished are still committed.
+     *
+     * @param jobs - jobs to run
+     * @param onComplete - called with the result of each job as soon as it finishes, from the
+     *                     thread which ran the job, before its output is committed
+     * @return the result of every job, in the same order as jobs
+     */
+    public List<Result> run(List<CryptrJob> jobs, Consumer<Result> onComplete) {
+        try (CryptrSyncGroup group = new CryptrSyncGroup()) {
+            return commit(run(jobs, onComplete, group), group);
+        }
+    }
+
+    /**
+     * Runs a list of jobs and waits for all of them to finish, staging their outputs in a
+     * sync group. Nothing replaces the outputs until the group is committed, so the caller
+     * can first store what the outputs depend on, such as the keyring holding their keys.
+     * Cancelling works as for run(List, Consumer).
+     *
+     * @param jobs - jobs to run
+     * @param onComplete - called with the result of each job as soon as it finishes, from the
+     *                     thread which ran the job
+     * @param group - group to stage the outputs in
+     * @return the result of every job, in the same order as jobs
+     */
+    public List<Result> run(List<CryptrJob> jobs, Consumer<Result> onComplete, CryptrSyncGroup group) {
+        Result[] results = new Result[jobs.size()];
+        Admission admission = new Admission(maxInFlight, memoryBudget);
+        boolean[] started = new boolean[results.length];
+        long[] costs = new long[results.length];
+        Arrays.fill(costs, -1);
+        Set<Thread> running = ConcurrentHashMap.newKeySet();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        int head = 0;
+
+        try {
+            while (head < results.length) {
+                // estimates read the input files, so they are made outside of the admission lock
+                for (int i = head, seen = 0; i < results.length && seen < 2 * maxInFlight; i++) {
+                    if (!started[i]) {
+                        if (costs[i] < 0) {
+                            costs[i] = Math.min(jobs.get(i).memory(), memoryBudget);
+                        }
+                        seen++;
+                    }
+                }
+                int index = admission.admit(started, head, costs);
+                while (head < results.length && started[head]) {
+                    head++;
+                }
+                long cost = costs[index];
+                try {
+                    executor.execute(() -> {
+                        // a pooled thread may still carry an interrupt meant for its previous job
+                        Thread.interrupted();
+                        running.add(Thread.currentThread());
+                        group.enter();
+                        try {
+                            if (!cancelled.get()) {
+                                CryptrJob job = jobs.get(index);
+                                long start = System.nanoTime();
+                                int response = job.run();
+                                results[index] = new Result(job, response, System.nanoTime() - start);
+                                onComplete.accept(results[index]);
+                            }
+                        }
+                        finally {
+                            group.exit();
+                            running.remove(Thread.currentThread());
+                            admission.release(cost);
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e) {
+                    admission.release(cost);
+                    break;
+                }
+            }
+
+            admission.awaitIdle();
+        }
+        catch (InterruptedException e) {
+            // jobs which start after this see the flag, and running ones are interrupted
+            cancelled.set(true);
+            running.forEach(Thread::interrupt);
+            admission.awaitIdleUninterruptibly();
+            Thread.currentThread().interrupt();
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = new Result(jobs.get(i), cancelled.get() ? -3 : -2, 0);
+            }
+        }
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    /**
+     * Commits a sync group holding the outputs of a batch.
+     *
+     * @param results - results of the batch
+     * @param group - group the outputs of the batch were staged in
+     * @return the results, where jobs whose output could not be committed fail with 2
+     */
+    public static List<Result> commit(List<Result> results, CryptrSyncGroup group) {
+        Set<Path> failed = new HashSet<>(group.commit());
+        if (failed.isEmpty()) {
+            return results;
+        }
+
+        List<Result> committed = new ArrayList<>(results.size());
+        for (Result result : results) {
+            if (result.succeeded() && failed.contains(Paths.get(result.job.outputFile))) {
+                committed.add(new Result(result.job, 2, result.nanos));
+            }
+            else {
+                committed.add(result);
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Shuts down the pool of this batch runner if it created one.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Creates a virtual thread per task executor through reflection, since it is only
+     * available from Java 21, or a fixed pool if it is not available.
+     */
+    private static ExecutorService newExecutor(int maxInFlight) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(maxInFlight);
+        }
+    }
+
+}
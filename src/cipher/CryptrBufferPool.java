@@ -0,0 +1,66 @@
+package cipher;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CryptrBufferPool hands out direct buffers of a fixed size and takes them back for reuse.
+ * Direct buffers are expensive to allocate and are only freed by the garbage collector, so
+ * reusing them avoids both the allocation cost and the churn of many short-lived buffers.
+ *
+ * A pool can be shared between threads.
+ */
+public class CryptrBufferPool {
+
+    private final int bufferSize;
+    private final int maxRetained;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger retained = new AtomicInteger();
+
+    /**
+     * Creates a new empty pool.
+     *
+     * @param bufferSize - capacity of every buffer in the pool
+     * @param maxRetained - maximum number of released buffers to keep for reuse
+     */
+    public CryptrBufferPool(int bufferSize, int maxRetained) {
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+    }
+
+    /**
+     * @return a cleared direct buffer with the pool's buffer size
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        retained.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer - buffer acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (retained.incrementAndGet() <= maxRetained) {
+            free.offer(buffer);
+        }
+        else {
+            retained.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the capacity of every buffer in the pool
+     */
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+}
@@ -0,0 +1,230 @@
+package cipher;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CryptrCalibration picks the algorithm and provider the chunked format encrypts with on this
+ * host. Which one is fastest depends on the CPU and the JRE: AES-GCM is fastest where the JIT
+ * uses the AES and carry-less multiply instructions of the CPU, while ChaCha20-Poly1305 is
+ * faster where it does not. Rather than guessing, every algorithm is run with every provider
+ * which offers it until its throughput stops improving, and the fastest pair wins.
+ *
+ * Calibration runs once per JVM on a background thread, started the first time a file is
+ * encrypted in the chunked format, or up front by start(). Since the JIT needs a while to
+ * compile the intrinsics a provider relies on, it can take a few seconds, and nothing waits for
+ * it: until it has finished, new files are encrypted with AES-GCM from the default provider.
+ * Files are always decrypted with the algorithm in their header, using the provider picked for
+ * it once calibration has finished.
+ */
+public class CryptrCalibration {
+
+    private static final int SAMPLE_SIZE = 32 * 1024;
+    private static final long ROUND_NANOS = 50_000_000;
+    private static final int MAX_ROUNDS = 100;
+    private static final int PATIENCE = 20;
+    private static final double MIN_GAIN = 1.05;
+
+    private static final FutureTask<Selection> CALIBRATION = new FutureTask<>(CryptrCalibration::measureAll);
+    private static final AtomicBoolean STARTED = new AtomicBoolean(false);
+
+    /**
+     * The algorithm picked for new files, and the fastest provider of every available algorithm.
+     */
+    private static class Selection {
+        final CryptrAlgorithm algorithm;
+        final Map<CryptrAlgorithm, Provider> providers;
+        final Map<CryptrAlgorithm, Double> throughput;
+
+        Selection(CryptrAlgorithm algorithm, Map<CryptrAlgorithm, Provider> providers,
+                Map<CryptrAlgorithm, Double> throughput) {
+            this.algorithm = algorithm;
+            this.providers = providers;
+            this.throughput = throughput;
+        }
+    }
+
+    /**
+     * Starts calibrating in the background, unless it was already started. Applications
+     * should call this at startup, so calibration has finished by the time they encrypt.
+     */
+    public static void start() {
+        if (STARTED.compareAndSet(false, true)) {
+            Thread thread = new Thread(CALIBRATION, "cryptr-calibration");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Starts calibrating if needed and waits for it to finish.
+     *
+     * @return true iff calibration finished, false if the thread was interrupted while waiting
+     */
+    public static boolean calibrate() {
+        start();
+        try {
+            CALIBRATION.get();
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException e) {
+            // measureAll() does not throw, and falls back to AES-GCM if nothing can be measured
+            return true;
+        }
+    }
+
+    /**
+     * Describes the algorithm and provider new files are encrypted with, e.g.
+     * "AES/GCM/NoPadding (SunJCE, 1450 MB/s)", or only the transformation if calibration has
+     * not finished.
+     *
+     * @return the description
+     */
+    public static String describe() {
+        Selection current = finished();
+        if (current == null) {
+            return CryptrAlgorithm.AES_GCM.transformation;
+        }
+
+        Provider provider = current.providers.get(current.algorithm);
+        Double throughput = current.throughput.get(current.algorithm);
+        if (provider == null || throughput == null) {
+            return current.algorithm.transformation;
+        }
+        return String.format("%s (%s, %.0f MB/s)", current.algorithm.transformation, provider.getName(),
+                throughput / 1e6);
+    }
+
+    /**
+     * @return the algorithm to encrypt new files with, which is AES-GCM until calibration,
+     *         started here if needed, has finished
+     */
+    static CryptrAlgorithm algorithm() {
+        start();
+        Selection current = finished();
+        return current == null ? CryptrAlgorithm.AES_GCM : current.algorithm;
+    }
+
+    /**
+     * Creates a cipher for an algorithm, from the provider calibration picked for it if it has
+     * finished, and otherwise from the default provider.
+     */
+    static Cipher newCipher(CryptrAlgorithm algorithm) throws GeneralSecurityException {
+        Selection current = finished();
+        Provider provider = current == null ? null : current.providers.get(algorithm);
+        if (provider == null) {
+            return Cipher.getInstance(algorithm.transformation);
+        }
+        return Cipher.getInstance(algorithm.transformation, provider);
+    }
+
+    /**
+     * @return the result of calibration, or null if it has not finished
+     */
+    private static Selection finished() {
+        if (!CALIBRATION.isDone()) {
+            return null;
+        }
+        try {
+            return CALIBRATION.get();
+        }
+        catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static Selection measureAll() {
+        Map<CryptrAlgorithm, Provider> providers = new EnumMap<>(CryptrAlgorithm.class);
+        Map<CryptrAlgorithm, Double> throughput = new EnumMap<>(CryptrAlgorithm.class);
+        // AES-GCM is kept if nothing can be measured, since every JRE supports it
+        CryptrAlgorithm best = CryptrAlgorithm.AES_GCM;
+
+        for (CryptrAlgorithm algorithm : CryptrAlgorithm.values()) {
+            for (Provider provider : Security.getProviders()) {
+                double bytesPerSecond;
+                try {
+                    bytesPerSecond = measure(algorithm, provider);
+                }
+                catch (GeneralSecurityException | RuntimeException e) {
+                    // the provider does not offer this algorithm, or it is not usable here
+                    continue;
+                }
+
+                if (bytesPerSecond > throughput.getOrDefault(algorithm, 0.0)) {
+                    providers.put(algorithm, provider);
+                    throughput.put(algorithm, bytesPerSecond);
+                }
+            }
+
+            if (throughput.getOrDefault(algorithm, 0.0) > throughput.getOrDefault(best, 0.0)) {
+                best = algorithm;
+            }
+        }
+
+        return new Selection(best, providers, throughput);
+    }
+
+    /**
+     * Encrypts a sample repeatedly with one algorithm and provider, in rounds of a fixed
+     * length. The first rounds run while the JIT is still compiling, and throughput can stall
+     * for a while before the intrinsics are compiled, so rounds continue until the best
+     * throughput has not improved for a second, and the best round is taken. The sample is
+     * small, so the provider's methods are called often enough to be compiled soon.
+     *
+     * @return the throughput in bytes per second
+     */
+    private static double measure(CryptrAlgorithm algorithm, Provider provider) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(algorithm.transformation, provider);
+        SecretKey key = new SecretKeySpec(new byte[CryptrCipher.KEY_LENGTH / 8], algorithm.keyAlgorithm);
+        ByteBuffer input = ByteBuffer.allocateDirect(SAMPLE_SIZE);
+        ByteBuffer output = ByteBuffer.allocateDirect(SAMPLE_SIZE + CryptrChunkedCipher.TAG_LENGTH);
+        byte[] nonce = new byte[CryptrChunkedCipher.NONCE_LENGTH];
+        long counter = 0;
+        double best = 0;
+        int unimproved = 0;
+
+        for (int round = 0; round < MAX_ROUNDS && unimproved < PATIENCE; round++) {
+            long bytes = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                encrypt(cipher, key, algorithm, nonce, ++counter, input, output);
+                bytes += SAMPLE_SIZE;
+                elapsed = System.nanoTime() - start;
+            }
+            while (elapsed < ROUND_NANOS);
+
+            double bytesPerSecond = bytes * 1e9 / elapsed;
+            unimproved = bytesPerSecond > best * MIN_GAIN ? 0 : unimproved + 1;
+            best = Math.max(best, bytesPerSecond);
+        }
+
+        return best;
+    }
+
+    private static void encrypt(Cipher cipher, SecretKey key, CryptrAlgorithm algorithm, byte[] nonce,
+            long counter, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        // providers refuse to reuse a nonce with the same key, even for a throwaway key
+        ByteBuffer.wrap(nonce).putLong(nonce.length - Long.BYTES, counter);
+        cipher.init(Cipher.ENCRYPT_MODE, key, algorithm.parameters(nonce));
+        input.clear();
+        output.clear();
+        cipher.doFinal(input, output);
+    }
+
+}
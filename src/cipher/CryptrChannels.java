@@ -0,0 +1,231 @@
+package cipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+
+import metrics.CryptrListener;
+import metrics.CryptrProbe;
+import metrics.Stage;
+
+/**
+ * CryptrChannels passes files through a cipher using NIO. The input is memory-mapped or read
+ * into pooled direct buffers, the cipher works on the buffers directly, and the output is
+ * written from a pooled direct buffer, so file data is never copied onto the Java heap.
+ *
+ * A transfer stops before the next slice once its thread is interrupted.
+ */
+public class CryptrChannels {
+
+    private static final int SLICE_SIZE = 64 * 1024;
+    private static final int MAP_THRESHOLD = 1024 * 1024;
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // output buffers leave room for a partial block carried over between updates, and padding
+    private static final CryptrBufferPool POOL = new CryptrBufferPool(SLICE_SIZE + 1024,
+            4 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Passes the whole of an input file through an initialized cipher into an output file.
+     * Files of at least 1 MiB are read through memory-mapped windows if map is true.
+     *
+     * @param cipher - initialized cipher to pass the file through
+     * @param in - channel of the file to read, from its current position
+     * @param out - channel to write the output to, at its current position
+     * @param map - whether the input may be memory-mapped
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *          0 on success
+     *          1 on error reading input file
+     *          2 on error writing output file
+     */
+    public static int transfer(Cipher cipher, FileChannel in, FileChannel out, boolean map) {
+        return transfer(cipher, in, out, map, null, CryptrProbe.start(CryptrListener.NONE, null, -1));
+    }
+
+    /**
+     * Passes the whole of an input file through an initialized cipher into an output file,
+     * updating a digest with the input on the way, so the file can be hashed without reading
+     * it a second time, and reporting progress and stage timings to a probe. Time spent
+     * reading a memory-mapped input is counted as part of the cipher stage.
+     *
+     * @param cipher - initialized cipher to pass the file through
+     * @param in - channel of the file to read, from its current position
+     * @param out - channel to write the output to, at its current position
+     * @param map - whether the input may be memory-mapped
+     * @param digest - digest to update with the input, or null
+     * @param probe - probe to report to
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *          0 on success
+     *          1 on error reading input file
+     *          2 on error writing output file
+     */
+    public static int transfer(Cipher cipher, FileChannel in, FileChannel out, boolean map, MessageDigest digest,
+            CryptrProbe probe) {
+        ByteBuffer output = POOL.acquire();
+
+        try {
+            long position;
+            long size;
+            try {
+                position = in.position();
+                size = in.size();
+            }
+            catch (ClosedByInterruptException e) {
+                return -3;
+            }
+            catch (IOException e) {
+                return 1;
+            }
+
+            int response = map && size - position >= MAP_THRESHOLD
+                    ? transferMapped(cipher, in, out, output, digest, probe, position, size)
+                    : transferRead(cipher, in, out, output, digest, probe);
+            if (response != 0) {
+                return response;
+            }
+
+            output.clear();
+            long time = probe.now();
+            cipher.doFinal(EMPTY, output);
+            time = probe.stage(Stage.CIPHER, time);
+            response = write(out, output);
+            probe.stage(Stage.WRITE, time);
+            return response;
+        }
+        catch (GeneralSecurityException e) {
+            return -2;
+        }
+        finally {
+            POOL.release(output);
+        }
+    }
+
+    /**
+     * Estimates the memory a transfer holds while it runs: its pooled buffers, and the window
+     * of the input which is mapped at a time, which takes up page cache rather than heap.
+     *
+     * @param size - size of the input file in bytes
+     * @param map - whether the input may be memory-mapped
+     * @return the estimate in bytes
+     */
+    static long memory(long size, boolean map) {
+        long buffers = 2L * POOL.bufferSize();
+        return map && size >= MAP_THRESHOLD ? buffers + Math.min(size, MAP_WINDOW) : buffers;
+    }
+
+    private static int transferMapped(Cipher cipher, FileChannel in, FileChannel out, ByteBuffer output,
+            MessageDigest digest, CryptrProbe probe, long position, long size) throws GeneralSecurityException {
+        while (position < size) {
+            long window = Math.min(MAP_WINDOW, size - position);
+            ByteBuffer input;
+            try {
+                input = in.map(FileChannel.MapMode.READ_ONLY, position, window);
+            }
+            catch (ClosedByInterruptException e) {
+                return -3;
+            }
+            catch (IOException e) {
+                return 1;
+            }
+
+            int response = update(cipher, input, out, output, digest, probe);
+            if (response != 0) {
+                return response;
+            }
+            position += window;
+        }
+        return 0;
+    }
+
+    private static int transferRead(Cipher cipher, FileChannel in, FileChannel out, ByteBuffer output,
+            MessageDigest digest, CryptrProbe probe) throws GeneralSecurityException {
+        ByteBuffer input = POOL.acquire();
+
+        try {
+            while (true) {
+                input.clear().limit(SLICE_SIZE);
+                long start = probe.now();
+                try {
+                    if (in.read(input) < 0) {
+                        return 0;
+                    }
+                }
+                catch (ClosedByInterruptException e) {
+                    return -3;
+                }
+                catch (IOException e) {
+                    return 1;
+                }
+                probe.stage(Stage.READ, start);
+
+                input.flip();
+                int response = update(cipher, input, out, output, digest, probe);
+                if (response != 0) {
+                    return response;
+                }
+            }
+        }
+        finally {
+            POOL.release(input);
+        }
+    }
+
+    /**
+     * Passes all remaining bytes of input through the cipher in slices which fit the output
+     * buffer, writing each slice's output to the channel and adding each slice to the digest.
+     */
+    private static int update(Cipher cipher, ByteBuffer input, FileChannel out, ByteBuffer output,
+            MessageDigest digest, CryptrProbe probe) throws GeneralSecurityException {
+        int limit = input.limit();
+
+        while (input.hasRemaining()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return -3;
+            }
+
+            input.limit(Math.min(limit, input.position() + SLICE_SIZE));
+            if (digest != null) {
+                digest.update(input.duplicate());
+            }
+            int length = input.remaining();
+            output.clear();
+            long time = probe.now();
+            cipher.update(input, output);
+            time = probe.stage(Stage.CIPHER, time);
+            input.limit(limit);
+
+            int response = write(out, output);
+            probe.stage(Stage.WRITE, time);
+            if (response != 0) {
+                return response;
+            }
+            probe.bytes(length);
+        }
+        return 0;
+    }
+
+    private static int write(FileChannel out, ByteBuffer output) {
+        output.flip();
+        try {
+            while (output.hasRemaining()) {
+                out.write(output);
+            }
+        }
+        catch (ClosedByInterruptException e) {
+            return -3;
+        }
+        catch (IOException e) {
+            return 2;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,257 @@
+package cipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * CryptrChunkedChannel is a read-only SeekableByteChannel over the plaintext of a file
+ * encrypted by CryptrChunkedCipher. Only the chunks covering the bytes which are read are
+ * decrypted, so a small read from the middle of a large file costs one chunk rather than the
+ * whole file.
+ *
+ * The last chunk is decrypted when the channel is opened, so the key is checked and the size
+ * of the plaintext is authenticated up front. Every other chunk is authenticated as it is
+ * read, and a chunk which fails authentication makes the read throw an IOException.
+ */
+public class CryptrChunkedChannel implements SeekableByteChannel {
+
+    private final FileChannel channel;
+    private final SecretKey key;
+    private final CryptrHeader header;
+    private final byte[] aad;
+    private final int count;
+    private final long length;
+    private final long size;
+    private final ByteBuffer input;
+    private final ByteBuffer chunk;
+    private int chunkIndex = -1;
+    private long position = 0;
+
+    private CryptrChunkedChannel(FileChannel channel, SecretKey key, CryptrHeader header, int count, long length) {
+        this.channel = channel;
+        this.key = key;
+        this.header = header;
+        this.aad = header.encode();
+        this.count = count;
+        this.length = length;
+        this.size = length - (long) count * CryptrChunkedCipher.TAG_LENGTH;
+        this.input = ByteBuffer.allocateDirect(header.chunkSize + CryptrChunkedCipher.TAG_LENGTH);
+        this.chunk = ByteBuffer.allocateDirect(header.chunkSize + CryptrChunkedCipher.TAG_LENGTH);
+    }
+
+    /**
+     * Opens a file encrypted with key-based AES-256 for reading.
+     *
+     * @param encryptedFile - path of the encrypted file
+     * @param keyFile - path of the key file generated during encryption
+     * @return the opened channel
+     * @throws IOException on error reading the files, or if the file is not in the chunked format
+     * @throws GeneralSecurityException if the key does not belong to the file
+     */
+    public static CryptrChunkedChannel openWithKey(String encryptedFile, String keyFile)
+            throws IOException, GeneralSecurityException {
+        CryptrKey key;
+
+        try {
+            key = CryptrCipher.readKeyFile(keyFile);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("invalid key file", e);
+        }
+
+        return openWithKey(encryptedFile, key);
+    }
+
+    /**
+     * Opens a file encrypted with key-based AES-256 for reading, with a key which was already
+     * loaded.
+     */
+    static CryptrChunkedChannel openWithKey(String encryptedFile, CryptrKey key)
+            throws IOException, GeneralSecurityException {
+        return open(encryptedFile, CryptrHeader.KEY_TYPE_KEY, header -> key.key);
+    }
+
+    /**
+     * Opens a file encrypted with password-based AES-256 for reading.
+     *
+     * @param encryptedFile - path of the encrypted file
+     * @param password - password the file was encrypted with
+     * @return the opened channel
+     * @throws IOException on error reading the file, or if the file is not in the chunked format
+     * @throws GeneralSecurityException if the password is wrong
+     */
+    public static CryptrChunkedChannel openWithPassword(String encryptedFile, String password)
+            throws IOException, GeneralSecurityException {
+        return open(encryptedFile, CryptrHeader.KEY_TYPE_PASSWORD,
+                header -> CryptrCipher.deriveKey(password.toCharArray(), header.salt, header.kdfIterations));
+    }
+
+    /**
+     * Opens a file encrypted with password-based AES-256 for reading, using the password of a
+     * session.
+     *
+     * @param encryptedFile - path of the encrypted file
+     * @param session - session holding the password
+     * @return the opened channel
+     * @throws IOException on error reading the file, or if the file is not in the chunked format
+     * @throws GeneralSecurityException if the password is wrong
+     */
+    public static CryptrChunkedChannel openWithSession(String encryptedFile, CryptrSession session)
+            throws IOException, GeneralSecurityException {
+        return open(encryptedFile, CryptrHeader.KEY_TYPE_PASSWORD,
+                header -> session.key(header.salt, header.kdfIterations));
+    }
+
+    private static CryptrChunkedChannel open(String encryptedFile, int keyType,
+            CryptrChunkedCipher.KeySource keySource) throws IOException, GeneralSecurityException {
+        FileChannel channel = FileChannel.open(Paths.get(encryptedFile), StandardOpenOption.READ);
+
+        try {
+            CryptrHeader header = CryptrHeader.read(channel);
+            if (header == null) {
+                throw new IOException("not a chunked file: " + encryptedFile);
+            }
+            long length = channel.size() - header.length();
+            if (header.keyType != keyType) {
+                throw new GeneralSecurityException(keyType == CryptrHeader.KEY_TYPE_KEY
+                        ? "file was not encrypted with a key" : "file was not encrypted with a password");
+            }
+
+            int tag = CryptrChunkedCipher.TAG_LENGTH;
+            long stride = header.chunkSize + tag;
+            long chunks = (length + stride - 1) / stride;
+            if (length < tag || length - (chunks - 1) * stride < tag || chunks > Integer.MAX_VALUE) {
+                throw new IOException("truncated chunked file: " + encryptedFile);
+            }
+
+            SecretKey key = keySource.keyFor(header);
+            CryptrChunkedChannel reader = new CryptrChunkedChannel(channel, key, header, (int) chunks, length);
+            reader.load(reader.count - 1);
+            return reader;
+        }
+        catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+
+        int read = 0;
+        while (dst.hasRemaining() && position < size) {
+            int index = (int) (position / header.chunkSize);
+            try {
+                load(index);
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("chunk " + index + " failed to decrypt", e);
+            }
+
+            ByteBuffer slice = chunk.duplicate();
+            slice.position((int) (position - (long) index * header.chunkSize));
+            if (slice.remaining() > dst.remaining()) {
+                slice.limit(slice.position() + dst.remaining());
+            }
+
+            read += slice.remaining();
+            position += slice.remaining();
+            dst.put(slice);
+        }
+
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return the size of the decrypted file
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+        chunk.clear().limit(0);
+        chunkIndex = -1;
+    }
+
+    /**
+     * Decrypts a chunk into the chunk buffer, unless it is already there.
+     */
+    private void load(int index) throws IOException, GeneralSecurityException {
+        if (index == chunkIndex) {
+            return;
+        }
+        chunkIndex = -1;
+
+        long stride = header.chunkSize + CryptrChunkedCipher.TAG_LENGTH;
+        long offset = index * stride;
+        input.clear();
+        input.limit((int) Math.min(stride, length - offset));
+        if (!CryptrChunkedCipher.readFully(channel, input, header.length() + offset)) {
+            throw new IOException("unexpected end of file");
+        }
+
+        input.flip();
+        chunk.clear();
+        CryptrChunkedCipher.initCipher(Cipher.DECRYPT_MODE, key, header, aad, index, index == count - 1)
+                .doFinal(input, chunk);
+        chunk.flip();
+        chunkIndex = index;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+}
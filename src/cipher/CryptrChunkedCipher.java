@@ -0,0 +1,715 @@
+package cipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * CryptrChunkedCipher supports key-based and password-based encryption/decryption using
+ * AES-256 in a chunked format which can be processed on many cores at once.
+ *
+ * The file is split into fixed-size chunks, and each chunk is encrypted separately with an
+ * authenticated cipher using a nonce derived from the chunk index. Chunks do not depend on each other, so
+ * they are encrypted and decrypted in parallel and written straight to their place in the
+ * output. The header and the position of the last chunk are authenticated with every chunk,
+ * so chunks cannot be modified, reordered or dropped without decryption failing.
+ *
+ * For password-based encryption, a random salt is stored in the header, so unlike
+ * CryptrCipher the same password gives a different key for every file.
+ *
+ * Files in this format start with a CryptrHeader recording the algorithm, chunk size and key
+ * derivation parameters, and decryption follows the header rather than the current defaults.
+ * New files are encrypted with the algorithm and provider CryptrCalibration found fastest on
+ * this host, AES-GCM or ChaCha20-Poly1305, so throughput can improve without migrating old
+ * files. The decrypt methods of CryptrCipher recognize files in this format and pass them on
+ * here, but CryptrCipher cannot encrypt to it.
+ * Since chunks are independent, they can also be read at any offset with CryptrChunkedChannel.
+ *
+ * The integrity of a file can be checked without decrypting it to disk with the verify
+ * methods, which authenticate all chunks in parallel and stop at the first one which fails.
+ */
+public class CryptrChunkedCipher {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    static final int TAG_LENGTH = 16;
+    static final int NONCE_LENGTH = 12;
+
+    // larger chunks only come from unusual or crafted headers, so their buffers are not kept
+    private static final int MAX_CACHED_BUFFER_SIZE = 4 * DEFAULT_CHUNK_SIZE + TAG_LENGTH;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher[]> CIPHERS =
+            ThreadLocal.withInitial(() -> new Cipher[CryptrAlgorithm.values().length]);
+    private static final ThreadLocal<ByteBuffer[]> BUFFERS = new ThreadLocal<>();
+
+    /**
+     * Supplies the key for a file once its header has been read.
+     */
+    static interface KeySource {
+        SecretKey keyFor(CryptrHeader header) throws GeneralSecurityException;
+    }
+
+    /**
+     * Encrypts a given file with key-based AES-256 encryption on the common ForkJoinPool.
+     *
+     * @see #encryptWithKey(String, String, String, ExecutorService)
+     */
+    public static int encryptWithKey(String inputFile, String outputFile, String keyFile) {
+        return encryptWithKey(inputFile, outputFile, keyFile, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypts a given file with key-based AES-256 encryption, processing chunks in parallel.
+     *
+     * @param inputFile - path of the file to encrypt
+     * @param outputFile - path to store the encrypted file
+     * @param keyFile - path to store the key file
+     * @param executor - executor to process chunks on
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input file
+     *          2 on error writing output file
+     *          3 on error writing key file
+     */
+    public static int encryptWithKey(String inputFile, String outputFile, String keyFile,
+            ExecutorService executor) {
+        CryptrKey key;
+
+        try {
+            key = CryptrCipher.generateKey();
+        }
+        catch (NoSuchAlgorithmException e) {
+            return -1;
+        }
+
+        CryptrHeader header = newHeader(CryptrHeader.KEY_TYPE_KEY, new byte[CryptrHeader.SALT_LENGTH]);
+        return CryptrCipher.withKeyFile(key, keyFile, () -> encrypt(inputFile, outputFile, key.key, header, executor));
+    }
+
+    /**
+     * Decrypts a given file with key-based AES-256 decryption on the common ForkJoinPool.
+     *
+     * @see #decryptWithKey(String, String, String, ExecutorService)
+     */
+    public static int decryptWithKey(String encryptedFile, String outputFile, String keyFile) {
+        return decryptWithKey(encryptedFile, outputFile, keyFile, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decrypts a given file with key-based AES-256 decryption, processing chunks in parallel.
+     *
+     * @param encryptedFile - path of the file to decrypt
+     * @param outputFile - path to store the decrypted file
+     * @param keyFile - path of the key file generated during encryption
+     * @param executor - executor to process chunks on
+     * @return -3 if the thread was interrupted
+     *         -2 on failure, including a wrong key or a modified file
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading encrypted file
+     *          2 on error writing output file
+     *          3 on error reading key file
+     */
+    public static int decryptWithKey(String encryptedFile, String outputFile, String keyFile,
+            ExecutorService executor) {
+        CryptrKey key;
+
+        try {
+            key = CryptrCipher.readKeyFile(keyFile);
+        }
+        catch (ClassNotFoundException e) {
+            return -2;
+        }
+        catch (IOException e) {
+            return 3;
+        }
+
+        return decrypt(encryptedFile, outputFile, keySource(key), executor);
+    }
+
+    /**
+     * Decrypts a given file with a key on the common ForkJoinPool, for CryptrCipher to pass on
+     * files in this format.
+     */
+    static int decryptWithKey(String encryptedFile, String outputFile, CryptrKey key) {
+        return decrypt(encryptedFile, outputFile, keySource(key), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypts or decrypts a given file using password-based AES-256 on the common ForkJoinPool.
+     *
+     * @see #cipherWithPassword(String, String, String, CryptrCipher.Mode, ExecutorService)
+     */
+    public static int cipherWithPassword(String inputFile, String outputFile, String password,
+            CryptrCipher.Mode mode) {
+        return cipherWithPassword(inputFile, outputFile, password, mode, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypts or decrypts a given file using password-based AES-256, processing chunks in
+     * parallel.
+     *
+     * @param inputFile - path to the file to encrypt or decrypt
+     * @param outputFile - path to store the encrypted/decrypted output
+     * @param password - password to use in secret key generation
+     * @param mode - which operation to perform on the file
+     * @param executor - executor to process chunks on
+     * @return -3 if the thread was interrupted
+     *         -2 on failure, including a wrong password or a modified file
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input file
+     *          2 on error writing output file
+     */
+    public static int cipherWithPassword(String inputFile, String outputFile, String password,
+            CryptrCipher.Mode mode, ExecutorService executor) {
+        if (mode == CryptrCipher.Mode.DECRYPT) {
+            return decrypt(inputFile, outputFile, passwordSource(password), executor);
+        }
+
+        byte[] salt = new byte[CryptrHeader.SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        SecretKey key;
+
+        try {
+            key = CryptrCipher.deriveKey(password.toCharArray(), salt);
+        }
+        catch (NoSuchAlgorithmException e) {
+            return -1;
+        }
+        catch (GeneralSecurityException e) {
+            return -2;
+        }
+
+        return encrypt(inputFile, outputFile, key, newHeader(CryptrHeader.KEY_TYPE_PASSWORD, salt), executor);
+    }
+
+    /**
+     * Encrypts or decrypts a given file using password-based AES-256 with the password of a
+     * session on the common ForkJoinPool.
+     *
+     * @see #cipherWithSession(String, String, CryptrSession, CryptrCipher.Mode, ExecutorService)
+     */
+    public static int cipherWithSession(String inputFile, String outputFile, CryptrSession session,
+            CryptrCipher.Mode mode) {
+        return cipherWithSession(inputFile, outputFile, session, mode, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypts or decrypts a given file using password-based AES-256 with the password of a
+     * session, processing chunks in parallel. Files are encrypted with the salt of the session,
+     * so the key is derived once for every file encrypted or decrypted in the same session.
+     *
+     * @param inputFile - path to the file to encrypt or decrypt
+     * @param outputFile - path to store the encrypted/decrypted output
+     * @param session - session holding the password
+     * @param mode - which operation to perform on the file
+     * @param executor - executor to process chunks on
+     * @return -3 if the thread was interrupted
+     *         -2 on failure, including a wrong password or a modified file
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input file
+     *          2 on error writing output file
+     */
+    public static int cipherWithSession(String inputFile, String outputFile, CryptrSession session,
+            CryptrCipher.Mode mode, ExecutorService executor) {
+        if (mode == CryptrCipher.Mode.DECRYPT) {
+            return decrypt(inputFile, outputFile, sessionSource(session), executor);
+        }
+
+        byte[] salt = session.salt();
+        SecretKey key;
+
+        try {
+            key = session.key(salt);
+        }
+        catch (NoSuchAlgorithmException e) {
+            return -1;
+        }
+        catch (GeneralSecurityException e) {
+            return -2;
+        }
+
+        return encrypt(inputFile, outputFile, key, newHeader(CryptrHeader.KEY_TYPE_PASSWORD, salt), executor);
+    }
+
+    /**
+     * Verifies a file encrypted with key-based AES-256 on the common ForkJoinPool.
+     *
+     * @see #verifyWithKey(String, String, ExecutorService)
+     */
+    public static int verifyWithKey(String encryptedFile, String keyFile) {
+        return verifyWithKey(encryptedFile, keyFile, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Verifies that a file encrypted with key-based AES-256 is intact and was encrypted with
+     * the given key. Chunks are authenticated in parallel, and no plaintext is written.
+     *
+     * @param encryptedFile - path of the file to verify
+     * @param keyFile - path of the key file generated during encryption
+     * @param executor - executor to process chunks on
+     * @return -3 if the thread was interrupted
+     *         -2 on failure, including a wrong key or a modified file
+     *         -1 if JRE does not support essential operations
+     *          0 if the file is intact
+     *          1 on error reading encrypted file
+     *          3 on error reading key file
+     */
+    public static int verifyWithKey(String encryptedFile, String keyFile, ExecutorService executor) {
+        CryptrKey key;
+
+        try {
+            key = CryptrCipher.readKeyFile(keyFile);
+        }
+        catch (ClassNotFoundException e) {
+            return -2;
+        }
+        catch (IOException e) {
+            return 3;
+        }
+
+        return decrypt(encryptedFile, null, keySource(key), executor);
+    }
+
+    /**
+     * Verifies a file encrypted using password-based AES-256 on the common ForkJoinPool.
+     *
+     * @see #verifyWithPassword(String, String, ExecutorService)
+     */
+    public static int verifyWithPassword(String encryptedFile, String password) {
+        return verifyWithPassword(encryptedFile, password, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Verifies that a file encrypted using password-based AES-256 is intact and was encrypted
+     * with the given password. Chunks are authenticated in parallel, and no plaintext is
+     * written.
+     *
+     * @param encryptedFile - path of the file to verify
+     * @param password - password the file was encrypted with
+     * @param executor - executor to process chunks on
+     * @return -3 if the thread was interrupted
+     *         -2 on failure, including a wrong password or a modified file
+     *         -1 if JRE does not support essential operations
+     *          0 if the file is intact
+     *          1 on error reading encrypted file
+     */
+    public static int verifyWithPassword(String encryptedFile, String password, ExecutorService executor) {
+        return decrypt(encryptedFile, null, passwordSource(password), executor);
+    }
+
+    /**
+     * Verifies a file encrypted with the password of a session on the common ForkJoinPool.
+     *
+     * @see #verifyWithSession(String, CryptrSession, ExecutorService)
+     */
+    public static int verifyWithSession(String encryptedFile, CryptrSession session) {
+        return verifyWithSession(encryptedFile, session, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Verifies that a file encrypted using password-based AES-256 is intact and was encrypted
+     * with the password of a session. Keys are cached by the session, so sweeping many files
+     * encrypted in the same session derives the key once.
+     *
+     * @param encryptedFile - path of the file to verify
+     * @param session - session holding the password
+     * @param executor - executor to process chunks on
+     * @return the same codes as verifyWithPassword(String, String, ExecutorService)
+     */
+    public static int verifyWithSession(String encryptedFile, CryptrSession session, ExecutorService executor) {
+        return decrypt(encryptedFile, null, sessionSource(session), executor);
+    }
+
+    private static KeySource keySource(CryptrKey key) {
+        return header -> {
+            if (header.keyType != CryptrHeader.KEY_TYPE_KEY) {
+                throw new GeneralSecurityException("file was not encrypted with a key");
+            }
+            return key.key;
+        };
+    }
+
+    private static KeySource passwordSource(String password) {
+        return header -> {
+            if (header.keyType != CryptrHeader.KEY_TYPE_PASSWORD) {
+                throw new GeneralSecurityException("file was not encrypted with a password");
+            }
+            return CryptrCipher.deriveKey(password.toCharArray(), header.salt, header.kdfIterations);
+        };
+    }
+
+    private static KeySource sessionSource(CryptrSession session) {
+        return header -> {
+            if (header.keyType != CryptrHeader.KEY_TYPE_PASSWORD) {
+                throw new GeneralSecurityException("file was not encrypted with a password");
+            }
+            return session.key(header.salt, header.kdfIterations);
+        };
+    }
+
+    private static CryptrHeader newHeader(int keyType, byte[] salt) {
+        byte[] noncePrefix = new byte[CryptrHeader.NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+        return new CryptrHeader(keyType, CryptrCalibration.algorithm(), CryptrCipher.KDF_ITERATIONS,
+                DEFAULT_CHUNK_SIZE, salt, noncePrefix);
+    }
+
+    private static int encrypt(String inputFile, String outputFile, SecretKey key, CryptrHeader header,
+            ExecutorService executor) {
+        FileChannel in;
+
+        try {
+            in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            return 1;
+        }
+
+        try (FileChannel input = in) {
+            long length;
+            try {
+                length = input.size();
+            }
+            catch (IOException e) {
+                return 1;
+            }
+
+            long chunks = Math.max(1, (length + header.chunkSize - 1) / header.chunkSize);
+            if (chunks > Integer.MAX_VALUE) {
+                return -2;
+            }
+
+            try (CryptrOutputFile output = CryptrOutputFile.open(outputFile)) {
+                byte[] aad = header.encode();
+                writeFully(output.channel(), ByteBuffer.wrap(aad), 0);
+
+                int count = (int) chunks;
+                int response = runChunks(count, executor,
+                        index -> encryptChunk(input, output.channel(), key, header, aad, index, count, length));
+                if (response == 0) {
+                    output.commit();
+                }
+                return response;
+            }
+        }
+        catch (IOException e) {
+            return 2;
+        }
+    }
+
+    /**
+     * Decrypts a file, or only authenticates its chunks if outputFile is null.
+     */
+    private static int decrypt(String encryptedFile, String outputFile, KeySource keySource,
+            ExecutorService executor) {
+        FileChannel in;
+
+        try {
+            in = FileChannel.open(Paths.get(encryptedFile), StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            return 1;
+        }
+
+        try (FileChannel input = in) {
+            CryptrHeader header;
+            long length;
+            try {
+                header = CryptrHeader.read(input);
+                if (header == null) {
+                    return -2;
+                }
+                length = input.size() - header.length();
+            }
+            catch (IOException e) {
+                return 1;
+            }
+
+            long stride = header.chunkSize + TAG_LENGTH;
+            long chunks = (length + stride - 1) / stride;
+            if (length < TAG_LENGTH || length - (chunks - 1) * stride < TAG_LENGTH || chunks > Integer.MAX_VALUE) {
+                return -2;
+            }
+
+            SecretKey key;
+            try {
+                key = keySource.keyFor(header);
+            }
+            catch (NoSuchAlgorithmException e) {
+                return -1;
+            }
+            catch (GeneralSecurityException e) {
+                return -2;
+            }
+
+            byte[] aad = header.encode();
+            int count = (int) chunks;
+            if (outputFile == null) {
+                return runChunks(count, executor,
+                        index -> decryptChunk(input, null, key, header, aad, index, count, length));
+            }
+
+            try (CryptrOutputFile output = CryptrOutputFile.open(outputFile)) {
+                int response = runChunks(count, executor,
+                        index -> decryptChunk(input, output.channel(), key, header, aad, index, count, length));
+                if (response == 0) {
+                    output.commit();
+                }
+                return response;
+            }
+        }
+        catch (IOException e) {
+            return 2;
+        }
+    }
+
+    /**
+     * Processes a single chunk and returns one of the file return codes.
+     */
+    static interface ChunkTask {
+        int process(int index);
+    }
+
+    /**
+     * Estimates the memory decrypting a file in the chunked format holds while it runs. Every
+     * thread decrypting chunks keeps an input and an output buffer of a chunk, and the chunks
+     * run on the common ForkJoinPool, so at most as many threads as it has hold them.
+     *
+     * @return the estimate in bytes, or 0 if the file cannot be read
+     */
+    static long memory(String encryptedFile) {
+        try (FileChannel channel = FileChannel.open(Paths.get(encryptedFile), StandardOpenOption.READ)) {
+            CryptrHeader header = CryptrHeader.read(channel);
+            if (header == null) {
+                return 0;
+            }
+            long stride = header.chunkSize + TAG_LENGTH;
+            long chunks = (channel.size() - header.length() + stride - 1) / stride;
+            return 2 * stride * Math.max(1, Math.min(chunks, ForkJoinPool.getCommonPoolParallelism()));
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Runs a task for every chunk on an executor and waits for all of them to finish. Once a
+     * chunk fails, or the calling thread is interrupted, chunks which have not started yet are
+     * skipped.
+     *
+     * @return the return code of the first chunk which failed, -3 if the calling thread was
+     *         interrupted, or 0 if all succeeded
+     */
+    static int runChunks(int count, ExecutorService executor, ChunkTask task) {
+        AtomicInteger failure = new AtomicInteger(0);
+        List<Future<?>> futures = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            futures.add(executor.submit(() -> {
+                if (failure.get() == 0) {
+                    int response = task.process(index);
+                    if (response != 0) {
+                        failure.compareAndSet(0, response);
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            failure.set(-3);
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            return -3;
+        }
+        catch (ExecutionException e) {
+            return -2;
+        }
+
+        return failure.get();
+    }
+
+    private static int encryptChunk(FileChannel in, FileChannel out, SecretKey key, CryptrHeader header,
+            byte[] aad, int index, int count, long length) {
+        long offset = (long) index * header.chunkSize;
+        int plainLength = (int) Math.min(header.chunkSize, length - offset);
+        ByteBuffer[] buffers = buffers(header.chunkSize + TAG_LENGTH);
+        ByteBuffer input = buffers[0];
+        ByteBuffer output = buffers[1];
+
+        try {
+            input.limit(plainLength);
+            if (!readFully(in, input, offset)) {
+                return 1;
+            }
+        }
+        catch (IOException e) {
+            return 1;
+        }
+
+        try {
+            input.flip();
+            initCipher(Cipher.ENCRYPT_MODE, key, header, aad, index, index == count - 1).doFinal(input, output);
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return -1;
+        }
+        catch (GeneralSecurityException e) {
+            return -2;
+        }
+
+        try {
+            output.flip();
+            writeFully(out, output, header.length() + (long) index * (header.chunkSize + TAG_LENGTH));
+        }
+        catch (IOException e) {
+            return 2;
+        }
+
+        return 0;
+    }
+
+    private static int decryptChunk(FileChannel in, FileChannel out, SecretKey key, CryptrHeader header,
+            byte[] aad, int index, int count, long length) {
+        long stride = header.chunkSize + TAG_LENGTH;
+        long offset = index * stride;
+        int cipherLength = (int) Math.min(stride, length - offset);
+        ByteBuffer[] buffers = buffers(header.chunkSize + TAG_LENGTH);
+        ByteBuffer input = buffers[0];
+        ByteBuffer output = buffers[1];
+
+        try {
+            input.limit(cipherLength);
+            if (!readFully(in, input, header.length() + offset)) {
+                return 1;
+            }
+        }
+        catch (IOException e) {
+            return 1;
+        }
+
+        try {
+            input.flip();
+            initCipher(Cipher.DECRYPT_MODE, key, header, aad, index, index == count - 1).doFinal(input, output);
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return -1;
+        }
+        catch (GeneralSecurityException e) {
+            return -2;
+        }
+
+        // when verifying, the tag has been checked and the plaintext is dropped
+        if (out == null) {
+            return 0;
+        }
+
+        try {
+            output.flip();
+            writeFully(out, output, (long) index * header.chunkSize);
+        }
+        catch (IOException e) {
+            return 2;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Initializes this thread's cipher for the algorithm of the header for a single chunk. The
+     * nonce is the header's nonce prefix followed by the chunk index, and the header and
+     * whether this is the last chunk are authenticated with the chunk.
+     */
+    static Cipher initCipher(int cipherMode, SecretKey key, CryptrHeader header, byte[] aad, int index,
+            boolean last) throws GeneralSecurityException {
+        Cipher[] ciphers = CIPHERS.get();
+        Cipher cipher = ciphers[header.algorithm.ordinal()];
+        if (cipher == null) {
+            cipher = CryptrCalibration.newCipher(header.algorithm);
+            ciphers[header.algorithm.ordinal()] = cipher;
+        }
+
+        byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH).put(header.noncePrefix).putInt(index).array();
+        cipher.init(cipherMode, header.algorithm.key(key), header.algorithm.parameters(nonce));
+        cipher.updateAAD(aad);
+        cipher.updateAAD(new byte[] {(byte) (last ? 1 : 0)});
+        return cipher;
+    }
+
+    /**
+     * Returns this thread's input and output buffers, cleared and with capacity for at least
+     * the given size. Direct buffers are used since providers process them much faster than
+     * heap arrays for large inputs, and channels read and write them without a copy.
+     *
+     * Buffers larger than MAX_CACHED_BUFFER_SIZE are heap buffers allocated for the call, since
+     * direct buffers kept by every pool thread for the life of the JVM would pin up to twice
+     * the largest chunk size a header allows on each of them.
+     */
+    private static ByteBuffer[] buffers(int size) {
+        if (size > MAX_CACHED_BUFFER_SIZE) {
+            return new ByteBuffer[] {ByteBuffer.allocate(size), ByteBuffer.allocate(size)};
+        }
+
+        ByteBuffer[] buffers = BUFFERS.get();
+        if (buffers == null || buffers[0].capacity() < size) {
+            buffers = new ByteBuffer[] {ByteBuffer.allocateDirect(size), ByteBuffer.allocateDirect(size)};
+            BUFFERS.set(buffers);
+        }
+        buffers[0].clear();
+        buffers[1].clear();
+        return buffers;
+    }
+
+    /**
+     * Reads from a channel at a position until the buffer is full.
+     *
+     * @return false if the end of the channel was reached first
+     */
+    static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the whole buffer to a channel at a position.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+}
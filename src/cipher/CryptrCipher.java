@@ -1,29 +1,43 @@
 package cipher;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.function.IntSupplier;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import metrics.CryptrListener;
+import metrics.CryptrProbe;
+import metrics.Stage;
+
 /**
  * CryptrCipher supports key-based and password-based encryption/decryption using AES-256.
  *
@@ -33,17 +47,30 @@ import javax.crypto.spec.SecretKeySpec;
  * For password-based encryption, it deterministically generates a secret key from a given
  * password. The same password is used to generate the same key during decryption.
  *
+ * Files and streams are processed in fixed-size blocks, so memory use stays constant no
+ * matter how large the input is. Progress and stage timings of every operation are reported
+ * to the listener set with setListener(). An operation whose thread is interrupted stops
+ * before its next block and returns -3, leaving any existing output file untouched.
+ *
+ * Files written by this class have no header. The file decrypt methods recognize files in the
+ * chunked format of CryptrChunkedCipher by their header and decrypt them as such, so callers
+ * do not need to know which format a file was encrypted in. Streams are always treated as
+ * headerless.
+ *
  * NOTE: An initialization vector is not used for password-based encryption, making it less
  * secure than key-based encryption.
  */
 public class CryptrCipher {
 
-    private static final String ENCRYPTION_ALGORITHM = "AES";
-    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
-    private static final int KEY_LENGTH = 256;
+    static final String ENCRYPTION_ALGORITHM = "AES";
+    static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    static final int KEY_LENGTH = 256;
     private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
-    private static final int KDF_ITERATIONS = 65536;
-    private static final byte[] PEPPER = {-116, 55, 32, 63, -124, 39, 31, -21, 121, 45, -24, 27, 95, -47, -36, 110};
+    static final int KDF_ITERATIONS = 65536;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    static final byte[] PEPPER = {-116, 55, 32, 63, -124, 39, 31, -21, 121, 45, -24, 27, 95, -47, -36, 110};
+
+    private static volatile CryptrListener listener = CryptrListener.NONE;
 
     /**
      * Represents the operations encrypt and decrypt for dual-use methods.
@@ -58,7 +85,8 @@ public class CryptrCipher {
      * @param inputFile - path of the file to encrypt
      * @param outputFile - path to store the encrypted file
      * @param keyFile - path to store the key file
-     * @return -2 on failure
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
      *         -1 if JRE does not support essential operations
      *          0 on success
      *          1 on error reading input file
@@ -66,49 +94,35 @@ public class CryptrCipher {
      *          3 on error writing key file
      */
     public static int encryptWithKey(String inputFile, String outputFile, String keyFile) {
-        byte[] inputBytes, encryptedBytes;
         CryptrKey key;
 
         try {
-            inputBytes = Files.readAllBytes(Paths.get(inputFile));
-        }
-        catch (IOException e) {
-            return 1;
-        }
-
-        try {
-            KeyGenerator keyGen = KeyGenerator.getInstance(ENCRYPTION_ALGORITHM);
-            keyGen.init(KEY_LENGTH);
-            key = new CryptrKey(keyGen.generateKey());
-            IvParameterSpec ivps = new IvParameterSpec(key.iv);
-
-            Cipher aesCipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-            aesCipher.init(Cipher.ENCRYPT_MODE, key.key, ivps);
-            encryptedBytes = aesCipher.doFinal(inputBytes);
+            key = generateKey();
         }
-        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        catch (NoSuchAlgorithmException e) {
             return -1;
         }
-        catch (InvalidKeyException | InvalidAlgorithmParameterException
-                | IllegalBlockSizeException | BadPaddingException e) {
-            return -2;
-        }
-
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            fos.write(encryptedBytes);
-        }
-        catch (IOException e) {
-            return 2;
-        }
 
-        try (ObjectOutputStream oout = new ObjectOutputStream(new FileOutputStream(keyFile))) {
-            oout.writeObject(key);
-        }
-        catch (IOException e) {
-            return 3;
-        }
+        return withKeyFile(key, keyFile, () -> cipherFile(inputFile, outputFile,
+                () -> keyCipher(key, Cipher.ENCRYPT_MODE)));
+    }
 
-        return 0;
+    /**
+     * Encrypts a stream with key-based AES-256 encryption. The stream is processed in
+     * fixed-size blocks, so memory use does not depend on the length of the input.
+     *
+     * @param in - stream of data to encrypt
+     * @param out - stream to write the encrypted data to
+     * @param key - key to encrypt with, see generateKey()
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input stream
+     *          2 on error writing output stream
+     */
+    public static int encryptWithKey(InputStream in, OutputStream out, CryptrKey key) {
+        return cipherStream(in, out, () -> keyCipher(key, Cipher.ENCRYPT_MODE));
     }
 
     /**
@@ -117,7 +131,8 @@ public class CryptrCipher {
      * @param encryptedFile - path of the file to decrypt
      * @param outputFile - path to store the decrypted file
      * @param keyFile - path of the key file generated during encryption
-     * @return -2 on failure
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
      *         -1 if JRE does not support essential operations
      *          0 on success
      *          1 on error reading encrypted file
@@ -125,18 +140,14 @@ public class CryptrCipher {
      *          3 on error reading key file
      */
     public static int decryptWithKey(String encryptedFile, String outputFile, String keyFile) {
-        byte[] encryptedBytes, decryptedBytes;
         CryptrKey key;
 
-        try {
-            encryptedBytes = Files.readAllBytes(Paths.get(encryptedFile));
-        }
-        catch (IOException e) {
+        if (!Files.isReadable(Paths.get(encryptedFile))) {
             return 1;
         }
 
-        try (ObjectInputStream oin = new ObjectInputStream(new FileInputStream(keyFile))) {
-            key = (CryptrKey) oin.readObject();
+        try {
+            key = readKeyFile(keyFile);
         }
         catch (ClassNotFoundException e) {
             return -2;
@@ -145,30 +156,140 @@ public class CryptrCipher {
             return 3;
         }
 
+        if (CryptrHeader.isChunked(encryptedFile)) {
+            return CryptrChunkedCipher.decryptWithKey(encryptedFile, outputFile, key);
+        }
+        return cipherFile(encryptedFile, outputFile, () -> keyCipher(key, Cipher.DECRYPT_MODE));
+    }
+
+    /**
+     * Decrypts a stream with key-based AES-256 decryption. The stream is processed in
+     * fixed-size blocks, so memory use does not depend on the length of the input.
+     *
+     * @param in - stream of data to decrypt
+     * @param out - stream to write the decrypted data to
+     * @param key - key the data was encrypted with
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input stream
+     *          2 on error writing output stream
+     */
+    public static int decryptWithKey(InputStream in, OutputStream out, CryptrKey key) {
+        return cipherStream(in, out, () -> keyCipher(key, Cipher.DECRYPT_MODE));
+    }
+
+    /**
+     * Encrypts a given file with key-based AES-256 encryption, storing the key in a keyring
+     * instead of a key file. The key is only written to disk when the keyring is saved.
+     *
+     * When a CryptrSyncGroup is active, the key is stored once the output is staged, since the
+     * keyring has to be saved before the group is committed. An output which then fails to
+     * commit keeps its key in the keyring, replacing the key of an earlier output stored under
+     * the same ID, so grouped callers should use IDs the keyring does not hold yet.
+     *
+     * @param inputFile - path of the file to encrypt
+     * @param outputFile - path to store the encrypted file
+     * @param keyring - keyring to store the key in
+     * @param fileId - ID to store the key under
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input file
+     *          2 on error writing output file
+     *          3 on error storing the key in the keyring
+     */
+    public static int encryptWithKeyring(String inputFile, String outputFile, CryptrKeyring keyring,
+            String fileId) {
+        return encryptWithKeyring(inputFile, outputFile, keyring, fileId, null);
+    }
+
+    /**
+     * Encrypts a given file with key-based AES-256 encryption, storing the key in a keyring
+     * and hashing the file as it is encrypted.
+     *
+     * @param inputFile - path of the file to encrypt
+     * @param outputFile - path to store the encrypted file
+     * @param keyring - keyring to store the key in
+     * @param fileId - ID to store the key under
+     * @param digest - digest to update with the contents of the input file, or null
+     * @return the same codes as encryptWithKeyring(String, String, CryptrKeyring, String)
+     */
+    public static int encryptWithKeyring(String inputFile, String outputFile, CryptrKeyring keyring,
+            String fileId, MessageDigest digest) {
+        CryptrKey key;
+        byte[] record;
+
         try {
-            IvParameterSpec ivps = new IvParameterSpec(key.iv);
-            Cipher aesCipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-            aesCipher.init(Cipher.DECRYPT_MODE, key.key, ivps);
-            decryptedBytes = aesCipher.doFinal(encryptedBytes);
+            key = generateKey();
         }
-        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        catch (NoSuchAlgorithmException e) {
             return -1;
         }
-        catch (InvalidKeyException | InvalidAlgorithmParameterException
-                | IllegalBlockSizeException | BadPaddingException e) {
-            return -2;
-        }
 
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            fos.write(decryptedBytes);
+        // the key is wrapped before the output is committed, which replaces the input when
+        // encrypting in place, and only stored once the output is committed or staged, so a
+        // failed encryption never replaces the key of an earlier output which is still there
+        try {
+            record = keyring.wrap(fileId, key);
         }
-        catch (IOException e) {
-            return 2;
+        catch (GeneralSecurityException e) {
+            return 3;
         }
 
+        int response = cipherFile(inputFile, outputFile, () -> keyCipher(key, Cipher.ENCRYPT_MODE), digest);
+        if (response != 0) {
+            return response;
+        }
+
+        keyring.add(record);
         return 0;
     }
 
+    /**
+     * Decrypts a given file with key-based AES-256 decryption, using a key from a keyring.
+     *
+     * @param encryptedFile - path of the file to decrypt
+     * @param outputFile - path to store the decrypted file
+     * @param keyring - keyring the key was stored in during encryption
+     * @param fileId - ID the key was stored under
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading encrypted file
+     *          2 on error writing output file
+     *          3 if the keyring holds no key for the file
+     */
+    public static int decryptWithKeyring(String encryptedFile, String outputFile, CryptrKeyring keyring,
+            String fileId) {
+        CryptrKey key;
+
+        if (!Files.isReadable(Paths.get(encryptedFile))) {
+            return 1;
+        }
+
+        try {
+            key = keyring.get(fileId);
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return -1;
+        }
+        catch (GeneralSecurityException e) {
+            return -2;
+        }
+        if (key == null) {
+            return 3;
+        }
+
+        if (CryptrHeader.isChunked(encryptedFile)) {
+            return CryptrChunkedCipher.decryptWithKey(encryptedFile, outputFile, key);
+        }
+        return cipherFile(encryptedFile, outputFile, () -> keyCipher(key, Cipher.DECRYPT_MODE));
+    }
+
     /**
      * Encrypts or decrypts a given file using password-based AES-256.
      *
@@ -176,7 +297,8 @@ public class CryptrCipher {
      * @param outputFile - path to store the encrypted/decrypted output
      * @param password - password to use in secret key generation
      * @param mode - which operation to perform on the file
-     * @return -2 on failure
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
      *         -1 if JRE does not support essential operations
      *          0 on success
      *          1 on error reading input file
@@ -184,41 +306,554 @@ public class CryptrCipher {
      *          3 on error reading/writing key file
      */
     public static int cipherWithPassword(String inputFile, String outputFile, String password, Mode mode) {
-        byte[] inputBytes, outputBytes;
-        int cipherMode = mode == Mode.ENCRYPT ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+        if (mode == Mode.DECRYPT && CryptrHeader.isChunked(inputFile)) {
+            return CryptrChunkedCipher.cipherWithPassword(inputFile, outputFile, password, mode);
+        }
+        return cipherFile(inputFile, outputFile, () -> passwordCipher(deriveKey(password.toCharArray(), PEPPER), mode));
+    }
+
+    /**
+     * Encrypts or decrypts a stream using password-based AES-256. The stream is processed in
+     * fixed-size blocks, so memory use does not depend on the length of the input.
+     *
+     * @param in - stream of data to encrypt or decrypt
+     * @param out - stream to write the encrypted/decrypted output to
+     * @param password - password to use in secret key generation
+     * @param mode - which operation to perform on the stream
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input stream
+     *          2 on error writing output stream
+     */
+    public static int cipherWithPassword(InputStream in, OutputStream out, String password, Mode mode) {
+        return cipherStream(in, out, () -> passwordCipher(deriveKey(password.toCharArray(), PEPPER), mode));
+    }
+
+    /**
+     * Encrypts or decrypts a given file using password-based AES-256 with the password of a
+     * session. The key is only derived on the first use of the session.
+     *
+     * @param inputFile - path to the file to encrypt or decrypt
+     * @param outputFile - path to store the encrypted/decrypted output
+     * @param session - session holding the password
+     * @param mode - which operation to perform on the file
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input file
+     *          2 on error writing output file
+     */
+    public static int cipherWithSession(String inputFile, String outputFile, CryptrSession session, Mode mode) {
+        return cipherWithSession(inputFile, outputFile, session, mode, null);
+    }
+
+    /**
+     * Encrypts or decrypts a given file using password-based AES-256 with the password of a
+     * session, hashing the input file as it is processed.
+     *
+     * @param inputFile - path to the file to encrypt or decrypt
+     * @param outputFile - path to store the encrypted/decrypted output
+     * @param session - session holding the password
+     * @param mode - which operation to perform on the file
+     * @param digest - digest to update with the contents of the input file, or null; files in the
+     *                 chunked format are only decrypted as such when it is null
+     * @return the same codes as cipherWithSession(String, String, CryptrSession, Mode)
+     */
+    public static int cipherWithSession(String inputFile, String outputFile, CryptrSession session, Mode mode,
+            MessageDigest digest) {
+        if (mode == Mode.DECRYPT && digest == null && CryptrHeader.isChunked(inputFile)) {
+            return CryptrChunkedCipher.cipherWithSession(inputFile, outputFile, session, mode);
+        }
+        return cipherFile(inputFile, outputFile, () -> passwordCipher(session.key(PEPPER), mode), digest);
+    }
+
+    /**
+     * Encrypts or decrypts a batch of files using password-based AES-256 with the password of
+     * a session. The key is derived once for the whole batch.
+     *
+     * @param inputFiles - paths to the files to encrypt or decrypt
+     * @param outputFiles - paths to store the output of each file, may be the same as inputFiles
+     * @param session - session holding the password
+     * @param mode - which operation to perform on the files
+     * @return the return code of cipherWithSession() for each file
+     */
+    public static int[] cipherWithSession(String[] inputFiles, String[] outputFiles, CryptrSession session,
+            Mode mode) {
+        int[] responses = new int[inputFiles.length];
+        for (int i = 0; i < inputFiles.length; i++) {
+            responses[i] = cipherWithSession(inputFiles[i], outputFiles[i], session, mode);
+        }
+        return responses;
+    }
+
+    /**
+     * Encrypts or decrypts a stream using password-based AES-256 with the password of a
+     * session.
+     *
+     * @param in - stream of data to encrypt or decrypt
+     * @param out - stream to write the encrypted/decrypted output to
+     * @param session - session holding the password
+     * @param mode - which operation to perform on the stream
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input stream
+     *          2 on error writing output stream
+     */
+    public static int cipherWithSession(InputStream in, OutputStream out, CryptrSession session, Mode mode) {
+        return cipherStream(in, out, () -> passwordCipher(session.key(PEPPER), mode));
+    }
+
+    /**
+     * Wraps a stream so that everything written to it is encrypted with key-based AES-256.
+     * The result can be decrypted with decryptWithKey(). The returned stream must be closed to
+     * write the final block, which also closes out.
+     *
+     * @param out - stream to write the encrypted data to
+     * @param key - key to encrypt with, see generateKey()
+     * @return the encrypting stream
+     * @throws GeneralSecurityException if the cipher cannot be created
+     */
+    public static OutputStream encryptingStream(OutputStream out, CryptrKey key) throws GeneralSecurityException {
+        return new CipherOutputStream(out, keyCipher(key, Cipher.ENCRYPT_MODE));
+    }
+
+    /**
+     * Wraps a stream so that everything written to it is encrypted using password-based
+     * AES-256 with the password of a session. The result can be decrypted with
+     * cipherWithSession() or cipherWithPassword(). The returned stream must be closed to
+     * write the final block, which also closes out.
+     *
+     * @param out - stream to write the encrypted data to
+     * @param session - session holding the password
+     * @return the encrypting stream
+     * @throws GeneralSecurityException if the key cannot be derived or the cipher cannot be created
+     */
+    public static OutputStream encryptingStream(OutputStream out, CryptrSession session)
+            throws GeneralSecurityException {
+        return new CipherOutputStream(out, passwordCipher(session.key(PEPPER), Mode.ENCRYPT));
+    }
+
+    /**
+     * Opens a file encrypted with key-based AES-256 as a stream of its plaintext, which is
+     * decrypted as it is read. Files in the chunked format are recognized by their header, as
+     * by decryptWithKey(). A file which fails to decrypt makes a read throw an IOException.
+     *
+     * @param encryptedFile - path of the file to decrypt
+     * @param key - key the file was encrypted with
+     * @return the decrypting stream
+     * @throws IOException on error opening the file
+     * @throws GeneralSecurityException if the cipher cannot be created, or the key does not
+     *         belong to a file in the chunked format
+     */
+    public static InputStream decryptingStream(String encryptedFile, CryptrKey key)
+            throws IOException, GeneralSecurityException {
+        if (CryptrHeader.isChunked(encryptedFile)) {
+            return Channels.newInputStream(CryptrChunkedChannel.openWithKey(encryptedFile, key));
+        }
+        return decryptingStream(encryptedFile, () -> keyCipher(key, Cipher.DECRYPT_MODE));
+    }
+
+    /**
+     * Opens a file encrypted using password-based AES-256 as a stream of its plaintext, using
+     * the password of a session.
+     *
+     * @param encryptedFile - path of the file to decrypt
+     * @param session - session holding the password
+     * @return the decrypting stream
+     * @throws IOException on error opening the file
+     * @throws GeneralSecurityException if the key cannot be derived or the cipher cannot be
+     *         created, or the password is wrong for a file in the chunked format
+     * @see #decryptingStream(String, CryptrKey)
+     */
+    public static InputStream decryptingStream(String encryptedFile, CryptrSession session)
+            throws IOException, GeneralSecurityException {
+        if (CryptrHeader.isChunked(encryptedFile)) {
+            return Channels.newInputStream(CryptrChunkedChannel.openWithSession(encryptedFile, session));
+        }
+        return decryptingStream(encryptedFile, () -> passwordCipher(session.key(PEPPER), Mode.DECRYPT));
+    }
+
+    /**
+     * Generates a new random key and initialization vector for key-based encryption.
+     *
+     * @return the generated key
+     * @throws NoSuchAlgorithmException if JRE does not support AES
+     */
+    public static CryptrKey generateKey() throws NoSuchAlgorithmException {
+        KeyGenerator keyGen = KeyGenerator.getInstance(ENCRYPTION_ALGORITHM);
+        keyGen.init(KEY_LENGTH);
+        return new CryptrKey(keyGen.generateKey());
+    }
+
+    /**
+     * Derives an AES-256 key from a password and salt with PBKDF2 and the default number of
+     * iterations.
+     *
+     * @see #deriveKey(char[], byte[], int)
+     */
+    static SecretKey deriveKey(char[] password, byte[] salt)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return deriveKey(password, salt, KDF_ITERATIONS);
+    }
+
+    /**
+     * Derives an AES-256 key from a password and salt with PBKDF2.
+     *
+     * @param password - password to derive the key from
+     * @param salt - salt to derive the key with
+     * @param iterations - number of PBKDF2 iterations
+     * @return the derived key
+     * @throws NoSuchAlgorithmException if JRE does not support the key derivation function
+     * @throws InvalidKeySpecException if the password cannot be used to derive a key
+     */
+    static SecretKey deriveKey(char[] password, byte[] salt, int iterations)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        KeySpec keySpec = new PBEKeySpec(password, salt, iterations, KEY_LENGTH);
+        SecretKey temp = SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(keySpec);
+        return new SecretKeySpec(temp.getEncoded(), ENCRYPTION_ALGORITHM);
+    }
+
+    /**
+     * Reads a key file written by writeKeyFile().
+     *
+     * @param keyFile - path of the key file
+     * @return the stored key
+     * @throws IOException on error reading the key file
+     * @throws ClassNotFoundException if the key file does not hold a key
+     */
+    public static CryptrKey readKeyFile(String keyFile) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream oin = new ObjectInputStream(new FileInputStream(keyFile))) {
+            return (CryptrKey) oin.readObject();
+        }
+    }
+
+    /**
+     * Stores a key in a key file. The key file is synced and moved in place before this
+     * returns, even if a CryptrSyncGroup is active.
+     *
+     * @param key - key to store
+     * @param keyFile - path to store the key file
+     * @throws IOException on error writing the key file
+     */
+    public static void writeKeyFile(CryptrKey key, String keyFile) throws IOException {
+        try (CryptrOutputFile output = CryptrOutputFile.open(keyFile)) {
+            ObjectOutputStream oout = new ObjectOutputStream(output.stream());
+            oout.writeObject(key);
+            oout.flush();
+            output.commitNow();
+        }
+    }
+
+    /**
+     * Runs an encryption whose key is stored in a key file. The key file is written before
+     * the encryption commits its output, which replaces the input when encrypting in place,
+     * so a crash never leaves an output whose key was lost. If the encryption fails, the key
+     * file which was there before is put back.
+     *
+     * @param key - key the encryption uses
+     * @param keyFile - path to store the key file
+     * @param encryption - encryption returning the file return codes
+     * @return the response of the encryption, or 3 on error writing the key file
+     */
+    public static int withKeyFile(CryptrKey key, String keyFile, IntSupplier encryption) {
+        Path path = Paths.get(keyFile);
+        byte[] previous;
 
         try {
-            inputBytes = Files.readAllBytes(Paths.get(inputFile));
+            previous = Files.exists(path) ? Files.readAllBytes(path) : null;
+            writeKeyFile(key, keyFile);
         }
         catch (IOException e) {
-            return 1;
+            return 3;
+        }
+
+        int response = encryption.getAsInt();
+        if (response != 0) {
+            // the output was not committed, so an earlier output may still need the old key
+            try {
+                if (previous == null) {
+                    Files.deleteIfExists(path);
+                }
+                else {
+                    try (CryptrOutputFile output = CryptrOutputFile.open(keyFile)) {
+                        CryptrChunkedCipher.writeFully(output.channel(), ByteBuffer.wrap(previous), 0);
+                        output.commitNow();
+                    }
+                }
+            }
+            catch (IOException e) {
+                // the response already reports the failure
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Sets the listener which receives progress and stage timings of every file and stream
+     * processed from now on, on any thread.
+     *
+     * @param listener - listener to report to, or null to stop reporting
+     */
+    public static void setListener(CryptrListener listener) {
+        CryptrCipher.listener = listener == null ? CryptrListener.NONE : listener;
+    }
+
+    /**
+     * @return the listener set with setListener()
+     */
+    static CryptrListener listener() {
+        return listener;
+    }
+
+    /**
+     * Estimates the memory encrypting or decrypting a file holds while it runs, which
+     * CryptrBatch schedules jobs by. Files are processed in fixed-size blocks, so only the
+     * mapped window of a large input grows with the size of the file.
+     *
+     * @return the estimate in bytes
+     */
+    static long memory(String inputFile, String outputFile, Mode mode) {
+        if (mode == Mode.DECRYPT && CryptrHeader.isChunked(inputFile)) {
+            return CryptrChunkedCipher.memory(inputFile);
         }
+        // in-place operations are not mapped, see cipherFile()
+        return CryptrChannels.memory(new File(inputFile).length(), !isSameFile(inputFile, outputFile));
+    }
+
+    /**
+     * Creates the initialized cipher for an operation.
+     */
+    private static interface CipherSource {
+        Cipher get() throws GeneralSecurityException;
+    }
+
+    private static Cipher keyCipher(CryptrKey key, int cipherMode) throws GeneralSecurityException {
+        Cipher aesCipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        aesCipher.init(cipherMode, key.key, new IvParameterSpec(key.iv));
+        return aesCipher;
+    }
+
+    private static Cipher passwordCipher(SecretKey key, Mode mode) throws GeneralSecurityException {
+        Cipher aesCipher = Cipher.getInstance(ENCRYPTION_ALGORITHM);
+        aesCipher.init(mode == Mode.ENCRYPT ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key);
+        return aesCipher;
+    }
+
+    /**
+     * Passes an input file through a cipher into an output file with CryptrChannels. The
+     * output file is only replaced if the operation succeeds, and may be the same as the
+     * input file.
+     */
+    private static int cipherFile(String inputFile, String outputFile, CipherSource source) {
+        return cipherFile(inputFile, outputFile, source, null);
+    }
+
+    private static int cipherFile(String inputFile, String outputFile, CipherSource source, MessageDigest digest) {
+        CryptrProbe probe = CryptrProbe.start(listener, inputFile, new File(inputFile).length());
+        return probe.finish(cipherFile(inputFile, outputFile, source, digest, probe));
+    }
+
+    private static int cipherFile(String inputFile, String outputFile, CipherSource source, MessageDigest digest,
+            CryptrProbe probe) {
+        Cipher aesCipher;
+        FileChannel in;
 
         try {
-            KeySpec keySpec = new PBEKeySpec(password.toCharArray(), PEPPER, KDF_ITERATIONS, KEY_LENGTH);
-            SecretKey temp = SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(keySpec);
-            SecretKey key = new SecretKeySpec(temp.getEncoded(), ENCRYPTION_ALGORITHM);
+            in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            return 1;
+        }
 
-            Cipher aesCipher = Cipher.getInstance(ENCRYPTION_ALGORITHM);
-            aesCipher.init(cipherMode, key);
-            outputBytes = aesCipher.doFinal(inputBytes);
+        try (FileChannel input = in) {
+            try {
+                long start = probe.now();
+                aesCipher = source.get();
+                probe.stage(Stage.KDF, start);
+            }
+            catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                return -1;
+            }
+            catch (GeneralSecurityException e) {
+                return -2;
+            }
+
+            try (CryptrOutputFile output = CryptrOutputFile.open(outputFile)) {
+                // a mapped input cannot be replaced on some platforms, so in-place operations are not mapped
+                boolean map = !isSameFile(inputFile, outputFile);
+                int response = CryptrChannels.transfer(aesCipher, input, output.channel(), map, digest, probe);
+                if (response == 0) {
+                    output.commit();
+                }
+                return response;
+            }
+        }
+        catch (IOException e) {
+            return 2;
+        }
+    }
+
+    private static int cipherStream(InputStream in, OutputStream out, CipherSource source) {
+        CryptrProbe probe = CryptrProbe.start(listener, null, -1);
+        Cipher aesCipher;
+
+        try {
+            long start = probe.now();
+            aesCipher = source.get();
+            probe.stage(Stage.KDF, start);
         }
         catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            return -1;
+            return probe.finish(-1);
         }
-        catch (InvalidKeySpecException | InvalidKeyException | BadPaddingException
-                | IllegalBlockSizeException e) {
-            return -2;
+        catch (GeneralSecurityException e) {
+            return probe.finish(-2);
         }
 
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            fos.write(outputBytes);
+        return probe.finish(transfer(aesCipher, in, out, probe));
+    }
+
+    private static InputStream decryptingStream(String encryptedFile, CipherSource source)
+            throws IOException, GeneralSecurityException {
+        Cipher aesCipher = source.get();
+        return new DecryptingInputStream(new FileInputStream(encryptedFile), aesCipher);
+    }
+
+    private static boolean isSameFile(String file, String other) {
+        try {
+            return Files.exists(Paths.get(other)) && Files.isSameFile(Paths.get(file), Paths.get(other));
         }
         catch (IOException e) {
-            return 2;
+            return true;
+        }
+    }
+
+    /**
+     * Passes a stream through an initialized cipher using fixed-size buffers.
+     */
+    private static int transfer(Cipher cipher, InputStream in, OutputStream out, CryptrProbe probe) {
+        byte[] inputBuffer = new byte[BUFFER_SIZE];
+        byte[] outputBuffer = new byte[cipher.getOutputSize(BUFFER_SIZE)];
+        int length;
+
+        try {
+            long time = probe.now();
+            while (true) {
+                try {
+                    length = in.read(inputBuffer);
+                }
+                catch (IOException e) {
+                    return 1;
+                }
+                if (length < 0) {
+                    break;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return -3;
+                }
+                time = probe.stage(Stage.READ, time);
+
+                probe.bytes(length);
+                length = cipher.update(inputBuffer, 0, length, outputBuffer);
+                time = probe.stage(Stage.CIPHER, time);
+                try {
+                    out.write(outputBuffer, 0, length);
+                }
+                catch (IOException e) {
+                    return 2;
+                }
+                time = probe.stage(Stage.WRITE, time);
+            }
+
+            length = cipher.doFinal(outputBuffer, 0);
+            time = probe.stage(Stage.CIPHER, time);
+            try {
+                out.write(outputBuffer, 0, length);
+                out.flush();
+                probe.stage(Stage.WRITE, time);
+            }
+            catch (IOException e) {
+                return 2;
+            }
+        }
+        catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            return -2;
         }
 
         return 0;
     }
 
+    /**
+     * Passes a stream through an initialized cipher in fixed-size blocks as it is read. Unlike
+     * CipherInputStream, it decrypts large blocks at a time, and a final block which fails to
+     * decrypt makes the read throw an IOException.
+     */
+    private static class DecryptingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Cipher cipher;
+        private final byte[] input = new byte[BUFFER_SIZE];
+        private final byte[] output;
+        private int position = 0;
+        private int limit = 0;
+        private boolean finished = false;
+
+        DecryptingInputStream(InputStream in, Cipher cipher) {
+            this.in = in;
+            this.cipher = cipher;
+            this.output = new byte[cipher.getOutputSize(BUFFER_SIZE)];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (finished) {
+                    return -1;
+                }
+                fill();
+            }
+
+            int length = Math.min(len, limit - position);
+            System.arraycopy(output, position, b, off, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void fill() throws IOException {
+            int length = in.read(input);
+            try {
+                if (length < 0) {
+                    limit = cipher.doFinal(output, 0);
+                    finished = true;
+                }
+                else {
+                    limit = cipher.update(input, 0, length, output, 0);
+                }
+                position = 0;
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("failed to decrypt", e);
+            }
+        }
+
+    }
+
 }
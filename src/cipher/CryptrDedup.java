@@ -0,0 +1,523 @@
+package cipher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import metrics.CryptrProbe;
+
+/**
+ * CryptrDedup encrypts files into a content-addressed chunk store, so data which repeats
+ * across files, such as successive dumps or images of the same machine, is encrypted and
+ * stored only once.
+ *
+ * Input is split at content-defined boundaries found with a gear rolling hash, so inserting
+ * or removing bytes only changes the chunks around the edit, and the chunks after it line up
+ * with the stored ones again. Every chunk is encrypted with keyed convergent encryption: its
+ * key is an HMAC of its content under a secret derived from the master key of a keyring, and
+ * its address in the store is a hash of that key. Identical chunks get the same address, and
+ * a chunk which is already in the store is neither encrypted nor written again. Since the
+ * HMAC is keyed, only holders of the keyring can tell whether the store holds a given chunk,
+ * and stores of different keyrings never share chunks.
+ *
+ * For every file a small recipe is written, listing the key and length of each of its
+ * chunks. The recipe is encrypted with another key derived from the master key, and together
+ * with the store and the keyring it is all that is needed to restore the file. Chunks are
+ * committed before the recipe, so a recipe never refers to a missing chunk. Chunks are never
+ * removed from the store.
+ *
+ * Recipe layout: magic (4) | version (1) | nonce (12) | encrypted body | tag (16)
+ * Body: file length (8) | chunk count (4) | chunks: key (32) | length (4)
+ */
+public class CryptrDedup {
+
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+    public static final int AVERAGE_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    private static final byte[] MAGIC = {'C', 'R', 'Y', 'D'};
+    private static final int VERSION = 1;
+    private static final String CHUNK_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final String ADDRESS_ALGORITHM = "SHA-256";
+    private static final String CHUNK_PURPOSE = "cryptr dedup chunks";
+    private static final String RECIPE_PURPOSE = "cryptr dedup recipes";
+    private static final int KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + NONCE_LENGTH;
+    private static final int ENTRY_LENGTH = KEY_LENGTH + 4;
+    private static final int BUFFER_SIZE = 4 * MAX_CHUNK_SIZE;
+
+    // a boundary needs more zero bits before the average size and fewer after it, which keeps
+    // chunk sizes close to the average
+    private static final long MASK_SMALL = mask(Integer.numberOfTrailingZeros(AVERAGE_CHUNK_SIZE) + 1);
+    private static final long MASK_LARGE = mask(Integer.numberOfTrailingZeros(AVERAGE_CHUNK_SIZE) - 1);
+    private static final long[] GEAR = gear();
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path store;
+    private final SecretKey chunkSecret;
+    private final SecretKey recipeKey;
+
+    /**
+     * The outcome of encrypting a single file.
+     */
+    public static class Result {
+        public final int response;
+        public final int chunks;
+        public final int newChunks;
+        public final long bytesWritten;
+
+        Result(int response, int chunks, int newChunks, long bytesWritten) {
+            this.response = response;
+            this.chunks = chunks;
+            this.newChunks = newChunks;
+            this.bytesWritten = bytesWritten;
+        }
+
+        /**
+         * @return true iff the file was encrypted and its recipe was written
+         */
+        public boolean succeeded() {
+            return response == 0;
+        }
+    }
+
+    private CryptrDedup(Path store, byte[] chunkSecret, byte[] recipeKey) {
+        this.store = store;
+        this.chunkSecret = new SecretKeySpec(chunkSecret, HMAC_ALGORITHM);
+        this.recipeKey = new SecretKeySpec(recipeKey, CryptrCipher.ENCRYPTION_ALGORITHM);
+        Arrays.fill(chunkSecret, (byte) 0);
+        Arrays.fill(recipeKey, (byte) 0);
+    }
+
+    /**
+     * Opens a chunk store, creating its directory if it does not exist yet. The keys of the
+     * store are derived from the master key of the keyring, so the same keyring must be used
+     * every time the store is opened. The keyring itself is not modified.
+     *
+     * @param storeDir - directory holding the chunks
+     * @param keyring - keyring whose master key the chunks are scoped to
+     * @return the opened store
+     * @throws IOException if the store directory cannot be created
+     * @throws GeneralSecurityException if the keys cannot be derived
+     */
+    public static CryptrDedup open(String storeDir, CryptrKeyring keyring) throws IOException,
+            GeneralSecurityException {
+        Path store = Paths.get(storeDir);
+        Files.createDirectories(store);
+        return new CryptrDedup(store, keyring.deriveKey(CHUNK_PURPOSE), keyring.deriveKey(RECIPE_PURPOSE));
+    }
+
+    /**
+     * Encrypts a file into the store, writing only the chunks the store does not hold yet,
+     * and writes its recipe. Chunks are committed together once the whole file has been
+     * read, before the recipe is written. Only the recipe is staged in the sync group of the
+     * current thread if there is one, since committing that group later would not order the
+     * chunks before it.
+     *
+     * @param inputFile - path of the file to encrypt
+     * @param recipeFile - path to store the recipe
+     * @return the result, whose response is
+     *         -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading input file
+     *          2 on error writing a chunk or the recipe
+     */
+    public Result encrypt(String inputFile, String recipeFile) {
+        Mac mac;
+        Cipher cipher;
+        MessageDigest digest;
+
+        try {
+            mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(chunkSecret);
+            cipher = Cipher.getInstance(CHUNK_TRANSFORMATION);
+            digest = MessageDigest.getInstance(ADDRESS_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return new Result(-1, 0, 0, 0);
+        }
+        catch (GeneralSecurityException e) {
+            return new Result(-2, 0, 0, 0);
+        }
+
+        FileChannel in;
+        long size;
+
+        try {
+            in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+            size = in.size();
+        }
+        catch (IOException e) {
+            return new Result(1, 0, 0, 0);
+        }
+
+        CryptrProbe probe = CryptrProbe.start(CryptrCipher.listener(), inputFile, size);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(body);
+        Set<String> written = new HashSet<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int start = 0;
+        int limit = 0;
+        boolean eof = false;
+        int chunks = 0;
+        long length = 0;
+        long bytesWritten = 0;
+
+        // the chunks of this file are committed at once, before its recipe
+        CryptrSyncGroup group = new CryptrSyncGroup();
+
+        try (FileChannel input = in) {
+            while (true) {
+                if (!eof && limit - start < MAX_CHUNK_SIZE) {
+                    System.arraycopy(buffer, start, buffer, 0, limit - start);
+                    limit -= start;
+                    start = 0;
+                    try {
+                        while (limit < buffer.length && !eof) {
+                            int read = input.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+                            if (read < 0) {
+                                eof = true;
+                            }
+                            else {
+                                limit += read;
+                            }
+                        }
+                    }
+                    catch (ClosedByInterruptException e) {
+                        return new Result(probe.finish(-3), chunks, written.size(), bytesWritten);
+                    }
+                    catch (IOException e) {
+                        return new Result(probe.finish(1), chunks, written.size(), bytesWritten);
+                    }
+                }
+                if (start == limit) {
+                    break;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return new Result(probe.finish(-3), chunks, written.size(), bytesWritten);
+                }
+
+                int chunkLength = boundary(buffer, start, limit - start);
+                mac.update(buffer, start, chunkLength);
+                byte[] key = mac.doFinal();
+                String address = HexFormat.of().formatHex(digest.digest(key));
+                Path chunkFile = chunkFile(address);
+
+                // a chunk which repeats within the file is only written the first time
+                if (!written.contains(address) && !Files.exists(chunkFile)) {
+                    byte[] encrypted;
+                    try {
+                        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, CryptrCipher.ENCRYPTION_ALGORITHM),
+                                convergentParameters());
+                        encrypted = cipher.doFinal(buffer, start, chunkLength);
+                    }
+                    catch (GeneralSecurityException e) {
+                        return new Result(probe.finish(-2), chunks, written.size(), bytesWritten);
+                    }
+
+                    try {
+                        Files.createDirectories(chunkFile.getParent());
+                        try (CryptrOutputFile output = CryptrOutputFile.open(chunkFile.toString(), group)) {
+                            CryptrChunkedCipher.writeFully(output.channel(), ByteBuffer.wrap(encrypted), 0);
+                            output.commit();
+                        }
+                    }
+                    catch (IOException e) {
+                        int response = Thread.currentThread().isInterrupted() ? -3 : 2;
+                        return new Result(probe.finish(response), chunks, written.size(), bytesWritten);
+                    }
+                    written.add(address);
+                    bytesWritten += encrypted.length;
+                }
+
+                entries.write(key);
+                entries.writeInt(chunkLength);
+                Arrays.fill(key, (byte) 0);
+                probe.bytes(chunkLength);
+                start += chunkLength;
+                length += chunkLength;
+                chunks++;
+            }
+
+            if (!group.commit().isEmpty()) {
+                return new Result(probe.finish(2), chunks, written.size(), bytesWritten);
+            }
+
+            byte[] recipe;
+            try {
+                recipe = sealRecipe(length, chunks, body.toByteArray());
+            }
+            catch (GeneralSecurityException e) {
+                return new Result(probe.finish(-2), chunks, written.size(), bytesWritten);
+            }
+
+            try (CryptrOutputFile output = CryptrOutputFile.open(recipeFile)) {
+                CryptrChunkedCipher.writeFully(output.channel(), ByteBuffer.wrap(recipe), 0);
+                output.commit();
+            }
+            catch (IOException e) {
+                int response = Thread.currentThread().isInterrupted() ? -3 : 2;
+                return new Result(probe.finish(response), chunks, written.size(), bytesWritten);
+            }
+
+            return new Result(probe.finish(0), chunks, written.size(), bytesWritten + recipe.length);
+        }
+        catch (IOException e) {
+            return new Result(probe.finish(1), chunks, written.size(), bytesWritten);
+        }
+        finally {
+            // deletes the staged chunks if the file failed before they were committed
+            group.close();
+        }
+    }
+
+    /**
+     * Restores a file from its recipe and the chunks in the store.
+     *
+     * @param recipeFile - path of the recipe written during encryption
+     * @param outputFile - path to store the restored file
+     * @return -3 if the thread was interrupted
+     *         -2 on failure, including a wrong keyring or a modified recipe or chunk
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading the recipe or a chunk, including a missing chunk
+     *          2 on error writing output file
+     */
+    public int decrypt(String recipeFile, String outputFile) {
+        byte[] recipe;
+        Cipher cipher;
+
+        try {
+            recipe = Files.readAllBytes(Paths.get(recipeFile));
+            cipher = Cipher.getInstance(CHUNK_TRANSFORMATION);
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return -1;
+        }
+        catch (IOException e) {
+            return 1;
+        }
+
+        ByteBuffer body;
+        try {
+            body = ByteBuffer.wrap(openRecipe(recipe, cipher));
+        }
+        catch (GeneralSecurityException e) {
+            return -2;
+        }
+
+        long length = body.getLong();
+        int chunks = body.getInt();
+        if (chunks < 0 || body.remaining() != (long) chunks * ENTRY_LENGTH) {
+            return -2;
+        }
+
+        CryptrProbe probe = CryptrProbe.start(CryptrCipher.listener(), recipeFile, length);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ADDRESS_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            return probe.finish(-1);
+        }
+
+        try (CryptrOutputFile output = CryptrOutputFile.open(outputFile)) {
+            OutputStream out = output.stream();
+            long restored = 0;
+            byte[] key = new byte[KEY_LENGTH];
+
+            for (int i = 0; i < chunks; i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return probe.finish(-3);
+                }
+
+                body.get(key);
+                int chunkLength = body.getInt();
+                byte[] plain;
+                try {
+                    byte[] encrypted = Files.readAllBytes(chunkFile(HexFormat.of().formatHex(digest.digest(key))));
+                    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, CryptrCipher.ENCRYPTION_ALGORITHM),
+                            convergentParameters());
+                    plain = cipher.doFinal(encrypted);
+                }
+                catch (ClosedByInterruptException e) {
+                    return probe.finish(-3);
+                }
+                catch (NoSuchFileException e) {
+                    return probe.finish(1);
+                }
+                catch (IOException e) {
+                    return probe.finish(Thread.currentThread().isInterrupted() ? -3 : 1);
+                }
+                catch (GeneralSecurityException e) {
+                    return probe.finish(-2);
+                }
+                if (plain.length != chunkLength) {
+                    return probe.finish(-2);
+                }
+
+                out.write(plain);
+                probe.bytes(plain.length);
+                restored += plain.length;
+            }
+            Arrays.fill(key, (byte) 0);
+
+            if (restored != length) {
+                return probe.finish(-2);
+            }
+            output.commit();
+            return probe.finish(0);
+        }
+        catch (InterruptedIOException e) {
+            return probe.finish(-3);
+        }
+        catch (IOException e) {
+            return probe.finish(Thread.currentThread().isInterrupted() ? -3 : 2);
+        }
+    }
+
+    /**
+     * Finds the end of the chunk starting at offset with FastCDC. Bytes before the minimum
+     * size are skipped, and the gear hash, which depends only on the last 64 bytes, is rolled
+     * over the rest until its top bits are zero. Before the average size more bits must be
+     * zero than after it, which keeps chunk sizes close to the average.
+     *
+     * @param data - buffer holding the input
+     * @param offset - start of the chunk in data
+     * @param available - number of bytes from offset on, which is all the remaining input if
+     *                    it is less than the maximum chunk size
+     * @return the length of the chunk
+     */
+    static int boundary(byte[] data, int offset, int available) {
+        if (available <= MIN_CHUNK_SIZE) {
+            return available;
+        }
+
+        int end = Math.min(available, MAX_CHUNK_SIZE);
+        int normal = Math.min(end, AVERAGE_CHUNK_SIZE);
+        long hash = 0;
+        int i = MIN_CHUNK_SIZE;
+
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Chunks are spread over subdirectories by the first byte of their address, so no single
+     * directory grows too large.
+     */
+    private Path chunkFile(String address) {
+        return store.resolve(address.substring(0, 2)).resolve(address);
+    }
+
+    /**
+     * Every chunk key encrypts exactly one content, so a fixed nonce is never reused with a
+     * different plaintext, and identical chunks encrypt to identical stored files.
+     */
+    private static GCMParameterSpec convergentParameters() {
+        return new GCMParameterSpec(TAG_LENGTH * 8, new byte[NONCE_LENGTH]);
+    }
+
+    private byte[] sealRecipe(long length, int chunks, byte[] entries) throws GeneralSecurityException {
+        ByteBuffer body = ByteBuffer.allocate(8 + 4 + entries.length);
+        body.putLong(length);
+        body.putInt(chunks);
+        body.put(entries);
+        Arrays.fill(entries, (byte) 0);
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        ByteBuffer recipe = ByteBuffer.allocate(HEADER_LENGTH + body.capacity() + TAG_LENGTH);
+        recipe.put(MAGIC);
+        recipe.put((byte) VERSION);
+        recipe.put(nonce);
+
+        Cipher cipher = Cipher.getInstance(CHUNK_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, recipeKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(recipe.array(), 0, MAGIC.length + 1);
+        body.flip();
+        cipher.doFinal(body, recipe);
+        Arrays.fill(body.array(), (byte) 0);
+        return recipe.array();
+    }
+
+    private byte[] openRecipe(byte[] recipe, Cipher cipher) throws GeneralSecurityException {
+        if (recipe.length < HEADER_LENGTH + 8 + 4 + TAG_LENGTH
+                || !Arrays.equals(recipe, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                || recipe[MAGIC.length] != VERSION) {
+            throw new GeneralSecurityException("not a recipe");
+        }
+
+        cipher.init(Cipher.DECRYPT_MODE, recipeKey,
+                new GCMParameterSpec(TAG_LENGTH * 8, recipe, MAGIC.length + 1, NONCE_LENGTH));
+        cipher.updateAAD(recipe, 0, MAGIC.length + 1);
+        return cipher.doFinal(recipe, HEADER_LENGTH, recipe.length - HEADER_LENGTH);
+    }
+
+    /**
+     * @return a mask of the given number of top bits, which depend on the most input bytes
+     */
+    private static long mask(int bits) {
+        return -1L << (Long.SIZE - bits);
+    }
+
+    /**
+     * Fills the gear table with SplitMix64 from a fixed seed. The table decides where chunks
+     * end, so it must never change, or files would no longer share chunks with those stored
+     * before the change.
+     */
+    private static long[] gear() {
+        long[] gear = new long[256];
+        long state = 0x4352594444454455L;
+        for (int i = 0; i < gear.length; i++) {
+            long z = state += 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            gear[i] = z ^ (z >>> 31);
+        }
+        return gear;
+    }
+
+}
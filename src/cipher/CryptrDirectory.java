@@ -0,0 +1,300 @@
+package cipher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * CryptrDirectory incrementally encrypts a directory tree into a target directory with the
+ * same layout. A manifest in the target directory records the size, modification time and
+ * SHA-256 hash of every file when it was encrypted, and the hash is computed during the
+ * encryption pass itself, so files are only read once.
+ *
+ * On later runs, files whose size and modification time match the manifest are skipped
+ * without being read. Files with a new modification time but the same size are hashed, and
+ * only re-encrypted if their content changed. The cost of a run therefore follows the size of
+ * the change rather than the size of the tree.
+ *
+ * Files which were removed from the source are dropped from the manifest, but their
+ * encrypted copies are left in the target directory.
+ */
+public class CryptrDirectory {
+
+    public static final String MANIFEST_NAME = "cryptr.manifest";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Creates the job which encrypts a file, hashing it into the given digest.
+     */
+    private static interface JobSource {
+        CryptrJob create(String inputFile, String outputFile, String fileId, MessageDigest digest);
+    }
+
+    /**
+     * Stores the keys of the encrypted files before the manifest is written.
+     */
+    private static interface KeyStore {
+        void save() throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * The outcome of encrypting a directory.
+     */
+    public static class Result {
+        public final int response;
+        public final int encrypted;
+        public final int unchanged;
+        public final int removed;
+        public final List<String> failed;
+
+        Result(int response, int encrypted, int unchanged, int removed, List<String> failed) {
+            this.response = response;
+            this.encrypted = encrypted;
+            this.unchanged = unchanged;
+            this.removed = removed;
+            this.failed = failed;
+        }
+
+        /**
+         * @return true iff every changed file was encrypted and the manifest was saved
+         */
+        public boolean succeeded() {
+            return response == 0;
+        }
+    }
+
+    /**
+     * Encrypts the changed files of a directory tree with key-based AES-256 encryption. The
+     * key of every file is stored in the keyring under the file's path relative to sourceDir,
+     * and the keyring is saved before the manifest.
+     *
+     * @param sourceDir - directory to encrypt
+     * @param targetDir - directory to store the encrypted files and the manifest in, which must
+     *                    not be or contain sourceDir
+     * @param keyring - keyring to store the keys in
+     * @return the result, whose response is
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading the source directory or the manifest
+     *          2 on error writing the manifest
+     *          3 on error saving the keyring
+     *         else the response of the first file which failed to encrypt, which is -3 if the
+     *         thread was interrupted
+     */
+    public static Result encryptWithKeyring(String sourceDir, String targetDir, CryptrKeyring keyring) {
+        return encrypt(sourceDir, targetDir,
+                (in, out, fileId, digest) -> CryptrJob.encryptWithKeyring(in, out, keyring, fileId, digest),
+                keyring::save);
+    }
+
+    /**
+     * Encrypts the changed files of a directory tree using password-based AES-256 with the
+     * password of a session.
+     *
+     * @param sourceDir - directory to encrypt
+     * @param targetDir - directory to store the encrypted files and the manifest in, which must
+     *                    not be or contain sourceDir
+     * @param session - session holding the password
+     * @return the result, whose response is
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading the source directory or the manifest
+     *          2 on error writing the manifest
+     *         else the response of the first file which failed to encrypt, which is -3 if the
+     *         thread was interrupted
+     */
+    public static Result encryptWithSession(String sourceDir, String targetDir, CryptrSession session) {
+        return encrypt(sourceDir, targetDir, (in, out, fileId, digest) -> CryptrJob.cipherWithSession(in, out,
+                session, CryptrCipher.Mode.ENCRYPT, digest), () -> {});
+    }
+
+    /**
+     * Encrypts the changed files of a directory. The encrypted files are only moved in place
+     * and the manifest is only written once the keys of the encrypted files have been stored,
+     * so neither refers to a file whose key was lost.
+     */
+    private static Result encrypt(String sourceDir, String targetDir, JobSource jobSource, KeyStore keyStore) {
+        Path source = Paths.get(sourceDir).toAbsolutePath().normalize();
+        Path target = Paths.get(targetDir).toAbsolutePath().normalize();
+        Path manifestFile = target.resolve(MANIFEST_NAME);
+        CryptrManifest manifest;
+        List<Path> files;
+
+        // the target may be inside the source, which is skipped while walking, but not around it
+        if (source.startsWith(target)) {
+            return new Result(-2, 0, 0, 0, new ArrayList<>());
+        }
+
+        try {
+            manifest = CryptrManifest.read(manifestFile);
+            try (Stream<Path> walk = Files.walk(source)) {
+                files = walk.filter(path -> !path.startsWith(target) && Files.isRegularFile(path))
+                        .collect(Collectors.toList());
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            return new Result(1, 0, 0, 0, new ArrayList<>());
+        }
+
+        List<CryptrJob> jobs = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        List<MessageDigest> digests = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        List<String> failed = new ArrayList<>();
+        int unchanged = 0;
+
+        for (Path file : files) {
+            String id = source.relativize(file).toString().replace(File.separatorChar, '/');
+            Path output = target.resolve(source.relativize(file));
+            seen.add(id);
+
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+            catch (IOException e) {
+                failed.add(id);
+                continue;
+            }
+
+            CryptrManifest.Entry entry = manifest.get(id);
+            if (entry != null && entry.size == attrs.size() && Files.exists(output)) {
+                if (entry.modified == attrs.lastModifiedTime().toMillis()) {
+                    unchanged++;
+                    continue;
+                }
+
+                // only the modification time changed, so check whether the content did too
+                byte[] hash;
+                try {
+                    hash = hash(file);
+                }
+                catch (NoSuchAlgorithmException e) {
+                    return new Result(-1, 0, unchanged, 0, failed);
+                }
+                catch (IOException e) {
+                    failed.add(id);
+                    continue;
+                }
+                if (Arrays.equals(hash, entry.hash)) {
+                    manifest.put(id, new CryptrManifest.Entry(entry.size, attrs.lastModifiedTime().toMillis(), hash));
+                    unchanged++;
+                    continue;
+                }
+            }
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance(CryptrManifest.HASH_ALGORITHM);
+                Files.createDirectories(output.getParent());
+            }
+            catch (NoSuchAlgorithmException e) {
+                return new Result(-1, 0, unchanged, 0, failed);
+            }
+            catch (IOException e) {
+                failed.add(id);
+                continue;
+            }
+
+            jobs.add(jobSource.create(file.toString(), output.toString(), id, digest));
+            ids.add(id);
+            attributes.add(attrs);
+            digests.add(digest);
+        }
+
+        int response = failed.isEmpty() ? 0 : 1;
+        int encrypted = 0;
+
+        try (CryptrBatch batch = new CryptrBatch(); CryptrSyncGroup group = new CryptrSyncGroup()) {
+            List<CryptrBatch.Result> results = batch.run(jobs, result -> { }, group);
+
+            // the files encrypted before a cancel still need their keys and manifest entries, so an
+            // interrupt is held back until both are written
+            boolean interrupted = Thread.interrupted();
+            try {
+                // the keys are stored before the encrypted files are moved in place, so a crash
+                // never leaves an encrypted file whose key was lost
+                if (results.stream().anyMatch(CryptrBatch.Result::succeeded)) {
+                    try {
+                        keyStore.save();
+                    }
+                    catch (IOException | GeneralSecurityException e) {
+                        return new Result(3, 0, unchanged, 0, failed);
+                    }
+                }
+                results = CryptrBatch.commit(results, group);
+
+                for (int i = 0; i < results.size(); i++) {
+                    CryptrBatch.Result result = results.get(i);
+                    if (result.succeeded()) {
+                        BasicFileAttributes attrs = attributes.get(i);
+                        manifest.put(ids.get(i), new CryptrManifest.Entry(attrs.size(),
+                                attrs.lastModifiedTime().toMillis(), digests.get(i).digest()));
+                        encrypted++;
+                    }
+                    else {
+                        failed.add(ids.get(i));
+                        if (response == 0) {
+                            response = result.response;
+                        }
+                    }
+                }
+
+                int removed = 0;
+                for (String id : new ArrayList<>(manifest.paths())) {
+                    if (!seen.contains(id)) {
+                        manifest.remove(id);
+                        removed++;
+                    }
+                }
+
+                try {
+                    manifest.write(manifestFile);
+                }
+                catch (IOException e) {
+                    return new Result(2, encrypted, unchanged, removed, failed);
+                }
+
+                return new Result(response, encrypted, unchanged, removed, failed);
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static byte[] hash(Path file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(CryptrManifest.HASH_ALGORITHM);
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try (InputStream in = Files.newInputStream(file)) {
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
+        }
+
+        return digest.digest();
+    }
+
+}
@@ -0,0 +1,163 @@
+package cipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * CryptrHeader is the header at the start of a file in the chunked format. It records how
+ * the file was encrypted, and is authenticated along with every chunk of the file.
+ *
+ * Layout of version 2:
+ * magic (4) | version (1) | key type (1) | algorithm (1) | KDF (1) | KDF iterations (4) | chunk size (4) |
+ * salt (16) | nonce prefix (8)
+ *
+ * Version 1 has no algorithm and KDF fields, and its files are always AES-GCM with the default
+ * PBKDF2 parameters. Headers read from a file are encoded in the version they were read in, so
+ * old files still authenticate and never need to be migrated.
+ */
+class CryptrHeader {
+
+    static final byte[] MAGIC = {'C', 'R', 'Y', 'C'};
+    static final int VERSION_1 = 1;
+    static final int VERSION = 2;
+    static final int KEY_TYPE_KEY = 0;
+    static final int KEY_TYPE_PASSWORD = 1;
+    static final int KDF_PBKDF2_SHA256 = 0;
+    // the header is not authenticated until a key has been derived from it, so a forged count
+    // must not cost much more than the count files are written with
+    static final int MAX_KDF_ITERATIONS = 4 * CryptrCipher.KDF_ITERATIONS;
+    static final int SALT_LENGTH = 16;
+    static final int NONCE_PREFIX_LENGTH = 8;
+    static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    static final int LENGTH_1 = MAGIC.length + 1 + 1 + 4 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+    static final int LENGTH = LENGTH_1 + 1 + 1 + 4;
+
+    final int version;
+    final int keyType;
+    final CryptrAlgorithm algorithm;
+    final int kdf;
+    final int kdfIterations;
+    final int chunkSize;
+    final byte[] salt;
+    final byte[] noncePrefix;
+
+    /**
+     * Creates a header of the current version.
+     */
+    CryptrHeader(int keyType, CryptrAlgorithm algorithm, int kdfIterations, int chunkSize, byte[] salt,
+            byte[] noncePrefix) {
+        this(VERSION, keyType, algorithm, KDF_PBKDF2_SHA256, kdfIterations, chunkSize, salt, noncePrefix);
+    }
+
+    private CryptrHeader(int version, int keyType, CryptrAlgorithm algorithm, int kdf, int kdfIterations,
+            int chunkSize, byte[] salt, byte[] noncePrefix) {
+        this.version = version;
+        this.keyType = keyType;
+        this.algorithm = algorithm;
+        this.kdf = kdf;
+        this.kdfIterations = kdfIterations;
+        this.chunkSize = chunkSize;
+        this.salt = salt;
+        this.noncePrefix = noncePrefix;
+    }
+
+    /**
+     * @return the length of the header in its stored form, where the first chunk starts
+     */
+    int length() {
+        return version == VERSION_1 ? LENGTH_1 : LENGTH;
+    }
+
+    /**
+     * @return the header in its stored form
+     */
+    byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(length());
+        buffer.put(MAGIC);
+        buffer.put((byte) version);
+        buffer.put((byte) keyType);
+        if (version != VERSION_1) {
+            buffer.put((byte) algorithm.id);
+            buffer.put((byte) kdf);
+            buffer.putInt(kdfIterations);
+        }
+        buffer.putInt(chunkSize);
+        buffer.put(salt);
+        buffer.put(noncePrefix);
+        return buffer.array();
+    }
+
+    /**
+     * Reads the header at the start of a file.
+     *
+     * @param channel - channel of the file to read
+     * @return the header, or null if the file does not start with a valid header
+     * @throws IOException on error reading the file
+     */
+    static CryptrHeader read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+        buffer.limit(MAGIC.length + 1);
+        if (!CryptrChunkedCipher.readFully(channel, buffer, 0)) {
+            return null;
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.flip();
+        buffer.get(magic);
+        int version = buffer.get();
+        if (!Arrays.equals(magic, MAGIC) || (version != VERSION_1 && version != VERSION)) {
+            return null;
+        }
+
+        buffer.limit(version == VERSION_1 ? LENGTH_1 : LENGTH);
+        if (!CryptrChunkedCipher.readFully(channel, buffer, buffer.position())) {
+            return null;
+        }
+        buffer.position(MAGIC.length + 1);
+
+        int keyType = buffer.get();
+        CryptrAlgorithm algorithm = CryptrAlgorithm.AES_GCM;
+        int kdf = KDF_PBKDF2_SHA256;
+        int kdfIterations = CryptrCipher.KDF_ITERATIONS;
+        if (version != VERSION_1) {
+            algorithm = CryptrAlgorithm.of(buffer.get());
+            kdf = buffer.get();
+            kdfIterations = buffer.getInt();
+        }
+        int chunkSize = buffer.getInt();
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        buffer.get(salt);
+        buffer.get(noncePrefix);
+
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || (keyType != KEY_TYPE_KEY && keyType != KEY_TYPE_PASSWORD)
+                || algorithm == null || kdf != KDF_PBKDF2_SHA256
+                || kdfIterations <= 0 || kdfIterations > MAX_KDF_ITERATIONS) {
+            return null;
+        }
+
+        return new CryptrHeader(version, keyType, algorithm, kdf, kdfIterations, chunkSize, salt, noncePrefix);
+    }
+
+    /**
+     * Checks whether a file is in the chunked format, rather than the headerless format of
+     * CryptrCipher. A headerless file starts with ciphertext, which passes the checks on the
+     * header only with negligible probability.
+     *
+     * @param file - path of the file to check
+     * @return true iff the file starts with a valid header, false if it does not or cannot be read
+     */
+    static boolean isChunked(String file) {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            return read(channel) != null;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+}
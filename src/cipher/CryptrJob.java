@@ -0,0 +1,158 @@
+package cipher;
+
+import java.security.MessageDigest;
+
+/**
+ * CryptrJob describes the encryption or decryption of a single file, to be run as part of a
+ * CryptrBatch.
+ */
+public class CryptrJob {
+
+    public final String inputFile;
+    public final String outputFile;
+    private final Operation operation;
+    private final MemoryEstimate estimate;
+    private volatile long memory = -1;
+
+    /**
+     * Performs the operation of a job and returns its return code.
+     */
+    public static interface Operation {
+        int run(String inputFile, String outputFile);
+    }
+
+    /**
+     * Estimates the memory the operation of a job holds while it runs.
+     */
+    private static interface MemoryEstimate {
+        long memory(String inputFile, String outputFile);
+    }
+
+    private CryptrJob(String inputFile, String outputFile, Operation operation, MemoryEstimate estimate) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.operation = operation;
+        this.estimate = estimate;
+    }
+
+    private CryptrJob(String inputFile, String outputFile, Operation operation, CryptrCipher.Mode mode) {
+        this(inputFile, outputFile, operation, (in, out) -> CryptrCipher.memory(in, out, mode));
+    }
+
+    /**
+     * Creates a job which runs an arbitrary operation, such as compressing files, which
+     * CryptrBatch schedules as holding the given amount of memory.
+     *
+     * @param inputFile - the file the job reads, or null if there is no single one
+     * @param outputFile - the file the job writes
+     * @param memory - the memory in bytes the operation holds while it runs
+     * @param operation - the operation, called with inputFile and outputFile
+     */
+    public static CryptrJob of(String inputFile, String outputFile, long memory, Operation operation) {
+        return new CryptrJob(inputFile, outputFile, operation, (in, out) -> memory);
+    }
+
+    /**
+     * Creates a job which encrypts a file with key-based AES-256 encryption.
+     *
+     * @see CryptrCipher#encryptWithKey(String, String, String)
+     */
+    public static CryptrJob encryptWithKey(String inputFile, String outputFile, String keyFile) {
+        return new CryptrJob(inputFile, outputFile, (in, out) -> CryptrCipher.encryptWithKey(in, out, keyFile),
+                CryptrCipher.Mode.ENCRYPT);
+    }
+
+    /**
+     * Creates a job which decrypts a file with key-based AES-256 decryption.
+     *
+     * @see CryptrCipher#decryptWithKey(String, String, String)
+     */
+    public static CryptrJob decryptWithKey(String encryptedFile, String outputFile, String keyFile) {
+        return new CryptrJob(encryptedFile, outputFile, (in, out) -> CryptrCipher.decryptWithKey(in, out, keyFile),
+                CryptrCipher.Mode.DECRYPT);
+    }
+
+    /**
+     * Creates a job which encrypts a file with key-based AES-256 encryption, storing the key
+     * in a keyring.
+     *
+     * @see CryptrCipher#encryptWithKeyring(String, String, CryptrKeyring, String)
+     */
+    public static CryptrJob encryptWithKeyring(String inputFile, String outputFile, CryptrKeyring keyring,
+            String fileId) {
+        return new CryptrJob(inputFile, outputFile,
+                (in, out) -> CryptrCipher.encryptWithKeyring(in, out, keyring, fileId), CryptrCipher.Mode.ENCRYPT);
+    }
+
+    /**
+     * Creates a job which encrypts a file with key-based AES-256 encryption, storing the key
+     * in a keyring and hashing the file as it is encrypted.
+     *
+     * @see CryptrCipher#encryptWithKeyring(String, String, CryptrKeyring, String, MessageDigest)
+     */
+    public static CryptrJob encryptWithKeyring(String inputFile, String outputFile, CryptrKeyring keyring,
+            String fileId, MessageDigest digest) {
+        return new CryptrJob(inputFile, outputFile,
+                (in, out) -> CryptrCipher.encryptWithKeyring(in, out, keyring, fileId, digest),
+                CryptrCipher.Mode.ENCRYPT);
+    }
+
+    /**
+     * Creates a job which decrypts a file with key-based AES-256 decryption, using a key from a
+     * keyring.
+     *
+     * @see CryptrCipher#decryptWithKeyring(String, String, CryptrKeyring, String)
+     */
+    public static CryptrJob decryptWithKeyring(String encryptedFile, String outputFile, CryptrKeyring keyring,
+            String fileId) {
+        return new CryptrJob(encryptedFile, outputFile,
+                (in, out) -> CryptrCipher.decryptWithKeyring(in, out, keyring, fileId), CryptrCipher.Mode.DECRYPT);
+    }
+
+    /**
+     * Creates a job which encrypts or decrypts a file using password-based AES-256 with the
+     * password of a session.
+     *
+     * @see CryptrCipher#cipherWithSession(String, String, CryptrSession, CryptrCipher.Mode)
+     */
+    public static CryptrJob cipherWithSession(String inputFile, String outputFile, CryptrSession session,
+            CryptrCipher.Mode mode) {
+        return new CryptrJob(inputFile, outputFile,
+                (in, out) -> CryptrCipher.cipherWithSession(in, out, session, mode), mode);
+    }
+
+    /**
+     * Creates a job which encrypts or decrypts a file using password-based AES-256 with the
+     * password of a session, hashing the input file as it is processed.
+     *
+     * @see CryptrCipher#cipherWithSession(String, String, CryptrSession, CryptrCipher.Mode, MessageDigest)
+     */
+    public static CryptrJob cipherWithSession(String inputFile, String outputFile, CryptrSession session,
+            CryptrCipher.Mode mode, MessageDigest digest) {
+        return new CryptrJob(inputFile, outputFile,
+                (in, out) -> CryptrCipher.cipherWithSession(in, out, session, mode, digest), mode);
+    }
+
+    /**
+     * Estimates the memory this job holds while it runs, which CryptrBatch admits jobs by.
+     * The estimate is made the first time it is asked for, once the input file exists.
+     *
+     * @return the estimate in bytes
+     */
+    public long memory() {
+        if (memory < 0) {
+            memory = Math.max(0, estimate.memory(inputFile, outputFile));
+        }
+        return memory;
+    }
+
+    /**
+     * Runs this job on the calling thread.
+     *
+     * @return the return code of the underlying CryptrCipher operation
+     */
+    public int run() {
+        return operation.run(inputFile, outputFile);
+    }
+
+}
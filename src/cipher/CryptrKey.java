@@ -12,6 +12,7 @@ import javax.crypto.SecretKey;
 public class CryptrKey implements Serializable {
 
     private static final long serialVersionUID = -5722145353306525208L;
+    private static final SecureRandom RANDOM = new SecureRandom();
     public SecretKey key;
     public byte[] iv;
 
@@ -23,9 +24,19 @@ public class CryptrKey implements Serializable {
      */
     public CryptrKey(SecretKey key) {
         this.key = key;
-        SecureRandom random = new SecureRandom();
         iv = new byte[16];
-        random.nextBytes(iv);
+        RANDOM.nextBytes(iv);
+    }
+
+    /**
+     * Creates a new CryptrKey with the given SecretKey and initialization vector.
+     *
+     * @param key - SecretKey to store in this CryptrKey
+     * @param iv - initialization vector to store in this CryptrKey
+     */
+    public CryptrKey(SecretKey key, byte[] iv) {
+        this.key = key;
+        this.iv = iv;
     }
 
 }
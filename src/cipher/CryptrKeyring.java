@@ -0,0 +1,444 @@
+package cipher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CryptrKeyring stores the keys of many files in a single file, using envelope encryption:
+ * the key of every file is wrapped with AES-GCM under one master key, and only the master key
+ * needs to be kept separately.
+ *
+ * The keyring is a compact binary file with fixed-size records sorted by a hash of the file
+ * ID. It is memory-mapped when opened, and a key is found by binary search without reading
+ * the rest of the keyring, so decrypting a large batch opens one file instead of one key file
+ * per encrypted file.
+ *
+ * Layout: magic (4) | version (1) | record count (4) | check nonce (12) | check tag (16)
+ *         followed by records: ID hash (16) | nonce (12) | wrapped key and iv (32 + 16 + 16)
+ */
+public class CryptrKeyring implements Closeable {
+
+    private static final byte[] MAGIC = {'C', 'R', 'K', 'R'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + 12 + 16;
+    private static final int ID_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 16;
+    private static final int RECORD_LENGTH = ID_LENGTH + NONCE_LENGTH + KEY_LENGTH + IV_LENGTH + TAG_LENGTH;
+    // the records are mapped into one buffer, which is addressed with int indexes
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+    private static final String WRAP_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte[] CHECK_AAD = "cryptr keyring".getBytes(StandardCharsets.UTF_8);
+
+    private static final String ID_ALGORITHM = "SHA-256";
+    private static final String DERIVE_ALGORITHM = "HmacSHA256";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path path;
+    private final SecretKey masterKey;
+    private final TreeMap<byte[], byte[]> pending = new TreeMap<>(Arrays::compareUnsigned);
+    private FileChannel channel;
+    private MappedByteBuffer records;
+    private int count;
+
+    /**
+     * Holds the objects needed to wrap and unwrap keys, so a thread which stores or looks up
+     * many keys can create them once and reuse them.
+     */
+    static class Wrapper {
+        final Cipher cipher;
+        final MessageDigest digest;
+        final SecureRandom random;
+
+        Wrapper(SecureRandom random) throws GeneralSecurityException {
+            this.cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+            this.digest = MessageDigest.getInstance(ID_ALGORITHM);
+            this.random = random;
+        }
+    }
+
+    private CryptrKeyring(Path path, SecretKey masterKey) {
+        this.path = path;
+        this.masterKey = masterKey;
+    }
+
+    /**
+     * Opens a keyring, or creates an empty one if the file does not exist yet. A new keyring
+     * is only written to disk by save().
+     *
+     * @param keyringFile - path of the keyring
+     * @param masterKey - key the file keys are wrapped with
+     * @return the opened keyring
+     * @throws IOException on error reading the keyring, or if it is not a keyring
+     * @throws GeneralSecurityException if the keyring was created with a different master key
+     */
+    public static CryptrKeyring open(String keyringFile, SecretKey masterKey)
+            throws IOException, GeneralSecurityException {
+        CryptrKeyring keyring = new CryptrKeyring(Paths.get(keyringFile), masterKey);
+        if (Files.exists(keyring.path)) {
+            keyring.map();
+        }
+        return keyring;
+    }
+
+    /**
+     * Opens a keyring together with its master key file, generating and storing a new master
+     * key if the master key file does not exist yet.
+     *
+     * @param keyringFile - path of the keyring
+     * @param masterKeyFile - path of the key file holding the master key
+     * @return the opened keyring
+     * @throws IOException on error reading the keyring or reading/writing the master key file
+     * @throws GeneralSecurityException if the master key does not belong to the keyring
+     */
+    public static CryptrKeyring open(String keyringFile, String masterKeyFile)
+            throws IOException, GeneralSecurityException {
+        CryptrKey master;
+
+        if (Files.exists(Paths.get(masterKeyFile))) {
+            try {
+                master = CryptrCipher.readKeyFile(masterKeyFile);
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException("invalid master key file", e);
+            }
+        }
+        else {
+            master = CryptrCipher.generateKey();
+            CryptrCipher.writeKeyFile(master, masterKeyFile);
+        }
+
+        return open(keyringFile, master.key);
+    }
+
+    /**
+     * Checks whether a file is a keyring, by its magic and version rather than its name.
+     *
+     * @param file - path of the file to check
+     * @return true iff the file starts like a keyring, false if it does not or cannot be read
+     */
+    public static boolean isKeyring(String file) {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1);
+            if (!CryptrChunkedCipher.readFully(channel, header, 0)) {
+                return false;
+            }
+            return Arrays.equals(Arrays.copyOf(header.array(), MAGIC.length), MAGIC)
+                    && header.get(MAGIC.length) == VERSION;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Looks up the key of a file.
+     *
+     * @param fileId - ID the key was stored under
+     * @return the key, or null if the keyring holds no key for the file
+     * @throws GeneralSecurityException if the stored key cannot be unwrapped
+     */
+    public CryptrKey get(String fileId) throws GeneralSecurityException {
+        return get(fileId, new Wrapper(RANDOM));
+    }
+
+    /**
+     * Looks up the key of a file, unwrapping it with the given wrapper. Only the lookup holds
+     * the lock of the keyring.
+     */
+    CryptrKey get(String fileId, Wrapper wrapper) throws GeneralSecurityException {
+        byte[] id = hash(fileId, wrapper.digest);
+        byte[] record = record(id);
+        if (record == null) {
+            return null;
+        }
+
+        Cipher cipher = wrapper.cipher;
+        cipher.init(Cipher.DECRYPT_MODE, masterKey,
+                new GCMParameterSpec(TAG_LENGTH * 8, record, ID_LENGTH, NONCE_LENGTH));
+        cipher.updateAAD(id);
+        byte[] unwrapped = cipher.doFinal(record, ID_LENGTH + NONCE_LENGTH, RECORD_LENGTH - ID_LENGTH - NONCE_LENGTH);
+
+        SecretKey key = new SecretKeySpec(unwrapped, 0, KEY_LENGTH, "AES");
+        byte[] iv = Arrays.copyOfRange(unwrapped, KEY_LENGTH, KEY_LENGTH + IV_LENGTH);
+        Arrays.fill(unwrapped, (byte) 0);
+        return new CryptrKey(key, iv);
+    }
+
+    /**
+     * Stores the key of a file, replacing any key already stored under the same ID. The key
+     * is kept in memory until save() is called.
+     *
+     * @param fileId - ID to store the key under
+     * @param key - key to store
+     * @throws GeneralSecurityException if the key cannot be wrapped
+     */
+    public void put(String fileId, CryptrKey key) throws GeneralSecurityException {
+        put(fileId, key, new Wrapper(RANDOM));
+    }
+
+    /**
+     * Stores the key of a file, wrapping it with the given wrapper. Only adding the wrapped
+     * key holds the lock of the keyring.
+     */
+    void put(String fileId, CryptrKey key, Wrapper wrapper) throws GeneralSecurityException {
+        add(wrap(fileId, key, wrapper));
+    }
+
+    /**
+     * Wraps the key of a file into a record for add().
+     *
+     * @see #wrap(String, CryptrKey, Wrapper)
+     */
+    byte[] wrap(String fileId, CryptrKey key) throws GeneralSecurityException {
+        return wrap(fileId, key, new Wrapper(RANDOM));
+    }
+
+    /**
+     * Wraps the key of a file into a record for add(). Wrapping can fail but adding cannot, so
+     * a file encrypted in place is only replaced once its key is sure to be stored.
+     *
+     * @return the record
+     * @throws GeneralSecurityException if the key cannot be wrapped
+     */
+    byte[] wrap(String fileId, CryptrKey key, Wrapper wrapper) throws GeneralSecurityException {
+        byte[] id = hash(fileId, wrapper.digest);
+        byte[] record = new byte[RECORD_LENGTH];
+        byte[] plain = new byte[KEY_LENGTH + IV_LENGTH];
+        System.arraycopy(id, 0, record, 0, ID_LENGTH);
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        wrapper.random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, record, ID_LENGTH, NONCE_LENGTH);
+
+        byte[] encoded = key.key.getEncoded();
+        System.arraycopy(encoded, 0, plain, 0, KEY_LENGTH);
+        System.arraycopy(key.iv, 0, plain, KEY_LENGTH, IV_LENGTH);
+
+        Cipher cipher = wrapper.cipher;
+        cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(id);
+        cipher.doFinal(plain, 0, plain.length, record, ID_LENGTH + NONCE_LENGTH);
+        Arrays.fill(plain, (byte) 0);
+        Arrays.fill(encoded, (byte) 0);
+        return record;
+    }
+
+    /**
+     * Stores a record from wrap(), replacing any key stored under the same ID.
+     */
+    synchronized void add(byte[] record) {
+        pending.put(Arrays.copyOf(record, ID_LENGTH), record);
+    }
+
+    /**
+     * Derives a key for another purpose from the master key, so data which belongs to the
+     * keyring can be protected without storing another key. The same purpose always gives
+     * the same key, and different purposes give unrelated keys.
+     *
+     * @param purpose - what the key is used for
+     * @return the derived key, as raw bytes for any algorithm which takes a 256-bit key
+     * @throws GeneralSecurityException if the master key cannot be used
+     */
+    byte[] deriveKey(String purpose) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(DERIVE_ALGORITHM);
+        mac.init(masterKey);
+        return mac.doFinal(purpose.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the number of keys in the keyring, including keys which have not been saved
+     */
+    public synchronized int size() {
+        int size = count;
+        for (byte[] id : pending.keySet()) {
+            if (find(id) == null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes the keyring with all stored keys to disk, replacing the previous keyring file.
+     *
+     * @throws IOException on error writing the keyring
+     * @throws GeneralSecurityException if the master key cannot be used
+     */
+    public synchronized void save() throws IOException, GeneralSecurityException {
+        TreeMap<byte[], byte[]> all = new TreeMap<>(Arrays::compareUnsigned);
+        for (int i = 0; i < count; i++) {
+            byte[] record = new byte[RECORD_LENGTH];
+            records.get((int) (HEADER_LENGTH + (long) i * RECORD_LENGTH), record);
+            all.put(Arrays.copyOf(record, ID_LENGTH), record);
+        }
+        all.putAll(pending);
+
+        long size = HEADER_LENGTH + (long) all.size() * RECORD_LENGTH;
+        if (size > MAX_SIZE) {
+            throw new IOException("too many keys for one keyring: " + all.size());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.putInt(all.size());
+        buffer.put(check());
+        for (byte[] record : all.values()) {
+            buffer.put(record);
+        }
+        buffer.flip();
+
+        // the old keyring stays mapped until the new one is in place and mapped, so a failed
+        // save leaves every saved key readable and the pending keys to be saved again
+        try (CryptrOutputFile output = CryptrOutputFile.open(path.toString())) {
+            CryptrChunkedCipher.writeFully(output.channel(), buffer, 0);
+            output.commitNow();
+        }
+        map();
+        pending.clear();
+    }
+
+    /**
+     * Closes the keyring file. Keys which have not been saved are kept and can still be saved.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            records = null;
+            count = 0;
+        }
+    }
+
+    /**
+     * Maps the keyring file, replacing the previous mapping only once the file has been
+     * checked, so a keyring which fails to map keeps its previous keys.
+     */
+    private void map() throws IOException, GeneralSecurityException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        boolean mapped = false;
+
+        try {
+            long size = file.size();
+            if (size < HEADER_LENGTH || size > MAX_SIZE || (size - HEADER_LENGTH) % RECORD_LENGTH != 0) {
+                throw new IOException("not a keyring: " + path);
+            }
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || buffer.get(MAGIC.length) != VERSION
+                    || buffer.getInt(MAGIC.length + 1) != (size - HEADER_LENGTH) / RECORD_LENGTH) {
+                throw new IOException("not a keyring: " + path);
+            }
+
+            byte[] check = new byte[NONCE_LENGTH + TAG_LENGTH];
+            buffer.get(MAGIC.length + 1 + 4, check);
+            verify(check);
+
+            close();
+            channel = file;
+            records = buffer;
+            count = buffer.getInt(MAGIC.length + 1);
+            mapped = true;
+        }
+        finally {
+            if (!mapped) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * @return the stored record of an ID hash, or null if the keyring holds no key for it
+     */
+    private synchronized byte[] record(byte[] id) {
+        byte[] record = pending.get(id);
+        if (record == null) {
+            record = find(id);
+        }
+        return record;
+    }
+
+    /**
+     * Binary searches the mapped records for an ID hash.
+     *
+     * @return the record, or null if it is not in the mapped keyring
+     */
+    private byte[] find(byte[] id) {
+        byte[] candidate = new byte[ID_LENGTH];
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            // map() limits the size of the keyring, so the offset of every record fits an int
+            int offset = (int) (HEADER_LENGTH + (long) mid * RECORD_LENGTH);
+            records.get(offset, candidate);
+            int cmp = Arrays.compareUnsigned(candidate, id);
+            if (cmp < 0) {
+                low = mid + 1;
+            }
+            else if (cmp > 0) {
+                high = mid - 1;
+            }
+            else {
+                byte[] record = new byte[RECORD_LENGTH];
+                records.get(offset, record);
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a fresh check value, which only verifies with the master key
+     */
+    private byte[] check() throws GeneralSecurityException {
+        byte[] check = new byte[NONCE_LENGTH + TAG_LENGTH];
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        System.arraycopy(nonce, 0, check, 0, NONCE_LENGTH);
+
+        Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(CHECK_AAD);
+        cipher.doFinal(new byte[0], 0, 0, check, NONCE_LENGTH);
+        return check;
+    }
+
+    private void verify(byte[] check) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH * 8, check, 0, NONCE_LENGTH));
+        cipher.updateAAD(CHECK_AAD);
+        cipher.doFinal(check, NONCE_LENGTH, TAG_LENGTH);
+    }
+
+    private static byte[] hash(String fileId, MessageDigest digest) {
+        return Arrays.copyOf(digest.digest(fileId.getBytes(StandardCharsets.UTF_8)), ID_LENGTH);
+    }
+
+}
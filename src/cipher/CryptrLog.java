@@ -0,0 +1,553 @@
+package cipher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * CryptrLog is an append-only encrypted file format for logs and other data which only
+ * grows. Data is encrypted in independent segments, and appending writes new segments after
+ * the existing ones without reading or rewriting them, so the cost of an append depends only
+ * on the appended bytes. Readers stream through all segments in order.
+ *
+ * Every segment is encrypted with an authenticated cipher under a random nonce, with the file
+ * header and the index of the segment as associated data, so segments cannot be modified,
+ * reordered or dropped from the middle without reading failing. As in any append-only log,
+ * dropping whole segments from the end cannot be detected.
+ *
+ * Each segment ends with its own length, so a writer finds the last segment from the end of
+ * the file. A segment torn by a crash during an append is cut off the next time the log is
+ * opened for appending; it was never acknowledged by flush(), so no flushed data is lost.
+ *
+ * Layout: magic (4) | version (1) | key type (1) | algorithm (1) | KDF iterations (4) | salt (16)
+ *         followed by segments: index (8) | length (4) | nonce (12) | ciphertext | tag (16) | total (4)
+ */
+public class CryptrLog {
+
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final byte[] MAGIC = {'C', 'R', 'Y', 'L'};
+    private static final int VERSION = 1;
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int NONCE_LENGTH = CryptrChunkedCipher.NONCE_LENGTH;
+    private static final int TAG_LENGTH = CryptrChunkedCipher.TAG_LENGTH;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 1 + 1 + 4 + CryptrHeader.SALT_LENGTH;
+    private static final int SEGMENT_HEADER_LENGTH = 8 + 4 + NONCE_LENGTH;
+    private static final int SEGMENT_OVERHEAD = SEGMENT_HEADER_LENGTH + TAG_LENGTH + 4;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Supplies the key of a log once its header has been read.
+     */
+    private static interface KeySource {
+        SecretKey keyFor(Header header) throws GeneralSecurityException;
+    }
+
+    /**
+     * The header at the start of a log, which is authenticated with every segment.
+     */
+    private static class Header {
+        final int keyType;
+        final CryptrAlgorithm algorithm;
+        final int kdfIterations;
+        final byte[] salt;
+
+        Header(int keyType, CryptrAlgorithm algorithm, int kdfIterations, byte[] salt) {
+            this.keyType = keyType;
+            this.algorithm = algorithm;
+            this.kdfIterations = kdfIterations;
+            this.salt = salt;
+        }
+
+        byte[] encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+            buffer.put(MAGIC);
+            buffer.put((byte) VERSION);
+            buffer.put((byte) keyType);
+            buffer.put((byte) algorithm.id);
+            buffer.putInt(kdfIterations);
+            buffer.put(salt);
+            return buffer.array();
+        }
+
+        /**
+         * @return the header, or null if the bytes are not a valid header
+         */
+        static Header decode(ByteBuffer buffer) {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || buffer.get() != VERSION) {
+                return null;
+            }
+
+            int keyType = buffer.get();
+            CryptrAlgorithm algorithm = CryptrAlgorithm.of(buffer.get());
+            int kdfIterations = buffer.getInt();
+            byte[] salt = new byte[CryptrHeader.SALT_LENGTH];
+            buffer.get(salt);
+            if (algorithm == null || (keyType != CryptrHeader.KEY_TYPE_KEY && keyType != CryptrHeader.KEY_TYPE_PASSWORD)
+                    || kdfIterations <= 0 || kdfIterations > CryptrHeader.MAX_KDF_ITERATIONS) {
+                return null;
+            }
+            return new Header(keyType, algorithm, kdfIterations, salt);
+        }
+    }
+
+    /**
+     * Opens a log encrypted with a key for appending, creating it if it does not exist.
+     *
+     * @param logFile - path of the log
+     * @param key - key the log is encrypted with
+     * @return the writer, positioned after the last segment
+     * @throws IOException on error reading or writing the log, if it is not a log, or if another
+     *                     writer has it open
+     * @throws GeneralSecurityException if the log was not encrypted with the key
+     */
+    public static Writer appendWithKey(String logFile, CryptrKey key) throws IOException, GeneralSecurityException {
+        return Writer.open(logFile, CryptrHeader.KEY_TYPE_KEY, new byte[CryptrHeader.SALT_LENGTH], keySource(key));
+    }
+
+    /**
+     * Opens a log encrypted with the password of a session for appending, creating it with
+     * the salt of the session if it does not exist.
+     *
+     * @param logFile - path of the log
+     * @param session - session holding the password
+     * @return the writer, positioned after the last segment
+     * @throws IOException on error reading or writing the log, if it is not a log, or if another
+     *                     writer has it open
+     * @throws GeneralSecurityException if the log was not encrypted with the password
+     */
+    public static Writer appendWithSession(String logFile, CryptrSession session)
+            throws IOException, GeneralSecurityException {
+        return Writer.open(logFile, CryptrHeader.KEY_TYPE_PASSWORD, session.salt(), sessionSource(session));
+    }
+
+    /**
+     * Opens a log encrypted with a key for reading.
+     *
+     * @param logFile - path of the log
+     * @param key - key the log is encrypted with
+     * @return the stream of the decrypted contents of all segments
+     * @throws IOException on error reading the log, or if it is not a log
+     * @throws GeneralSecurityException if the log was not encrypted with a key
+     */
+    public static InputStream readWithKey(String logFile, CryptrKey key) throws IOException, GeneralSecurityException {
+        return Reader.open(logFile, keySource(key));
+    }
+
+    /**
+     * Opens a log encrypted with the password of a session for reading.
+     *
+     * @param logFile - path of the log
+     * @param session - session holding the password
+     * @return the stream of the decrypted contents of all segments
+     * @throws IOException on error reading the log, or if it is not a log
+     * @throws GeneralSecurityException if the log was not encrypted with a password
+     */
+    public static InputStream readWithSession(String logFile, CryptrSession session)
+            throws IOException, GeneralSecurityException {
+        return Reader.open(logFile, sessionSource(session));
+    }
+
+    private static KeySource keySource(CryptrKey key) {
+        return header -> {
+            if (header.keyType != CryptrHeader.KEY_TYPE_KEY) {
+                throw new GeneralSecurityException("log was not encrypted with a key");
+            }
+            return key.key;
+        };
+    }
+
+    private static KeySource sessionSource(CryptrSession session) {
+        return header -> {
+            if (header.keyType != CryptrHeader.KEY_TYPE_PASSWORD) {
+                throw new GeneralSecurityException("log was not encrypted with a password");
+            }
+            return session.key(header.salt, header.kdfIterations);
+        };
+    }
+
+    /**
+     * Appends to a log. Written data is buffered and encrypted as a segment once the buffer is
+     * full or flush() is called, so flushing after every record costs a segment per record.
+     * A writer holds a lock on the log until it is closed. Not safe for use by several threads.
+     */
+    public static class Writer extends OutputStream {
+
+        private final FileChannel channel;
+        private final FileLock lock;
+        private final SecretKey key;
+        private final Header header;
+        private final byte[] aad;
+        private final Cipher cipher;
+        private final byte[] buffer = new byte[SEGMENT_SIZE];
+        private int buffered = 0;
+        private long index;
+        private long end;
+
+        private Writer(FileChannel channel, FileLock lock, SecretKey key, Header header, long index, long end)
+                throws GeneralSecurityException {
+            this.channel = channel;
+            this.lock = lock;
+            this.key = header.algorithm.key(key);
+            this.header = header;
+            this.aad = header.encode();
+            this.cipher = CryptrCalibration.newCipher(header.algorithm);
+            this.index = index;
+            this.end = end;
+        }
+
+        private static Writer open(String logFile, int keyType, byte[] salt, KeySource keySource)
+                throws IOException, GeneralSecurityException {
+            FileChannel channel = FileChannel.open(Paths.get(logFile), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            try {
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                }
+                catch (OverlappingFileLockException e) {
+                    lock = null;
+                }
+                if (lock == null) {
+                    throw new IOException("log is open by another writer: " + logFile);
+                }
+
+                Header header;
+                if (channel.size() == 0) {
+                    header = new Header(keyType, CryptrCalibration.algorithm(), CryptrCipher.KDF_ITERATIONS, salt);
+                    CryptrChunkedCipher.writeFully(channel, ByteBuffer.wrap(header.encode()), 0);
+                    channel.force(true);
+                }
+                else {
+                    header = readHeader(channel);
+                }
+
+                SecretKey key = keySource.keyFor(header);
+                long[] last = findEnd(channel);
+                long index = 0;
+                if (last[0] >= 0) {
+                    // decrypting the last segment checks the key before anything is appended
+                    ByteBuffer segment = ByteBuffer.allocate((int) (last[1] - last[0]));
+                    if (!CryptrChunkedCipher.readFully(channel, segment, last[0])) {
+                        throw new EOFException("unexpected end of log");
+                    }
+                    segment.flip();
+                    index = decryptSegment(segment, header, key, CryptrCalibration.newCipher(header.algorithm),
+                            -1).getLong(0) + 1;
+                }
+                if (channel.size() > last[1]) {
+                    // cut off a segment torn by a crash, which no flush ever acknowledged
+                    channel.truncate(last[1]);
+                    channel.force(true);
+                }
+
+                return new Writer(channel, lock, key, header, index, last[1]);
+            }
+            catch (IOException | GeneralSecurityException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffered == buffer.length) {
+                seal();
+            }
+            buffer[buffered++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (buffered == buffer.length) {
+                    seal();
+                }
+                int count = Math.min(len, buffer.length - buffered);
+                System.arraycopy(b, off, buffer, buffered, count);
+                buffered += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        /**
+         * Encrypts the buffered data as a segment and appends it to the log.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (buffered > 0) {
+                seal();
+            }
+        }
+
+        /**
+         * Flushes the buffered data and syncs the log to the disk, so everything written so far
+         * survives a crash.
+         */
+        public void sync() throws IOException {
+            flush();
+            channel.force(false);
+        }
+
+        /**
+         * Flushes the buffered data and closes the log.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                flush();
+            }
+            finally {
+                lock.release();
+                channel.close();
+                Arrays.fill(buffer, (byte) 0);
+            }
+        }
+
+        private void seal() throws IOException {
+            if (!channel.isOpen()) {
+                throw new IOException("log is closed");
+            }
+
+            int total = SEGMENT_OVERHEAD + buffered;
+            ByteBuffer segment = ByteBuffer.allocate(total);
+            byte[] nonce = new byte[NONCE_LENGTH];
+            RANDOM.nextBytes(nonce);
+            segment.putLong(index);
+            segment.putInt(buffered);
+            segment.put(nonce);
+
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, header.algorithm.parameters(nonce));
+                cipher.updateAAD(aad);
+                cipher.updateAAD(segment.array(), 0, SEGMENT_HEADER_LENGTH);
+                cipher.doFinal(buffer, 0, buffered, segment.array(), SEGMENT_HEADER_LENGTH);
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("could not encrypt segment", e);
+            }
+            segment.putInt(total - 4, total);
+            segment.clear();
+
+            CryptrChunkedCipher.writeFully(channel, segment, end);
+            end += total;
+            index++;
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Streams the decrypted contents of all segments of a log, authenticating each segment
+     * before any of its data is returned.
+     */
+    private static class Reader extends InputStream {
+
+        private final FileChannel channel;
+        private final Header header;
+        private final SecretKey key;
+        private final Cipher cipher;
+        private ByteBuffer segment = ByteBuffer.allocate(0);
+        private long position = HEADER_LENGTH;
+        private long index = 0;
+
+        private Reader(FileChannel channel, Header header, SecretKey key) throws GeneralSecurityException {
+            this.channel = channel;
+            this.header = header;
+            this.key = key;
+            this.cipher = CryptrCalibration.newCipher(header.algorithm);
+        }
+
+        static Reader open(String logFile, KeySource keySource) throws IOException, GeneralSecurityException {
+            FileChannel channel = FileChannel.open(Paths.get(logFile), StandardOpenOption.READ);
+            try {
+                Header header = readHeader(channel);
+                return new Reader(channel, header, keySource.keyFor(header));
+            }
+            catch (IOException | GeneralSecurityException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return segment.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, segment.remaining());
+            segment.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * Decrypts the next segment once the current one has been read.
+         *
+         * @return false at the end of the log
+         */
+        private boolean fill() throws IOException {
+            while (!segment.hasRemaining()) {
+                if (position == channel.size()) {
+                    return false;
+                }
+
+                ByteBuffer head = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+                if (!CryptrChunkedCipher.readFully(channel, head, position)) {
+                    throw new EOFException("truncated segment in log");
+                }
+                int length = head.getInt(8);
+                if (length < 0 || length > MAX_SEGMENT_SIZE) {
+                    throw new IOException("invalid segment in log");
+                }
+
+                ByteBuffer encrypted = ByteBuffer.allocate(SEGMENT_OVERHEAD + length);
+                if (!CryptrChunkedCipher.readFully(channel, encrypted, position)) {
+                    throw new EOFException("truncated segment in log");
+                }
+                encrypted.flip();
+
+                try {
+                    segment = decryptSegment(encrypted, header, key, cipher, index);
+                }
+                catch (GeneralSecurityException e) {
+                    throw new IOException("segment " + index + " failed authentication", e);
+                }
+                segment.position(SEGMENT_HEADER_LENGTH);
+                position += encrypted.capacity();
+                index++;
+            }
+            return true;
+        }
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+        if (!CryptrChunkedCipher.readFully(channel, buffer, 0)) {
+            throw new IOException("not a log");
+        }
+        buffer.flip();
+        Header header = Header.decode(buffer);
+        if (header == null) {
+            throw new IOException("not a log");
+        }
+        return header;
+    }
+
+    /**
+     * Finds the last complete segment from the length at the end of the file. If the end of
+     * the file is not a complete segment, the segments are walked from the start instead, which
+     * only happens after a crash during an append.
+     *
+     * @return the start and end of the last complete segment, or -1 and the end of the header if
+     *         there is none
+     */
+    private static long[] findEnd(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == HEADER_LENGTH) {
+            return new long[] {-1, HEADER_LENGTH};
+        }
+
+        ByteBuffer total = ByteBuffer.allocate(4);
+        if (size >= HEADER_LENGTH + SEGMENT_OVERHEAD && CryptrChunkedCipher.readFully(channel, total, size - 4)) {
+            long start = size - total.getInt(0);
+            if (start >= HEADER_LENGTH && size - start >= SEGMENT_OVERHEAD && segmentEnd(channel, start) == size) {
+                return new long[] {start, size};
+            }
+        }
+
+        long start = -1;
+        long end = HEADER_LENGTH;
+        for (long next = segmentEnd(channel, end); next > 0; next = segmentEnd(channel, end)) {
+            start = end;
+            end = next;
+        }
+        return new long[] {start, end};
+    }
+
+    /**
+     * @return the end of the segment starting at the position, or -1 if there is no complete
+     *         segment there
+     */
+    private static long segmentEnd(FileChannel channel, long start) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+        if (!CryptrChunkedCipher.readFully(channel, head, start)) {
+            return -1;
+        }
+        int length = head.getInt(8);
+        if (length < 0 || length > MAX_SEGMENT_SIZE) {
+            return -1;
+        }
+
+        long end = start + SEGMENT_OVERHEAD + length;
+        ByteBuffer total = ByteBuffer.allocate(4);
+        if (end > channel.size() || !CryptrChunkedCipher.readFully(channel, total, end - 4)
+                || total.getInt(0) != SEGMENT_OVERHEAD + length) {
+            return -1;
+        }
+        return end;
+    }
+
+    /**
+     * Decrypts a whole segment into a new buffer, which holds the segment header followed by
+     * the plaintext.
+     *
+     * @param index - index the segment must have, or -1 to accept the index stored in it
+     */
+    private static ByteBuffer decryptSegment(ByteBuffer encrypted, Header header, SecretKey key, Cipher cipher,
+            long index) throws GeneralSecurityException {
+        byte[] bytes = encrypted.array();
+        ByteBuffer head = ByteBuffer.wrap(bytes, 0, SEGMENT_HEADER_LENGTH);
+        long stored = head.getLong();
+        int length = head.getInt();
+        if (index >= 0 && stored != index) {
+            throw new GeneralSecurityException("segment " + stored + " found where " + index + " was expected");
+        }
+
+        byte[] nonce = Arrays.copyOfRange(bytes, 8 + 4, SEGMENT_HEADER_LENGTH);
+        cipher.init(Cipher.DECRYPT_MODE, header.algorithm.key(key), header.algorithm.parameters(nonce));
+        cipher.updateAAD(header.encode());
+        cipher.updateAAD(bytes, 0, SEGMENT_HEADER_LENGTH);
+
+        ByteBuffer plain = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH + length);
+        plain.put(bytes, 0, SEGMENT_HEADER_LENGTH);
+        cipher.doFinal(bytes, SEGMENT_HEADER_LENGTH, length + TAG_LENGTH, plain.array(), SEGMENT_HEADER_LENGTH);
+        return plain.limit(SEGMENT_HEADER_LENGTH + length).position(0);
+    }
+
+}
@@ -0,0 +1,120 @@
+package cipher;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * CryptrManifest records the state of every file of a directory when it was last encrypted,
+ * so unchanged files can be skipped the next time the directory is encrypted.
+ *
+ * Layout: magic (4) | version (1) | entry count (4)
+ *         followed by entries: path (modified UTF-8) | size (8) | modified time (8) | SHA-256 (32)
+ */
+class CryptrManifest {
+
+    static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final byte[] MAGIC = {'C', 'R', 'M', 'F'};
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * The recorded state of a single file.
+     */
+    static class Entry {
+        final long size;
+        final long modified;
+        final byte[] hash;
+
+        Entry(long size, long modified, byte[] hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Reads a manifest, or returns an empty one if the file does not exist yet.
+     *
+     * @param file - path of the manifest
+     * @return the manifest
+     * @throws IOException on error reading the manifest, or if it is not a manifest
+     */
+    static CryptrManifest read(Path file) throws IOException {
+        CryptrManifest manifest = new CryptrManifest();
+        if (!Files.exists(file)) {
+            return manifest;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readByte() != VERSION) {
+                throw new IOException("not a manifest: " + file);
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] hash = new byte[HASH_LENGTH];
+                in.readFully(hash);
+                manifest.entries.put(path, new Entry(size, modified, hash));
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest, replacing the file only once it has been written completely.
+     *
+     * @param file - path to store the manifest
+     * @throws IOException on error writing the manifest
+     */
+    void write(Path file) throws IOException {
+        try (CryptrOutputFile output = CryptrOutputFile.open(file.toString())) {
+            DataOutputStream out = new DataOutputStream(output.stream());
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (String path : entries.keySet()) {
+                Entry entry = entries.get(path);
+                out.writeUTF(path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.write(entry.hash);
+            }
+            output.commit();
+        }
+    }
+
+    Entry get(String path) {
+        return entries.get(path);
+    }
+
+    void put(String path, Entry entry) {
+        entries.put(path, entry);
+    }
+
+    void remove(String path) {
+        entries.remove(path);
+    }
+
+    Set<String> paths() {
+        return entries.keySet();
+    }
+
+}
@@ -0,0 +1,153 @@
+package cipher;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * CryptrOutputFile is the destination of a streamed operation. Nothing is written to the
+ * output path until commit() is called, so a failed operation never leaves a partial file
+ * behind.
+ *
+ * The data is written to a temporary file in the same directory which replaces the output
+ * on commit. This also allows a file to be encrypted or decrypted in place without buffering
+ * it in memory, since the input stays readable until the operation has finished.
+ *
+ * On commit the data is synced to the disk before the temporary file is atomically renamed
+ * over the output, and the directory is synced after, so a crash leaves either the old or
+ * the new output. If a CryptrSyncGroup is active on the committing thread, the file is staged
+ * in the group instead, and synced and renamed together with the rest of the group.
+ */
+public class CryptrOutputFile implements Closeable {
+
+    private static final String TEMP_SUFFIX = ".cryptr.tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final CryptrSyncGroup group;
+    private OutputStream stream;
+    private boolean committed = false;
+
+    private CryptrOutputFile(Path target, CryptrSyncGroup group) throws IOException {
+        this.target = target;
+        this.group = group;
+        Path dir = target.toAbsolutePath().getParent();
+        this.temp = Files.createTempFile(dir, target.getFileName().toString(), TEMP_SUFFIX);
+        this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens an output file which replaces the given path when committed.
+     *
+     * @param outputFile - path to store the output
+     * @return the opened output file
+     * @throws IOException if the temporary file cannot be created
+     */
+    public static CryptrOutputFile open(String outputFile) throws IOException {
+        return new CryptrOutputFile(Paths.get(outputFile), null);
+    }
+
+    /**
+     * Opens an output file which is staged in the given group when committed, whichever
+     * thread commits it.
+     *
+     * @param outputFile - path to store the output
+     * @param group - group to stage the output in, or null to use the group of the
+     *                committing thread, if any
+     * @return the opened output file
+     * @throws IOException if the temporary file cannot be created
+     */
+    public static CryptrOutputFile open(String outputFile, CryptrSyncGroup group) throws IOException {
+        return new CryptrOutputFile(Paths.get(outputFile), group);
+    }
+
+    /**
+     * @return the stream to write output to
+     */
+    public OutputStream stream() {
+        if (stream == null) {
+            stream = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        }
+        return stream;
+    }
+
+    /**
+     * Returns the channel to write output to, for writers which write at explicit positions.
+     * Should not be mixed with stream().
+     *
+     * @return the channel to write output to
+     */
+    public FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Flushes the written data and moves it to the output path, or stages it in the sync
+     * group it was opened with or else the one of the current thread.
+     *
+     * @throws IOException if the data cannot be written, synced or moved
+     */
+    public void commit() throws IOException {
+        CryptrSyncGroup group = this.group != null ? this.group : CryptrSyncGroup.current();
+        if (group == null) {
+            commitNow();
+            return;
+        }
+
+        // the stream may already have been closed by a wrapping stream, which also closes the channel
+        if (stream != null && channel.isOpen()) {
+            stream.flush();
+        }
+        channel.close();
+        group.stage(temp, target);
+        committed = true;
+    }
+
+    /**
+     * Flushes the written data, syncs it and moves it to the output path right away, even if
+     * a sync group is active. For files which the outputs staged in a group depend on, such
+     * as the keys of those outputs.
+     *
+     * @throws IOException if the data cannot be written, synced or moved
+     */
+    void commitNow() throws IOException {
+        if (channel.isOpen()) {
+            if (stream != null) {
+                stream.flush();
+            }
+            channel.force(true);
+            channel.close();
+        }
+        else {
+            CryptrSyncGroup.sync(temp);
+        }
+        CryptrSyncGroup.move(temp, target);
+        CryptrSyncGroup.syncDirectory(target.toAbsolutePath().getParent());
+        committed = true;
+    }
+
+    /**
+     * Closes the output, discarding the written data if it was not committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            try {
+                channel.close();
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+}
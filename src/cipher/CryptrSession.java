@@ -0,0 +1,158 @@
+package cipher;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CryptrSession holds a password and the keys derived from it, so a batch of files can be
+ * encrypted or decrypted with a password while running the key derivation function only
+ * once per salt instead of once per file.
+ *
+ * Derived keys are kept in a cache bounded in size and age. Keys are zeroed when they are
+ * evicted, and the password and all keys are zeroed when the session is closed.
+ *
+ * A session can be shared between threads.
+ */
+public class CryptrSession implements AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 16;
+    public static final long DEFAULT_TTL_MINUTES = 10;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final char[] password;
+    private final byte[] salt;
+    private final int capacity;
+    private final long ttlNanos;
+    private final LinkedHashMap<ByteBuffer, Entry> keys = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean closed = false;
+
+    /**
+     * A derived key and the time it was derived at.
+     */
+    private static class Entry {
+        final byte[] key;
+        final long created;
+
+        Entry(byte[] key, long created) {
+            this.key = key;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Creates a new session for a password with the default cache size and lifetime.
+     *
+     * @param password - password to derive keys from
+     */
+    public CryptrSession(String password) {
+        this(password.toCharArray(), DEFAULT_CAPACITY, DEFAULT_TTL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Creates a new session for a password.
+     *
+     * @param password - password to derive keys from, copied by the session
+     * @param capacity - maximum number of derived keys to keep
+     * @param ttl - how long a derived key is kept after it was derived
+     * @param unit - unit of ttl
+     */
+    public CryptrSession(char[] password, int capacity, long ttl, TimeUnit unit) {
+        this.password = password.clone();
+        this.capacity = capacity;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.salt = new byte[CryptrHeader.SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+    }
+
+    /**
+     * Returns the key derived from the password and a salt, deriving it only if it is not
+     * already cached.
+     *
+     * @param salt - salt to derive the key with
+     * @return an AES key for a single operation
+     * @throws NoSuchAlgorithmException if JRE does not support the key derivation function
+     * @throws InvalidKeySpecException if the password cannot be used to derive a key
+     * @throws IllegalStateException if the session has been closed
+     */
+    public SecretKey key(byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return key(salt, CryptrCipher.KDF_ITERATIONS);
+    }
+
+    /**
+     * Returns the key derived from the password and a salt with a given number of PBKDF2
+     * iterations, as recorded in the header of a file in the chunked format.
+     */
+    synchronized SecretKey key(byte[] salt, int iterations) throws NoSuchAlgorithmException,
+            InvalidKeySpecException {
+        if (closed) {
+            throw new IllegalStateException("session is closed");
+        }
+
+        long now = System.nanoTime();
+        evictExpired(now);
+
+        ByteBuffer id = ByteBuffer.allocate(salt.length + Integer.BYTES).put(salt).putInt(iterations);
+        id.flip();
+        Entry entry = keys.get(id);
+        if (entry == null) {
+            SecretKey derived = CryptrCipher.deriveKey(password, salt, iterations);
+            entry = new Entry(derived.getEncoded(), now);
+            keys.put(id, entry);
+            if (keys.size() > capacity) {
+                Iterator<Entry> eldest = keys.values().iterator();
+                zero(eldest.next());
+                eldest.remove();
+            }
+        }
+
+        return new SecretKeySpec(entry.key, "AES");
+    }
+
+    /**
+     * Returns the salt new files in the chunked format are encrypted with during this session,
+     * so the key for every file encrypted in the session is derived only once.
+     *
+     * @return the salt of this session
+     */
+    public byte[] salt() {
+        return salt.clone();
+    }
+
+    /**
+     * Zeroes the password and all derived keys. The session cannot be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        keys.values().forEach(CryptrSession::zero);
+        keys.clear();
+        Arrays.fill(password, '\0');
+        closed = true;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Map.Entry<ByteBuffer, Entry>> it = keys.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (now - entry.created >= ttlNanos) {
+                zero(entry);
+                it.remove();
+            }
+        }
+    }
+
+    private static void zero(Entry entry) {
+        Arrays.fill(entry.key, (byte) 0);
+    }
+
+}
@@ -0,0 +1,440 @@
+package cipher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import metrics.CryptrProbe;
+import metrics.Stage;
+
+/**
+ * CryptrSmallFiles encrypts and decrypts large numbers of small files. The output is the same
+ * as that of CryptrCipher, but for files of a few kilobytes, creating a Cipher, KeyGenerator
+ * and SecureRandom for every file costs more than encrypting it. Here every thread keeps one
+ * of each and reuses them for every file it handles.
+ *
+ * Files are split into batches which run on an executor. Each file is read with a single
+ * read into a buffer of its thread, processed in one call and written with a single write,
+ * and the results of all files are returned together. The outputs are committed together in
+ * a CryptrSyncGroup, so the files cost a few fsyncs rather than two each. Files larger than
+ * MAX_FILE_SIZE, and files to decrypt which are in the chunked format, are passed on to
+ * CryptrCipher.
+ */
+public class CryptrSmallFiles {
+
+    public static final int MAX_FILE_SIZE = 1024 * 1024;
+
+    private static final int BATCH_SIZE = 256;
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int PENDING = Integer.MIN_VALUE;
+
+    private static final ThreadLocal<Engine> ENGINES = new ThreadLocal<>();
+
+    /**
+     * The reusable objects of a thread.
+     */
+    private static class Engine {
+        final SecureRandom random = new SecureRandom();
+        final KeyGenerator keyGenerator;
+        final Cipher keyCipher;
+        final Cipher passwordCipher;
+        final CryptrKeyring.Wrapper wrapper;
+        byte[] input = new byte[INITIAL_BUFFER_SIZE];
+        byte[] output = new byte[INITIAL_BUFFER_SIZE];
+
+        Engine() throws GeneralSecurityException {
+            keyGenerator = KeyGenerator.getInstance(CryptrCipher.ENCRYPTION_ALGORITHM);
+            keyGenerator.init(CryptrCipher.KEY_LENGTH, random);
+            keyCipher = Cipher.getInstance(CryptrCipher.CIPHER_TRANSFORMATION);
+            passwordCipher = Cipher.getInstance(CryptrCipher.ENCRYPTION_ALGORITHM);
+            wrapper = new CryptrKeyring.Wrapper(random);
+        }
+
+        CryptrKey generateKey() {
+            byte[] iv = new byte[16];
+            random.nextBytes(iv);
+            return new CryptrKey(keyGenerator.generateKey(), iv);
+        }
+    }
+
+    /**
+     * Processes a single file with the engine of the current thread and returns one of the
+     * file return codes.
+     */
+    private static interface FileTask {
+        int process(Engine engine, int index);
+    }
+
+    /**
+     * Initializes the cipher of an engine for a single file.
+     */
+    private static interface CipherInit {
+        void init(Cipher cipher) throws GeneralSecurityException;
+    }
+
+    /**
+     * An operation on a single file which returns one of the file return codes.
+     */
+    private static interface Step {
+        int run();
+    }
+
+    /**
+     * Encrypts files with key-based AES-256 encryption on the common ForkJoinPool.
+     *
+     * @see #encryptWithKeyring(String[], String[], CryptrKeyring, String[], ExecutorService)
+     */
+    public static int[] encryptWithKeyring(String[] inputFiles, String[] outputFiles, CryptrKeyring keyring,
+            String[] fileIds) {
+        return encryptWithKeyring(inputFiles, outputFiles, keyring, fileIds, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypts files with key-based AES-256 encryption, storing the key of every file in a
+     * keyring. The keys are only written to disk when the keyring is saved.
+     *
+     * @param inputFiles - paths of the files to encrypt
+     * @param outputFiles - paths to store the encrypted files, which may be the input files
+     * @param keyring - keyring to store the keys in
+     * @param fileIds - IDs to store the keys under
+     * @param executor - executor to process batches of files on
+     * @return the return code of CryptrCipher.encryptWithKeyring() for each file, which is -3
+     *         for files which were not processed because the thread was interrupted
+     */
+    public static int[] encryptWithKeyring(String[] inputFiles, String[] outputFiles, CryptrKeyring keyring,
+            String[] fileIds, ExecutorService executor) {
+        return encryptWithKeyring(inputFiles, outputFiles, keyring, fileIds, executor, null);
+    }
+
+    /**
+     * Encrypts files with key-based AES-256 encryption, storing the key of every file in a
+     * keyring, and stages the encrypted files in a sync group. Saving the keyring before
+     * committing the group ensures a crash never leaves a file encrypted with a key which
+     * was lost, which matters when files are encrypted in place.
+     *
+     * The keys are stored once all files have been processed, only for the files which were
+     * committed or staged. A file which is staged in the group but then fails to commit keeps
+     * its key in the keyring, replacing the key of an earlier file stored under the same ID,
+     * so callers passing a group should use IDs the keyring does not hold yet.
+     *
+     * @param inputFiles - paths of the files to encrypt
+     * @param outputFiles - paths to store the encrypted files, which may be the input files
+     * @param keyring - keyring to store the keys in
+     * @param fileIds - IDs to store the keys under
+     * @param executor - executor to process batches of files on
+     * @param group - group to stage the encrypted files in, or null to commit them before
+     *                returning
+     * @return the return code of CryptrCipher.encryptWithKeyring() for each file, which is -3
+     *         for files which were not processed because the thread was interrupted
+     */
+    public static int[] encryptWithKeyring(String[] inputFiles, String[] outputFiles, CryptrKeyring keyring,
+            String[] fileIds, ExecutorService executor, CryptrSyncGroup group) {
+        byte[][] records = new byte[inputFiles.length][];
+        int[] responses = run(outputFiles, executor, group, (engine, i) -> {
+            CryptrKey key = engine.generateKey();
+            byte[] record;
+            try {
+                // wrapped before the output replaces an input encrypted in place, see CryptrCipher
+                record = keyring.wrap(fileIds[i], key, engine.wrapper);
+            }
+            catch (GeneralSecurityException e) {
+                return 3;
+            }
+            return cipherFile(engine, inputFiles[i], outputFiles[i], engine.keyCipher,
+                    cipher -> cipher.init(Cipher.ENCRYPT_MODE, key.key, new IvParameterSpec(key.iv)),
+                    () -> {
+                        records[i] = record;
+                        return 0;
+                    },
+                    () -> CryptrCipher.encryptWithKeyring(inputFiles[i], outputFiles[i], keyring, fileIds[i]));
+        });
+
+        // run() has reported the files whose own commit failed, which must not replace a key
+        for (int i = 0; i < records.length; i++) {
+            if (responses[i] == 0 && records[i] != null) {
+                keyring.add(records[i]);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Decrypts files with key-based AES-256 decryption on the common ForkJoinPool.
+     *
+     * @see #decryptWithKeyring(String[], String[], CryptrKeyring, String[], ExecutorService)
+     */
+    public static int[] decryptWithKeyring(String[] encryptedFiles, String[] outputFiles, CryptrKeyring keyring,
+            String[] fileIds) {
+        return decryptWithKeyring(encryptedFiles, outputFiles, keyring, fileIds, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decrypts files with key-based AES-256 decryption, using keys from a keyring.
+     *
+     * @param encryptedFiles - paths of the files to decrypt
+     * @param outputFiles - paths to store the decrypted files, which may be the encrypted files
+     * @param keyring - keyring the keys were stored in during encryption
+     * @param fileIds - IDs the keys were stored under
+     * @param executor - executor to process batches of files on
+     * @return the return code of CryptrCipher.decryptWithKeyring() for each file, which is -3
+     *         for files which were not processed because the thread was interrupted
+     */
+    public static int[] decryptWithKeyring(String[] encryptedFiles, String[] outputFiles, CryptrKeyring keyring,
+            String[] fileIds, ExecutorService executor) {
+        return run(outputFiles, executor, null, (engine, i) -> {
+            if (CryptrHeader.isChunked(encryptedFiles[i])) {
+                return CryptrCipher.decryptWithKeyring(encryptedFiles[i], outputFiles[i], keyring, fileIds[i]);
+            }
+
+            CryptrKey key;
+            try {
+                key = keyring.get(fileIds[i], engine.wrapper);
+            }
+            catch (GeneralSecurityException e) {
+                return -2;
+            }
+            if (key == null) {
+                return 3;
+            }
+
+            return cipherFile(engine, encryptedFiles[i], outputFiles[i], engine.keyCipher,
+                    cipher -> cipher.init(Cipher.DECRYPT_MODE, key.key, new IvParameterSpec(key.iv)), () -> 0,
+                    () -> CryptrCipher.decryptWithKeyring(encryptedFiles[i], outputFiles[i], keyring, fileIds[i]));
+        });
+    }
+
+    /**
+     * Encrypts or decrypts files with the password of a session on the common ForkJoinPool.
+     *
+     * @see #cipherWithSession(String[], String[], CryptrSession, CryptrCipher.Mode, ExecutorService)
+     */
+    public static int[] cipherWithSession(String[] inputFiles, String[] outputFiles, CryptrSession session,
+            CryptrCipher.Mode mode) {
+        return cipherWithSession(inputFiles, outputFiles, session, mode, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypts or decrypts files using password-based AES-256 with the password of a session.
+     * The key is derived once for all files.
+     *
+     * @param inputFiles - paths of the files to encrypt or decrypt
+     * @param outputFiles - paths to store the output, which may be the input files
+     * @param session - session holding the password
+     * @param mode - which operation to perform on the files
+     * @param executor - executor to process batches of files on
+     * @return the return code of CryptrCipher.cipherWithSession() for each file, which is -3
+     *         for files which were not processed because the thread was interrupted
+     */
+    public static int[] cipherWithSession(String[] inputFiles, String[] outputFiles, CryptrSession session,
+            CryptrCipher.Mode mode, ExecutorService executor) {
+        SecretKey key;
+
+        try {
+            key = session.key(CryptrCipher.PEPPER);
+        }
+        catch (GeneralSecurityException e) {
+            int[] responses = new int[inputFiles.length];
+            Arrays.fill(responses, e instanceof NoSuchAlgorithmException ? -1 : -2);
+            return responses;
+        }
+
+        int cipherMode = mode == CryptrCipher.Mode.ENCRYPT ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+        return run(outputFiles, executor, null, (engine, i) -> {
+            Step fallback = () -> CryptrCipher.cipherWithSession(inputFiles[i], outputFiles[i], session, mode);
+            if (mode == CryptrCipher.Mode.DECRYPT && CryptrHeader.isChunked(inputFiles[i])) {
+                return fallback.run();
+            }
+            return cipherFile(engine, inputFiles[i], outputFiles[i], engine.passwordCipher,
+                    cipher -> cipher.init(cipherMode, key), () -> 0, fallback);
+        });
+    }
+
+    /**
+     * Runs a task for every file in batches on an executor, and waits for all of them to
+     * finish. If the calling thread is interrupted, files which have not been processed yet
+     * are skipped.
+     *
+     * @param group - group to stage the outputs in, or null to commit them in a group of
+     *                their own once all files are processed
+     */
+    private static int[] run(String[] outputFiles, ExecutorService executor, CryptrSyncGroup group, FileTask task) {
+        int count = outputFiles.length;
+        int[] responses = new int[count];
+        List<Future<?>> batches = new ArrayList<>();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        boolean interrupted = false;
+        Arrays.fill(responses, PENDING);
+
+        try (CryptrSyncGroup own = group == null ? new CryptrSyncGroup() : null) {
+            CryptrSyncGroup staging = group == null ? own : group;
+
+            for (int start = 0; start < count; start += BATCH_SIZE) {
+                int from = start;
+                int to = Math.min(count, start + BATCH_SIZE);
+                batches.add(executor.submit(() -> {
+                    Engine engine = ENGINES.get();
+                    if (engine == null) {
+                        try {
+                            engine = new Engine();
+                        }
+                        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                            Arrays.fill(responses, from, to, -1);
+                            return;
+                        }
+                        catch (GeneralSecurityException e) {
+                            Arrays.fill(responses, from, to, -2);
+                            return;
+                        }
+                        ENGINES.set(engine);
+                    }
+
+                    staging.enter();
+                    try {
+                        for (int i = from; i < to && !cancelled.get(); i++) {
+                            responses[i] = task.process(engine, i);
+                        }
+                    }
+                    finally {
+                        staging.exit();
+                    }
+                }));
+            }
+
+            // a cancel lets the file in progress in every batch finish, so no output is staged
+            // after the batches have been waited for
+            for (Future<?> batch : batches) {
+                while (true) {
+                    try {
+                        batch.get();
+                        break;
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                        cancelled.set(true);
+                    }
+                    catch (ExecutionException e) {
+                        // the files of the batch which were not reached are failures
+                        break;
+                    }
+                }
+            }
+
+            if (own != null) {
+                Set<Path> failed = new HashSet<>(own.commit());
+                for (int i = 0; i < count && !failed.isEmpty(); i++) {
+                    if (responses[i] == 0 && failed.contains(Paths.get(outputFiles[i]))) {
+                        responses[i] = 2;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (responses[i] == PENDING) {
+                responses[i] = interrupted ? -3 : -2;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return responses;
+    }
+
+    /**
+     * Passes a file through a cipher in a single call, using the buffers of the engine. The
+     * output file is only replaced if the operation succeeds, and may be the same as the
+     * input file.
+     *
+     * @param committed - step to run once the output has been written, whose return code is
+     *                    that of the file
+     * @param fallback - step which processes the file instead if it is larger than
+     *                   MAX_FILE_SIZE
+     */
+    private static int cipherFile(Engine engine, String inputFile, String outputFile, Cipher cipher, CipherInit init,
+            Step committed, Step fallback) {
+        long size = new File(inputFile).length();
+        if (size > MAX_FILE_SIZE) {
+            return fallback.run();
+        }
+
+        CryptrProbe probe = CryptrProbe.start(CryptrCipher.listener(), inputFile, size);
+        long time = probe.now();
+        int length;
+
+        try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+            length = (int) Math.min(in.size(), Integer.MAX_VALUE - 16);
+            if (engine.input.length < length) {
+                engine.input = new byte[Math.max(length, 2 * engine.input.length)];
+            }
+            ByteBuffer input = ByteBuffer.wrap(engine.input, 0, length);
+            while (input.hasRemaining() && in.read(input) >= 0) {
+                // a single read returns the whole of a small file, but is not guaranteed to
+            }
+            length = input.position();
+        }
+        catch (ClosedByInterruptException e) {
+            return probe.finish(-3);
+        }
+        catch (IOException e) {
+            return probe.finish(1);
+        }
+        time = probe.stage(Stage.READ, time);
+
+        int outputLength;
+        try {
+            init.init(cipher);
+            int required = cipher.getOutputSize(length);
+            if (engine.output.length < required) {
+                engine.output = new byte[Math.max(required, 2 * engine.output.length)];
+            }
+            outputLength = cipher.doFinal(engine.input, 0, length, engine.output, 0);
+        }
+        catch (GeneralSecurityException e) {
+            return probe.finish(-2);
+        }
+        probe.bytes(length);
+        time = probe.stage(Stage.CIPHER, time);
+
+        try (CryptrOutputFile output = CryptrOutputFile.open(outputFile)) {
+            ByteBuffer buffer = ByteBuffer.wrap(engine.output, 0, outputLength);
+            while (buffer.hasRemaining()) {
+                output.channel().write(buffer);
+            }
+            output.commit();
+        }
+        catch (ClosedByInterruptException e) {
+            return probe.finish(-3);
+        }
+        catch (IOException e) {
+            return probe.finish(2);
+        }
+        probe.stage(Stage.WRITE, time);
+
+        return probe.finish(committed.run());
+    }
+
+}
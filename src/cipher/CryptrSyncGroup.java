@@ -0,0 +1,220 @@
+package cipher;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * CryptrSyncGroup commits the output files of a whole batch at once. Committing a single
+ * CryptrOutputFile syncs its data, renames it over the output and syncs the directory, which
+ * costs two fsyncs per file. Output files committed while a group is active on their thread
+ * are only staged instead, and the group commits all of them together: the data of every
+ * file is synced in parallel, so the file system can combine them into few journal commits,
+ * then every file is renamed, and then every directory is synced once.
+ *
+ * Until the group is committed, the original files are untouched, so a crash at any point
+ * leaves either the old or the new version of every file, never a partial one. Closing a
+ * group which was not committed deletes the staged files.
+ *
+ * A group is filled from many threads, but committed from one.
+ */
+public class CryptrSyncGroup implements AutoCloseable {
+
+    private static final int SYNC_THREADS = 16;
+    private static final ThreadLocal<CryptrSyncGroup> CURRENT = new ThreadLocal<>();
+
+    private final ConcurrentLinkedQueue<Staged> staged = new ConcurrentLinkedQueue<>();
+
+    /**
+     * A written temporary file and the output it replaces.
+     */
+    private static class Staged {
+        final Path temp;
+        final Path target;
+
+        Staged(Path temp, Path target) {
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Syncs, renames and syncs the directories of all staged output files. Every file is
+     * committed even if others fail, and files which fail are deleted. A commit is not
+     * interrupted, since the staged files are complete and only need to be moved in place.
+     *
+     * @return the outputs which could not be committed, empty if all were
+     */
+    public List<Path> commit() {
+        List<Staged> files = new ArrayList<>();
+        for (Staged file = staged.poll(); file != null; file = staged.poll()) {
+            files.add(file);
+        }
+
+        boolean interrupted = Thread.interrupted();
+        try {
+            return commit(files);
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static List<Path> commit(List<Staged> files) {
+        boolean[] synced = syncAll(files);
+        List<Path> failed = new ArrayList<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        for (int i = 0; i < files.size(); i++) {
+            Staged file = files.get(i);
+            try {
+                if (!synced[i]) {
+                    throw new IOException("could not sync " + file.temp);
+                }
+                move(file.temp, file.target);
+                directories.add(file.target.toAbsolutePath().getParent());
+            }
+            catch (IOException e) {
+                failed.add(file.target);
+                delete(file.temp);
+            }
+        }
+
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+        return failed;
+    }
+
+    /**
+     * Syncs the data of staged files. Concurrent fsyncs are combined by the file system into
+     * shared journal commits, so they are issued from several threads at once.
+     *
+     * @return whether each file was synced
+     */
+    private static boolean[] syncAll(List<Staged> files) {
+        boolean[] synced = new boolean[files.size()];
+        if (files.isEmpty()) {
+            return synced;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            int index = i;
+            tasks.add(() -> {
+                sync(files.get(index).temp);
+                synced[index] = true;
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(SYNC_THREADS, files.size()));
+        try {
+            executor.invokeAll(tasks);
+        }
+        catch (InterruptedException e) {
+            // files which were not synced yet are reported as failed
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return synced;
+    }
+
+    /**
+     * Deletes the staged files which were not committed.
+     */
+    @Override
+    public void close() {
+        for (Staged file = staged.poll(); file != null; file = staged.poll()) {
+            delete(file.temp);
+        }
+    }
+
+    /**
+     * Makes this group the one output files committed on the current thread are staged in,
+     * until exit() is called.
+     */
+    void enter() {
+        CURRENT.set(this);
+    }
+
+    void exit() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Returns the group active on the current thread, so work handed to other threads can
+     * stage its outputs in it with CryptrOutputFile.open(String, CryptrSyncGroup).
+     *
+     * @return the group active on the current thread, or null if there is none
+     */
+    public static CryptrSyncGroup current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Stages a written and closed temporary file, to replace the target on commit().
+     */
+    void stage(Path temp, Path target) {
+        staged.add(new Staged(temp, target));
+    }
+
+    /**
+     * Flushes the data of a closed file to the disk.
+     */
+    static void sync(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Flushes a directory to the disk, so renames in it survive a crash. Not every platform
+     * can open a directory for this, so failures are ignored.
+     */
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // the rename is still atomic, it may just not be durable yet
+        }
+    }
+
+    /**
+     * Renames a file over another atomically, where the file system supports it.
+     */
+    static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e) {
+            // a leftover temporary file does not affect the output
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package compressor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * CryptrCodec is a compression method for the entries of an archive. The zip method of the
+ * codec is stored in the local and central header of every entry, so an archive is always
+ * extracted with the codecs it was written with, whichever profile picked them.
+ *
+ * STORE and DEFLATE are the standard zip methods. LZ is the CryptrLz codec under a method ID
+ * no registered zip method uses, so archives with LZ entries can only be extracted by Cryptr.
+ * Method IDs are stored in archives, so they must never change.
+ */
+enum CryptrCodec {
+
+    STORE(CryptrZipWriter.STORED),
+    DEFLATE(CryptrZipWriter.DEFLATED),
+    LZ(CryptrZipWriter.LZ);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    final int method;
+
+    /**
+     * Compresses data into a stream, which is not closed.
+     */
+    static interface Encoder {
+        void write(byte[] data, int offset, int length) throws IOException;
+
+        /**
+         * Writes the end of the data.
+         *
+         * @return the compressed size
+         */
+        long finish() throws IOException;
+
+        /**
+         * Releases the encoder, whether it finished or not.
+         */
+        void end();
+    }
+
+    CryptrCodec(int method) {
+        this.method = method;
+    }
+
+    /**
+     * @return the codec with the given zip method, or null if there is none
+     */
+    static CryptrCodec of(int method) {
+        for (CryptrCodec codec : values()) {
+            if (codec.method == method) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param out - stream to write the compressed data to
+     * @param level - deflate level, ignored by the other codecs
+     * @return an encoder writing to out
+     */
+    Encoder encoder(OutputStream out, int level) {
+        if (this == STORE) {
+            return new Encoder() {
+                private long size = 0;
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    out.write(data, offset, length);
+                    size += length;
+                }
+
+                @Override
+                public long finish() {
+                    return size;
+                }
+
+                @Override
+                public void end() {
+                }
+            };
+        }
+
+        if (this == DEFLATE) {
+            Deflater deflater = new Deflater(level, true);
+            DeflaterOutputStream dout = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            return new Encoder() {
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    dout.write(data, offset, length);
+                }
+
+                @Override
+                public long finish() throws IOException {
+                    dout.finish();
+                    return deflater.getBytesWritten();
+                }
+
+                @Override
+                public void end() {
+                    deflater.end();
+                }
+            };
+        }
+
+        CryptrLz.Output lout = new CryptrLz.Output(out);
+        return new Encoder() {
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                lout.write(data, offset, length);
+            }
+
+            @Override
+            public long finish() throws IOException {
+                lout.finish();
+                return lout.written();
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+    }
+
+    /**
+     * Decompresses the data of an entry. Closing the stream releases the decoder.
+     *
+     * @param in - stream holding exactly the compressed data of the entry
+     * @return a stream of the original data
+     */
+    InputStream decoder(InputStream in) {
+        if (this == STORE) {
+            return in;
+        }
+
+        if (this == DEFLATE) {
+            return new InflaterInputStream(in, new Inflater(true), BUFFER_SIZE) {
+                @Override
+                public void close() {
+                    inf.end();
+                }
+            };
+        }
+
+        return new CryptrLz.Input(in);
+    }
+
+}
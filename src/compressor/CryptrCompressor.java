@@ -1,57 +1,877 @@
 package compressor;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import cipher.CryptrOutputFile;
+import cipher.CryptrSyncGroup;
+import metrics.CryptrListener;
+import metrics.CryptrProbe;
+import metrics.Stage;
+
 /**
- * CryptrCompressor combines and compresses multiple files into a zip archive.
+ * CryptrCompressor combines and compresses multiple files into a zip archive, either one
+ * entry after another or with entries deflated in parallel, and extracts archives from a
+ * stream with entries inflated in parallel. Progress and stage timings of every entry are
+ * reported to the listener set with setListener().
+ *
+ * In parallel mode a Profile trades ratio for speed by choosing the codec and level of every
+ * entry. The codec is recorded in the header of each entry, so extract() always picks the
+ * right decoder.
  */
 public class CryptrCompressor {
 
-    private static final int BUFFER_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MEMORY_ENTRY_SIZE = 4 * 1024 * 1024;
+    private static final long DEFLATER_MEMORY = 256 * 1024;
+    private static final int MIN_SAMPLE_SIZE = 4 * 1024;
+    private static final double STORE_RATIO = 0.95;
+    private static final double FAST_RATIO = 0.8;
+
+    private static volatile CryptrListener listener = CryptrListener.NONE;
+
+    /**
+     * Named trade-offs between speed and ratio for compressing in parallel. Each profile
+     * samples the start of every file and stores entries which do not compress.
+     *
+     * FASTEST compresses with the LZ codec, which keeps up with fast disks at a lower ratio,
+     * but can only be extracted by Cryptr. BALANCED deflates at a fast level when a sample
+     * barely compresses, and at the default level otherwise. SMALLEST deflates at the best
+     * level.
+     */
+    public static enum Profile {
+        FASTEST, BALANCED, SMALLEST;
+
+        /**
+         * @return the profile with a name such as "fastest", in any case, or null if there is none
+         */
+        public static Profile of(String name) {
+            for (Profile profile : values()) {
+                if (profile.name().equalsIgnoreCase(name)) {
+                    return profile;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The codec and level an entry is compressed with.
+     */
+    private static class Encoding {
+        final CryptrCodec codec;
+        final int level;
+
+        Encoding(CryptrCodec codec, int level) {
+            this.codec = codec;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Records how an entry was written to an archive.
+     */
+    public static class EntryStats {
+        public final String name;
+        public final int method;
+        public final int level;
+        public final long size;
+        public final long compressedSize;
+
+        EntryStats(String name, int method, int level, long size, long compressedSize) {
+            this.name = name;
+            this.method = method;
+            this.level = level;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+
+        /**
+         * @return compressed size as a fraction of the original size
+         */
+        public double ratio() {
+            return size == 0 ? 1 : (double) compressedSize / size;
+        }
+
+        @Override
+        public String toString() {
+            String decision = method == ZipEntry.STORED ? "stored"
+                    : method == ZipEntry.DEFLATED ? "deflated (level " + level + ")" : "lz";
+            return String.format("%s: %s, %d -> %d bytes (%.1f%%)", name, decision, size, compressedSize,
+                    ratio() * 100);
+        }
+    }
+
+    /**
+     * Sets the listener which receives progress and stage timings of every file compressed
+     * from now on, on any thread.
+     *
+     * @param listener - listener to report to, or null to stop reporting
+     */
+    public static void setListener(CryptrListener listener) {
+        CryptrCompressor.listener = listener == null ? CryptrListener.NONE : listener;
+    }
 
     /**
      * Combines and compresses multiple files into a zip archive.
      *
      * @param files - list of file paths for each file to compress
      * @param zipName - name for the created zip archive
-     * @return -2 on error creating archive
+     * @return -3 if the thread was interrupted
+     *         -2 on error creating archive
      *         -1 on success
      *         else returns the index of the file from files which failed to compress
      */
     public static int compress(String[] files, String zipName) {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(zipName), BUFFER_SIZE)) {
+            return compress(files, out);
+        }
+        catch (IOException e) {
+            return -2;
+        }
+    }
+
+    /**
+     * Combines and compresses multiple files into a zip archive written to a stream. The
+     * stream is not closed, so the archive can be passed on to further stages such as
+     * encryption without being stored first.
+     *
+     * @param files - list of file paths for each file to compress
+     * @param out - stream to write the archive to
+     * @return -3 if the thread was interrupted
+     *         -2 on error creating archive
+     *         -1 on success
+     *         else returns the index of the file from files which failed to compress
+     */
+    public static int compress(String[] files, OutputStream out) {
+        return compress(files, out, false, null);
+    }
+
+    /**
+     * Combines and compresses multiple files into a zip archive written to a stream, which is
+     * not closed. In adaptive mode the start of each file is sampled first, and entries which
+     * barely compress are written with a fast level or with no compression at all, so CPU is
+     * not wasted on media, archives or encrypted files.
+     *
+     * @param files - list of file paths for each file to compress
+     * @param out - stream to write the archive to
+     * @param adaptive - whether to pick the compression level of each entry from a sample
+     * @param stats - list to add the stats of each written entry to, or null
+     * @return -3 if the thread was interrupted
+     *         -2 on error creating archive
+     *         -1 on success
+     *         else returns the index of the file from files which failed to compress
+     */
+    public static int compress(String[] files, OutputStream out, boolean adaptive, List<EntryStats> stats) {
         byte[] buffer = new byte[BUFFER_SIZE];
 
-        try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(zipName))) {
+        try (ZipOutputStream zout = new ZipOutputStream(new UnclosedOutputStream(out))) {
             for (int i = 0; i < files.length; i++) {
-                try {
-                    File file = new File(files[i]);
-                    FileInputStream fin = new FileInputStream(file);
+                File file = new File(files[i]);
+                CryptrProbe probe = CryptrProbe.start(listener, files[i], file.length());
+                try (FileInputStream fin = new FileInputStream(file)) {
+                    long time = probe.now();
+                    int length = fin.readNBytes(buffer, 0, BUFFER_SIZE);
+                    int level = adaptive ? chooseLevel(buffer, length) : Deflater.DEFAULT_COMPRESSION;
+                    time = probe.stage(Stage.READ, time);
 
-                    zout.putNextEntry(new ZipEntry(file.getName()));
+                    // a streamed entry needs its crc before it can be stored, so incompressible
+                    // entries are deflated with level 0, which only wraps the data in stored blocks
+                    ZipEntry entry = new ZipEntry(file.getName());
+                    zout.setLevel(level);
+                    zout.putNextEntry(entry);
 
-                    int length;
-                    while ((length = fin.read(buffer)) > 0) {
+                    while (length > 0) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            probe.finish(-3);
+                            return -3;
+                        }
                         zout.write(buffer, 0, length);
+                        probe.bytes(length);
+                        time = probe.stage(Stage.DEFLATE, time);
+                        length = fin.read(buffer);
+                        time = probe.stage(Stage.READ, time);
                     }
 
                     zout.closeEntry();
-                    fin.close();
+                    probe.stage(Stage.DEFLATE, time);
+                    probe.finish(0);
+                    if (stats != null) {
+                        stats.add(new EntryStats(entry.getName(), entry.getMethod(), level, entry.getSize(),
+                                entry.getCompressedSize()));
+                    }
                 }
                 catch (IOException e) {
+                    // an interrupted channel fails with an IOException too
+                    if (Thread.currentThread().isInterrupted()) {
+                        probe.finish(-3);
+                        return -3;
+                    }
+                    probe.finish(1);
                     return i;
                 }
             }
         }
+        catch (IOException e) {
+            return Thread.currentThread().isInterrupted() ? -3 : -2;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Combines and compresses multiple files into a zip archive on the common ForkJoinPool.
+     *
+     * @see #compressParallel(String[], String, ExecutorService)
+     */
+    public static int compressParallel(String[] files, String zipName) {
+        return compressParallel(files, zipName, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Combines and compresses multiple files into a zip archive, deflating entries in parallel.
+     * Each entry is deflated on the executor with its own Deflater, and the compressed entries
+     * are written to the archive in order as they complete. The archive is a standard zip.
+     *
+     * @param files - list of file paths for each file to compress
+     * @param zipName - name for the created zip archive
+     * @param executor - executor to deflate entries on
+     * @return -3 if the thread was interrupted
+     *         -2 on error creating archive
+     *         -1 on success
+     *         else returns the index of the file from files which failed to compress
+     */
+    public static int compressParallel(String[] files, String zipName, ExecutorService executor) {
+        return compressParallel(files, zipName, executor, null);
+    }
+
+    /**
+     * Combines and compresses multiple files into a zip archive, compressing entries in
+     * parallel with the codecs a profile picks for them.
+     *
+     * @param files - list of file paths for each file to compress
+     * @param zipName - name for the created zip archive
+     * @param executor - executor to compress entries on
+     * @param profile - profile to pick the codec of each entry with, or null to deflate every
+     *                  entry at the default level
+     * @return -3 if the thread was interrupted
+     *         -2 on error creating archive
+     *         -1 on success
+     *         else returns the index of the file from files which failed to compress
+     */
+    public static int compressParallel(String[] files, String zipName, ExecutorService executor, Profile profile) {
+        Path tempDir = Paths.get(zipName).toAbsolutePath().getParent();
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(zipName), BUFFER_SIZE)) {
+            return compressParallel(files, out, executor, tempDir, profile, null);
+        }
         catch (IOException e) {
             return -2;
         }
+    }
+
+    /**
+     * Estimates the memory compressParallel holds while it compresses files, so compression
+     * can be scheduled next to other work. At most a window of entries is deflated ahead of
+     * the writer, each holding its buffers and Deflater, and its compressed data if it is
+     * small enough to be kept in memory.
+     *
+     * @param files - list of file paths for each file to compress
+     * @return the estimate in bytes
+     */
+    public static long memory(String[] files) {
+        int window = 2 * Runtime.getRuntime().availableProcessors();
+        long[] entries = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            long size = new File(files[i]).length();
+            entries[i] = 2 * BUFFER_SIZE + DEFLATER_MEMORY + (size > MEMORY_ENTRY_SIZE ? 0 : size);
+        }
+
+        Arrays.sort(entries);
+        long memory = BUFFER_SIZE;
+        for (int i = entries.length - 1; i >= Math.max(0, entries.length - window); i--) {
+            memory += entries[i];
+        }
+        return memory;
+    }
+
+    /**
+     * Writes a zip archive of multiple files to a stream, deflating entries in parallel. The
+     * stream is not closed.
+     *
+     * @param files - list of file paths for each file to compress
+     * @param out - stream to write the archive to
+     * @param executor - executor to deflate entries on
+     * @param tempDir - directory to hold large compressed entries until they are written
+     * @return -3 if the thread was interrupted
+     *         -2 on error creating archive
+     *         -1 on success
+     *         else returns the index of the file from files which failed to compress
+     */
+    public static int compressParallel(String[] files, OutputStream out, ExecutorService executor, Path tempDir) {
+        return compressParallel(files, out, executor, tempDir, false, null);
+    }
+
+    /**
+     * Writes a zip archive of multiple files to a stream, deflating entries in parallel. The
+     * stream is not closed. In adaptive mode the start of each file is sampled first, entries
+     * which barely compress are deflated with a fast level, and incompressible entries are
+     * stored without compression.
+     *
+     * @param files - list of file paths for each file to compress
+     * @param out - stream to write the archive to
+     * @param executor - executor to deflate entries on
+     * @param tempDir - directory to hold large compressed entries until they are written
+     * @param adaptive - whether to pick the compression of each entry from a sample
+     * @param stats - list to add the stats of each written entry to, or null
+     * @return -3 if the thread was interrupted
+     *         -2 on error creating archive
+     *         -1 on success
+     *         else returns the index of the file from files which failed to compress
+     */
+    public static int compressParallel(String[] files, OutputStream out, ExecutorService executor, Path tempDir,
+            boolean adaptive, List<EntryStats> stats) {
+        return compressParallel(files, out, executor, tempDir, adaptive ? Profile.BALANCED : null, stats);
+    }
+
+    /**
+     * Writes a zip archive of multiple files to a stream, compressing entries in parallel with
+     * the codecs a profile picks for them. The stream is not closed.
+     *
+     * @param files - list of file paths for each file to compress
+     * @param out - stream to write the archive to
+     * @param executor - executor to compress entries on
+     * @param tempDir - directory to hold large compressed entries until they are written
+     * @param profile - profile to pick the codec of each entry with, or null to deflate every
+     *                  entry at the default level
+     * @param stats - list to add the stats of each written entry to, or null
+     * @return -3 if the thread was interrupted
+     *         -2 on error creating archive
+     *         -1 on success
+     *         else returns the index of the file from files which failed to compress
+     */
+    public static int compressParallel(String[] files, OutputStream out, ExecutorService executor, Path tempDir,
+            Profile profile, List<EntryStats> stats) {
+        CryptrZipWriter zip = new CryptrZipWriter(out);
+        List<Future<CryptrZipWriter.Entry>> entries = new ArrayList<>(files.length);
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        int window = 2 * Runtime.getRuntime().availableProcessors();
+        int i = 0;
+
+        try {
+            for (; i < files.length; i++) {
+                // keep a bounded number of entries compressed ahead of the writer
+                while (entries.size() < files.length && entries.size() < i + window) {
+                    File file = new File(files[entries.size()]);
+                    CryptrListener current = listener;
+                    entries.add(executor.submit(() -> compressEntry(file, tempDir, profile, current, stopped)));
+                }
+
+                CryptrZipWriter.Entry entry;
+                try {
+                    entry = entries.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    // the executor may run an entry on this thread while it waits for it
+                    if (Thread.currentThread().isInterrupted()) {
+                        return -3;
+                    }
+                    return i;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    zip.write(entry);
+                }
+                finally {
+                    entry.delete();
+                }
+                listener.stageTime(files[i], Stage.WRITE, System.nanoTime() - start);
+
+                if (stats != null) {
+                    stats.add(new EntryStats(entry.name, entry.method, entry.level, entry.size,
+                            entry.compressedSize));
+                }
+            }
+            zip.finish();
+        }
+        catch (IOException e) {
+            return Thread.currentThread().isInterrupted() ? -3 : -2;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -3;
+        }
+        finally {
+            // entries which are still being deflated see the flag, since not every executor
+            // interrupts a cancelled task
+            stopped.set(true);
+            for (int j = i; j < entries.size(); j++) {
+                discard(entries.get(j));
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Extracts a zip archive read from a stream into a directory on the common ForkJoinPool.
+     *
+     * @see #extract(InputStream, String, Set, ExecutorService)
+     */
+    public static int extract(InputStream in, String outputDir, Set<String> names) {
+        return extract(in, outputDir, names, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Extracts the entries of a zip archive read from a stream into a directory. The archive is
+     * read front to back in a single pass, so it can come straight out of a decrypting stream
+     * without being stored first. Small entries whose sizes are in their local header, as
+     * compressParallel() writes them, are read ahead and inflated and written on the executor
+     * while the next entries are read. Large entries, and streamed entries as compress() writes
+     * them, are inflated on this thread. Every entry is checked against its crc.
+     *
+     * Entries whose names would place them outside the directory are refused. The stream is
+     * read to its end but not closed. Every entry is written to a temporary file and moved over
+     * its target once complete. When the calling thread has a CryptrSyncGroup, the entries are
+     * staged in it; otherwise they are only moved once the whole archive has been extracted,
+     * so a failed extraction leaves the existing files untouched.
+     *
+     * @param in - stream to read the archive from
+     * @param outputDir - directory to extract the entries into, created if needed
+     * @param names - names of the entries to extract, or null to extract all of them
+     * @param executor - executor to inflate entries on
+     * @return -3 if the thread was interrupted
+     *         -2 on error reading the archive, or if it is damaged
+     *         -1 on success
+     *         else returns the index of the entry in the archive which failed to extract
+     */
+    public static int extract(InputStream in, String outputDir, Set<String> names, ExecutorService executor) {
+        Path root = Paths.get(outputDir).toAbsolutePath().normalize();
+        CryptrZipReader reader = new CryptrZipReader(in);
+        List<Future<Integer>> pending = new ArrayList<>();
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        int window = 2 * Runtime.getRuntime().availableProcessors();
+        CryptrSyncGroup caller = CryptrSyncGroup.current();
+        CryptrSyncGroup group = caller != null ? caller : new CryptrSyncGroup();
+        Map<Path, Integer> indexes = new HashMap<>();
+
+        try {
+            Files.createDirectories(root);
+
+            CryptrZipReader.Entry entry;
+            for (int i = 0; (entry = reader.next()) != null; i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return -3;
+                }
+                if (names != null && !names.contains(entry.name)) {
+                    reader.skip(entry, CryptrProbe.start(CryptrListener.NONE, entry.name, entry.size));
+                    continue;
+                }
+
+                CryptrProbe probe = CryptrProbe.start(listener, entry.name, entry.size);
+                Path target = root.resolve(entry.name).normalize();
+                if (!target.startsWith(root) || target.equals(root)) {
+                    probe.finish(2);
+                    return i;
+                }
+                if (entry.isDirectory()) {
+                    reader.skip(entry, probe);
+                    if (!createDirectories(target)) {
+                        probe.finish(2);
+                        return i;
+                    }
+                    probe.finish(0);
+                    continue;
+                }
+
+                indexes.put(target, i);
+                if (entry.streamed || entry.compressedSize > MEMORY_ENTRY_SIZE) {
+                    CryptrZipReader.Entry current = entry;
+                    int response = extractEntry(target, i, probe, group, stopped,
+                            out -> reader.extract(current, out, probe));
+                    if (response != -1) {
+                        return response;
+                    }
+                    continue;
+                }
+
+                // keep a bounded number of entries read ahead of the ones being inflated
+                while (pending.size() >= window) {
+                    int response = await(pending.remove(0));
+                    if (response != -1) {
+                        return response;
+                    }
+                }
+
+                CryptrZipReader.Entry current = entry;
+                byte[] data = reader.readData(entry);
+                int index = i;
+                pending.add(executor.submit(() -> extractEntry(target, index, probe, group, stopped,
+                        out -> CryptrZipReader.inflate(current, data, out, probe, stopped))));
+            }
+
+            while (!pending.isEmpty()) {
+                int response = await(pending.remove(0));
+                if (response != -1) {
+                    return response;
+                }
+            }
+            reader.drain();
+
+            if (caller == null) {
+                int failed = -1;
+                for (Path path : group.commit()) {
+                    int index = indexes.get(path);
+                    failed = failed == -1 ? index : Math.min(failed, index);
+                }
+                if (failed != -1) {
+                    return failed;
+                }
+            }
+        }
+        catch (IOException e) {
+            return Thread.currentThread().isInterrupted() ? -3 : -2;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -3;
+        }
+        finally {
+            // entries which are still being inflated see the flag, since not every executor
+            // interrupts a cancelled task
+            stopped.set(true);
+            for (Future<Integer> entry : pending) {
+                entry.cancel(true);
+            }
+            reader.end();
+            if (caller == null) {
+                // deletes the entries staged before a failure
+                group.close();
+            }
+        }
 
         return -1;
     }
 
+    /**
+     * Writes the data of an entry to a temporary file and stages it in the group. A file which
+     * is not written completely is deleted, and the target is left as it was.
+     *
+     * @return -3 if extracting was stopped
+     *         -2 if the entry is damaged
+     *         -1 on success
+     *         else index, if the file could not be written
+     */
+    private static int extractEntry(Path target, int index, CryptrProbe probe, CryptrSyncGroup group,
+            AtomicBoolean stopped, EntryData data) {
+        if (!createDirectories(target.getParent())) {
+            probe.finish(2);
+            return index;
+        }
+
+        CryptrOutputFile output;
+        try {
+            output = CryptrOutputFile.open(target.toString(), group);
+        }
+        catch (IOException e) {
+            probe.finish(2);
+            return index;
+        }
+
+        TrackedOutputStream out = new TrackedOutputStream(Channels.newOutputStream(output.channel()));
+        try (CryptrOutputFile file = output) {
+            data.writeTo(out);
+            out.flush();
+            // an entry finishing after a failure must not be staged in a group already closed
+            checkStopped(stopped);
+            try {
+                file.commit();
+            }
+            catch (IOException e) {
+                out.failed = true;
+                throw e;
+            }
+        }
+        catch (IOException e) {
+            // an interrupted channel fails with an IOException too
+            if (e instanceof InterruptedIOException || Thread.currentThread().isInterrupted()) {
+                return probe.finish(-3);
+            }
+            if (out.failed) {
+                probe.finish(2);
+                return index;
+            }
+            return probe.finish(-2);
+        }
+
+        probe.finish(0);
+        return -1;
+    }
+
+    private static boolean createDirectories(Path directory) {
+        try {
+            Files.createDirectories(directory);
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Waits for an entry extracted on the executor.
+     *
+     * @return the response of extractEntry() for the entry
+     */
+    private static int await(Future<Integer> entry) throws InterruptedException {
+        try {
+            return entry.get();
+        }
+        catch (ExecutionException e) {
+            // the executor may run an entry on this thread while it waits for it
+            return Thread.currentThread().isInterrupted() ? -3 : -2;
+        }
+    }
+
+    /**
+     * Compresses a file into an entry with the codec its profile picks. Small entries are kept
+     * in memory and large ones are written to a temporary file. Once the archive is stopped,
+     * or the thread is interrupted, compressing stops at the next buffer and the temporary
+     * file is deleted.
+     */
+    private static CryptrZipWriter.Entry compressEntry(File file, Path tempDir, Profile profile,
+            CryptrListener listener, AtomicBoolean stopped) throws IOException {
+        CryptrProbe probe = CryptrProbe.start(listener, file.getPath(), file.length());
+        Path temp = file.length() > MEMORY_ENTRY_SIZE ? Files.createTempFile(tempDir, "cryptr", ".deflate") : null;
+        ByteArrayOutputStream memory = temp == null ? new ByteArrayOutputStream() : null;
+        CryptrCodec.Encoder encoder = null;
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+
+        try (FileInputStream fin = new FileInputStream(file);
+                OutputStream sink = temp == null ? memory : Files.newOutputStream(temp)) {
+            long time = probe.now();
+            int length = fin.readNBytes(buffer, 0, BUFFER_SIZE);
+            Encoding encoding = chooseEncoding(profile, buffer, length);
+            Stage stage = encoding.codec == CryptrCodec.STORE ? Stage.WRITE : Stage.DEFLATE;
+            encoder = encoding.codec.encoder(sink, encoding.level);
+            time = probe.stage(Stage.READ, time);
+
+            while (length > 0) {
+                crc.update(buffer, 0, length);
+                encoder.write(buffer, 0, length);
+                size += length;
+                probe.bytes(length);
+                time = probe.stage(stage, time);
+                checkStopped(stopped);
+                length = fin.read(buffer);
+                time = probe.stage(Stage.READ, time);
+            }
+            long compressedSize = encoder.finish();
+            probe.stage(stage, time);
+
+            checkStopped(stopped);
+            probe.finish(0);
+            return new CryptrZipWriter.Entry(file.getName(), encoding.codec.method, encoding.level, crc.getValue(),
+                    size, compressedSize, temp == null ? memory.toByteArray() : null, temp);
+        }
+        catch (IOException e) {
+            probe.finish(1);
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+            throw e;
+        }
+        finally {
+            if (encoder != null) {
+                encoder.end();
+            }
+        }
+    }
+
+    /**
+     * Picks the codec and level of an entry for a profile from a sample of its start.
+     */
+    private static Encoding chooseEncoding(Profile profile, byte[] sample, int length) {
+        if (profile == null) {
+            return new Encoding(CryptrCodec.DEFLATE, Deflater.DEFAULT_COMPRESSION);
+        }
+
+        if (profile == Profile.FASTEST) {
+            // the sample is a single LZ block, so sampling costs less than a deflate sample
+            if (length >= MIN_SAMPLE_SIZE) {
+                byte[] encoded = new byte[CryptrLz.maxEncodedLength(length)];
+                int encodedLength = CryptrLz.encode(sample, length, encoded, CryptrLz.newTable());
+                if ((double) encodedLength / length > STORE_RATIO) {
+                    return new Encoding(CryptrCodec.STORE, Deflater.NO_COMPRESSION);
+                }
+            }
+            return new Encoding(CryptrCodec.LZ, 0);
+        }
+
+        int level = chooseLevel(sample, length);
+        if (level == Deflater.NO_COMPRESSION) {
+            return new Encoding(CryptrCodec.STORE, level);
+        }
+        return new Encoding(CryptrCodec.DEFLATE, profile == Profile.SMALLEST ? Deflater.BEST_COMPRESSION : level);
+    }
+
+    /**
+     * Picks the compression level for an entry by deflating a sample from its start with the
+     * fastest level and looking at how much it shrank.
+     *
+     * @return Deflater.NO_COMPRESSION if the sample is incompressible,
+     *         Deflater.BEST_SPEED if it barely compresses,
+     *         else Deflater.DEFAULT_COMPRESSION
+     */
+    static int chooseLevel(byte[] sample, int length) {
+        if (length < MIN_SAMPLE_SIZE) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] scratch = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                deflater.deflate(scratch);
+            }
+
+            double ratio = (double) deflater.getBytesWritten() / length;
+            if (ratio > STORE_RATIO) {
+                return Deflater.NO_COMPRESSION;
+            }
+            if (ratio > FAST_RATIO) {
+                return Deflater.BEST_SPEED;
+            }
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static void checkStopped(AtomicBoolean stopped) throws InterruptedIOException {
+        if (stopped.get() || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("compression was stopped");
+        }
+    }
+
+    /**
+     * Cancels an entry which will not be written, deleting its temporary file if it was
+     * already compressed.
+     */
+    private static void discard(Future<CryptrZipWriter.Entry> entry) {
+        if (!entry.cancel(true)) {
+            // the entry is done so get() cannot block, but some futures fail on an interrupt anyway
+            boolean interrupted = Thread.interrupted();
+            try {
+                entry.get().delete();
+            }
+            catch (InterruptedException | ExecutionException | CancellationException e) {
+                // nothing was left behind
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the data of an entry to a stream.
+     */
+    private static interface EntryData {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Buffers writes to a file and records whether writing failed, so a failure to write an
+     * entry can be told apart from a failure to read it.
+     */
+    private static class TrackedOutputStream extends BufferedOutputStream {
+
+        boolean failed = false;
+
+        TrackedOutputStream(OutputStream out) {
+            super(out, BUFFER_SIZE);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                super.write(b, off, len);
+            }
+            catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            try {
+                super.flush();
+            }
+            catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+    }
+
+    /**
+     * Passes writes through to a stream, but only flushes it when closed.
+     */
+    private static class UnclosedOutputStream extends FilterOutputStream {
+
+        UnclosedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+
+    }
+
 }
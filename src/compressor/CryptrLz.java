@@ -0,0 +1,376 @@
+package compressor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * CryptrLz is a fast LZ77 codec in the style of LZ4, for archiving data where speed matters
+ * more than ratio. It has no entropy coding: matches are found with a single hash probe per
+ * position, and decoding is little more than copying bytes, so both directions run several
+ * times faster than deflate.
+ *
+ * The data of an entry is a sequence of blocks of up to 64 KiB, each compressed on its own.
+ * A block starts with an 8 byte header holding its original and its encoded length, and a
+ * block which does not shrink is stored as is, marked by the top bit of its encoded length.
+ *
+ * An encoded block is a sequence of token, literals, 2 byte offset and match. The high half of
+ * the token is the number of literals and the low half the match length minus 4, and either
+ * continues in extra bytes when it is 15. The last sequence of a block has literals only.
+ */
+final class CryptrLz {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int HASH_BITS = 14;
+    private static final int HASH_PRIME = -1640531535;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_LIMIT = 12;
+    private static final int SKIP_SHIFT = 6;
+    private static final int STORED_FLAG = 1 << 31;
+    private static final int HEADER_SIZE = 8;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private CryptrLz() {
+    }
+
+    /**
+     * @return the largest size a block of the given length can encode to
+     */
+    static int maxEncodedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * @return a hash table to encode blocks with, which can be reused from block to block
+     */
+    static int[] newTable() {
+        return new int[1 << HASH_BITS];
+    }
+
+    /**
+     * Encodes a block. No match starts within the last 12 bytes or covers the last 5, so the
+     * decoder never has to check a match against the end of the block.
+     *
+     * @param src - data of the block, starting at index 0
+     * @param length - length of the block, at most BLOCK_SIZE
+     * @param dst - array to encode into, of at least maxEncodedLength(length)
+     * @param table - hash table from newTable()
+     * @return the encoded length
+     */
+    static int encode(byte[] src, int length, byte[] dst, int[] table) {
+        Arrays.fill(table, -1);
+        int limit = length - MATCH_LIMIT;
+        int anchor = 0;
+        int position = 0;
+        int out = 0;
+        int misses = 0;
+
+        while (position < limit) {
+            int sequence = (int) INT.get(src, position);
+            int hash = (sequence * HASH_PRIME) >>> (32 - HASH_BITS);
+            int candidate = table[hash];
+            table[hash] = position;
+
+            if (candidate < 0 || (int) INT.get(src, candidate) != sequence) {
+                // step faster through data which does not match, such as compressed media
+                position += 1 + (misses++ >>> SKIP_SHIFT);
+                continue;
+            }
+            misses = 0;
+
+            while (position > anchor && candidate > 0 && src[position - 1] == src[candidate - 1]) {
+                position--;
+                candidate--;
+            }
+            int matchLength = MIN_MATCH
+                    + commonLength(src, candidate + MIN_MATCH, position + MIN_MATCH, length - LAST_LITERALS);
+            out = writeSequence(src, anchor, position - anchor, position - candidate, matchLength, dst, out);
+            position += matchLength;
+            anchor = position;
+        }
+
+        return writeSequence(src, anchor, length - anchor, 0, 0, dst, out);
+    }
+
+    /**
+     * Decodes a block, checking every length and offset against the bounds of both arrays.
+     *
+     * @param src - encoded block, starting at index 0
+     * @param length - encoded length
+     * @param dst - array to decode into, starting at index 0
+     * @param size - original length of the block
+     * @throws ZipException if the block is malformed or does not decode to size bytes
+     */
+    static void decode(byte[] src, int length, byte[] dst, int size) throws ZipException {
+        int in = 0;
+        int out = 0;
+
+        while (true) {
+            if (in >= length) {
+                throw new ZipException("invalid lz data");
+            }
+            int token = src[in++] & 0xff;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int extra;
+                do {
+                    if (in >= length) {
+                        throw new ZipException("invalid lz data");
+                    }
+                    extra = src[in++] & 0xff;
+                    literals += extra;
+                } while (extra == 255);
+            }
+            if (literals > length - in || literals > size - out) {
+                throw new ZipException("invalid lz data");
+            }
+            System.arraycopy(src, in, dst, out, literals);
+            in += literals;
+            out += literals;
+
+            if (in == length) {
+                break;
+            }
+
+            if (length - in < 2) {
+                throw new ZipException("invalid lz data");
+            }
+            int offset = (src[in] & 0xff) | (src[in + 1] & 0xff) << 8;
+            in += 2;
+            int matchLength = (token & 15) + MIN_MATCH;
+            if ((token & 15) == 15) {
+                int extra;
+                do {
+                    if (in >= length) {
+                        throw new ZipException("invalid lz data");
+                    }
+                    extra = src[in++] & 0xff;
+                    matchLength += extra;
+                } while (extra == 255);
+            }
+            if (offset == 0 || offset > out || matchLength > size - out) {
+                throw new ZipException("invalid lz data");
+            }
+
+            if (offset >= matchLength) {
+                System.arraycopy(dst, out - offset, dst, out, matchLength);
+                out += matchLength;
+            }
+            else {
+                // an overlapping match repeats the bytes it has just written
+                for (int end = out + matchLength; out < end; out++) {
+                    dst[out] = dst[out - offset];
+                }
+            }
+        }
+
+        if (out != size) {
+            throw new ZipException("invalid lz data");
+        }
+    }
+
+    /**
+     * @return the number of equal bytes at two positions, up to end for the later one
+     */
+    private static int commonLength(byte[] data, int earlier, int later, int end) {
+        int length = 0;
+        while (later + length + 8 <= end) {
+            long difference = (long) LONG.get(data, earlier + length) ^ (long) LONG.get(data, later + length);
+            if (difference != 0) {
+                return length + (Long.numberOfTrailingZeros(difference) >>> 3);
+            }
+            length += 8;
+        }
+        while (later + length < end && data[earlier + length] == data[later + length]) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a sequence of literals followed by a match, or by nothing if matchLength is 0.
+     *
+     * @return the position after the sequence
+     */
+    private static int writeSequence(byte[] src, int anchor, int literals, int offset, int matchLength, byte[] dst,
+            int out) {
+        int token = out++;
+        int extraMatch = matchLength - MIN_MATCH;
+        dst[token] = (byte) (Math.min(literals, 15) << 4 | (matchLength == 0 ? 0 : Math.min(extraMatch, 15)));
+        if (literals >= 15) {
+            out = writeLength(literals - 15, dst, out);
+        }
+        System.arraycopy(src, anchor, dst, out, literals);
+        out += literals;
+
+        if (matchLength > 0) {
+            dst[out++] = (byte) offset;
+            dst[out++] = (byte) (offset >>> 8);
+            if (extraMatch >= 15) {
+                out = writeLength(extraMatch - 15, dst, out);
+            }
+        }
+        return out;
+    }
+
+    private static int writeLength(int length, byte[] dst, int out) {
+        while (length >= 255) {
+            dst[out++] = (byte) 255;
+            length -= 255;
+        }
+        dst[out++] = (byte) length;
+        return out;
+    }
+
+    /**
+     * Compresses the data written to it into blocks on another stream. finish() writes the
+     * last block, and the other stream is never closed.
+     */
+    static class Output extends OutputStream {
+        private final OutputStream out;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] encoded = new byte[maxEncodedLength(BLOCK_SIZE)];
+        private final byte[] header = new byte[HEADER_SIZE];
+        private final int[] table = newTable();
+        private int length = 0;
+        private long written = 0;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            block[length++] = (byte) b;
+            if (length == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) throws IOException {
+            while (count > 0) {
+                int chunk = Math.min(count, BLOCK_SIZE - length);
+                System.arraycopy(data, offset, block, length, chunk);
+                length += chunk;
+                offset += chunk;
+                count -= chunk;
+                if (length == BLOCK_SIZE) {
+                    writeBlock();
+                }
+            }
+        }
+
+        /**
+         * Writes the last block.
+         */
+        void finish() throws IOException {
+            if (length > 0) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * @return the number of bytes written to the other stream
+         */
+        long written() {
+            return written;
+        }
+
+        private void writeBlock() throws IOException {
+            int encodedLength = encode(block, length, encoded, table);
+            boolean stored = encodedLength >= length;
+            INT.set(header, 0, length);
+            INT.set(header, 4, stored ? length | STORED_FLAG : encodedLength);
+            out.write(header);
+            out.write(stored ? block : encoded, 0, stored ? length : encodedLength);
+            written += HEADER_SIZE + (stored ? length : encodedLength);
+            length = 0;
+        }
+    }
+
+    /**
+     * Decompresses blocks read from another stream, until the other stream ends. The other
+     * stream is not closed.
+     */
+    static class Input extends InputStream {
+        private final InputStream in;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] encoded = new byte[maxEncodedLength(BLOCK_SIZE)];
+        private final byte[] header = new byte[HEADER_SIZE];
+        private int position = 0;
+        private int limit = 0;
+
+        Input(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !readBlock()) {
+                return -1;
+            }
+            return block[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (position == limit && !readBlock()) {
+                return -1;
+            }
+            int length = Math.min(count, limit - position);
+            System.arraycopy(block, position, data, offset, length);
+            position += length;
+            return length;
+        }
+
+        /**
+         * @return false if the other stream ended before a block
+         * @throws ZipException if a block is truncated or malformed
+         */
+        private boolean readBlock() throws IOException {
+            int length = in.readNBytes(header, 0, HEADER_SIZE);
+            if (length == 0) {
+                return false;
+            }
+            if (length < HEADER_SIZE) {
+                throw new ZipException("truncated lz block");
+            }
+
+            int size = (int) INT.get(header, 0);
+            int encodedLength = (int) INT.get(header, 4);
+            boolean stored = (encodedLength & STORED_FLAG) != 0;
+            encodedLength &= ~STORED_FLAG;
+            if (size < 1 || size > BLOCK_SIZE || encodedLength > encoded.length
+                    || (stored && encodedLength != size)) {
+                throw new ZipException("invalid lz block");
+            }
+
+            byte[] target = stored ? block : encoded;
+            if (in.readNBytes(target, 0, encodedLength) < encodedLength) {
+                throw new ZipException("truncated lz block");
+            }
+            if (!stored) {
+                decode(encoded, encodedLength, block, size);
+            }
+            position = 0;
+            limit = size;
+            return true;
+        }
+    }
+
+}
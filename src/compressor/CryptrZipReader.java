@@ -0,0 +1,477 @@
+package compressor;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import metrics.CryptrProbe;
+import metrics.Stage;
+
+/**
+ * CryptrZipReader reads a zip archive from a stream front to back, one local entry after
+ * another, without the central directory at its end. An archive can therefore be extracted
+ * while it is still being decrypted, which a zip file reader cannot do since it starts from
+ * the end.
+ *
+ * Entries whose sizes are in their local header, as CryptrZipWriter writes them, can be read
+ * as raw compressed data and inflated on another thread. Streamed entries, as ZipOutputStream
+ * writes them, only have their sizes in a descriptor after the data, so their end is only
+ * found by inflating them as they are read. Every entry is checked against its crc and sizes.
+ *
+ * Stored and deflated entries are read here directly, and entries of the other codecs through
+ * the decoder of their CryptrCodec.
+ */
+class CryptrZipReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int ENCRYPTED_FLAG = 1;
+    private static final int DESCRIPTOR_FLAG = 1 << 3;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final Inflater inflater = new Inflater(true);
+    private int position = 0;
+    private int limit = 0;
+
+    /**
+     * The local header of an entry. The crc and sizes of a streamed entry are not known until
+     * its data has been read, and are -1.
+     */
+    static class Entry {
+        final String name;
+        final int method;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        final boolean streamed;
+
+        Entry(String name, int method, long crc, long size, long compressedSize, boolean streamed) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.streamed = streamed;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * @param in - stream to read the archive from, which is not closed
+     */
+    CryptrZipReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the local header of the next entry. The data of the previous entry must have been
+     * read or skipped.
+     *
+     * @return the entry, or null once the central directory is reached
+     * @throws ZipException if the stream is not a zip archive or the entry is not supported
+     */
+    Entry next() throws IOException {
+        long signature = readInt();
+        if (signature == CENTRAL_HEADER_SIGNATURE || signature == END_SIGNATURE) {
+            return null;
+        }
+        if (signature != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("not a zip archive");
+        }
+
+        readShort();
+        int flags = readShort();
+        int method = readShort();
+        readInt();
+        long crc = readInt();
+        long compressedSize = readInt();
+        long size = readInt();
+        int nameLength = readShort();
+        int extraLength = readShort();
+        String name = new String(readBytes(nameLength), StandardCharsets.UTF_8);
+        byte[] extra = readBytes(extraLength);
+
+        if ((flags & ENCRYPTED_FLAG) != 0) {
+            throw new ZipException("encrypted entry: " + name);
+        }
+        if (CryptrCodec.of(method) == null) {
+            throw new ZipException("unsupported compression method: " + name);
+        }
+        if ((flags & DESCRIPTOR_FLAG) != 0) {
+            // a stored entry has no end marker, so its size has to be known up front
+            if (method != CryptrZipWriter.DEFLATED) {
+                throw new ZipException("streamed entry is not deflated: " + name);
+            }
+            return new Entry(name, method, -1, -1, -1, true);
+        }
+
+        if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC) {
+            // the zip64 field of a local header holds both sizes, the original size first
+            int i = 0;
+            while (i + 4 <= extra.length && getShort(extra, i) != ZIP64_EXTRA_ID) {
+                i += 4 + getShort(extra, i + 2);
+            }
+            if (i + 20 > extra.length) {
+                throw new ZipException("missing zip64 sizes: " + name);
+            }
+            size = getLong(extra, i + 4);
+            compressedSize = getLong(extra, i + 12);
+        }
+        if (size < 0 || compressedSize < 0) {
+            throw new ZipException("invalid entry size: " + name);
+        }
+
+        return new Entry(name, method, crc, size, compressedSize, false);
+    }
+
+    /**
+     * Reads the raw data of an entry whose sizes are known, to be inflated with inflate().
+     */
+    byte[] readData(Entry entry) throws IOException {
+        byte[] data = new byte[(int) entry.compressedSize];
+        int offset = 0;
+        while (offset < data.length) {
+            fill();
+            int length = Math.min(data.length - offset, limit - position);
+            System.arraycopy(buffer, position, data, offset, length);
+            position += length;
+            offset += length;
+        }
+        return data;
+    }
+
+    /**
+     * Skips the data of an entry. A streamed entry is inflated to find its end.
+     */
+    void skip(Entry entry, CryptrProbe probe) throws IOException {
+        if (entry.streamed) {
+            extract(entry, OutputStream.nullOutputStream(), probe);
+            return;
+        }
+
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            checkInterrupted();
+            fill();
+            int length = (int) Math.min(remaining, limit - position);
+            position += length;
+            remaining -= length;
+        }
+    }
+
+    /**
+     * Reads the data of an entry, inflating it into a stream as it is read, and checks it.
+     *
+     * @throws ZipException if the data does not match the crc or sizes of the entry
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    void extract(Entry entry, OutputStream out, CryptrProbe probe) throws IOException {
+        CRC32 crc = new CRC32();
+        long size;
+        long compressedSize;
+        long time = probe.now();
+
+        if (entry.method == CryptrZipWriter.STORED) {
+            long remaining = entry.compressedSize;
+            while (remaining > 0) {
+                checkInterrupted();
+                fill();
+                int length = (int) Math.min(remaining, limit - position);
+                time = probe.stage(Stage.READ, time);
+                crc.update(buffer, position, length);
+                out.write(buffer, position, length);
+                probe.bytes(length);
+                time = probe.stage(Stage.WRITE, time);
+                position += length;
+                remaining -= length;
+            }
+            size = entry.compressedSize;
+            compressedSize = entry.compressedSize;
+        }
+        else if (entry.method == CryptrZipWriter.DEFLATED) {
+            byte[] output = new byte[BUFFER_SIZE];
+            long remaining = entry.streamed ? Long.MAX_VALUE : entry.compressedSize;
+            inflater.reset();
+            try {
+                while (!inflater.finished()) {
+                    checkInterrupted();
+                    if (inflater.needsInput()) {
+                        if (remaining == 0) {
+                            throw new ZipException("truncated entry: " + entry.name);
+                        }
+                        fill();
+                        int length = (int) Math.min(remaining, limit - position);
+                        inflater.setInput(buffer, position, length);
+                        position += length;
+                        remaining -= length;
+                        time = probe.stage(Stage.READ, time);
+                    }
+
+                    int length = inflater.inflate(output);
+                    if (length == 0 && inflater.needsDictionary()) {
+                        throw new ZipException("invalid deflate data: " + entry.name);
+                    }
+                    crc.update(output, 0, length);
+                    time = probe.stage(Stage.INFLATE, time);
+                    out.write(output, 0, length);
+                    probe.bytes(length);
+                    time = probe.stage(Stage.WRITE, time);
+                }
+            }
+            catch (DataFormatException e) {
+                throw new ZipException("invalid deflate data: " + entry.name);
+            }
+            // the input given to the inflater always comes from the current buffer
+            position -= inflater.getRemaining();
+            size = inflater.getBytesWritten();
+            compressedSize = inflater.getBytesRead();
+        }
+        else {
+            // only deflated entries are streamed, so the size of the data is known
+            EntryStream data = new EntryStream(entry.compressedSize);
+            size = decode(CryptrCodec.of(entry.method).decoder(data), out, crc, probe, null);
+            compressedSize = entry.compressedSize - data.remaining;
+        }
+
+        if (entry.streamed) {
+            // the descriptor holds 8 byte sizes when either size does not fit in 4 bytes
+            long signature = readInt();
+            long expectedCrc = signature == DESCRIPTOR_SIGNATURE ? readInt() : signature;
+            boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+            long expectedCompressedSize = zip64 ? readLong() : readInt();
+            long expectedSize = zip64 ? readLong() : readInt();
+            check(new Entry(entry.name, entry.method, expectedCrc, expectedSize, expectedCompressedSize, true),
+                    crc.getValue(), size, compressedSize);
+        }
+        else {
+            check(entry, crc.getValue(), size, compressedSize);
+        }
+    }
+
+    /**
+     * Reads the rest of the stream, so a decrypting stream reaches its final block and
+     * detects a truncated or damaged end.
+     */
+    void drain() throws IOException {
+        position = limit;
+        while (in.read(buffer) >= 0) {
+            checkInterrupted();
+        }
+    }
+
+    /**
+     * Releases the inflater. The stream is not closed.
+     */
+    void end() {
+        inflater.end();
+    }
+
+    /**
+     * Inflates the raw data of an entry read with readData() into a stream, and checks it.
+     * Inflating stops at the next buffer once stopped is set or the thread is interrupted.
+     *
+     * @throws ZipException if the data does not match the crc or sizes of the entry
+     * @throws InterruptedIOException if inflating was stopped
+     */
+    static void inflate(Entry entry, byte[] data, OutputStream out, CryptrProbe probe, AtomicBoolean stopped)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        long time = probe.now();
+
+        if (entry.method == CryptrZipWriter.STORED) {
+            crc.update(data);
+            out.write(data);
+            probe.bytes(data.length);
+            probe.stage(Stage.WRITE, time);
+            check(entry, crc.getValue(), data.length, data.length);
+            return;
+        }
+        if (entry.method != CryptrZipWriter.DEFLATED) {
+            long size = decode(CryptrCodec.of(entry.method).decoder(new ByteArrayInputStream(data)), out, crc, probe,
+                    stopped);
+            check(entry, crc.getValue(), size, data.length);
+            return;
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            byte[] output = new byte[BUFFER_SIZE];
+            inflater.setInput(data);
+            while (!inflater.finished()) {
+                if (stopped.get() || Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("extraction was stopped");
+                }
+                int length = inflater.inflate(output);
+                if (length == 0 && !inflater.finished()
+                        && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("invalid deflate data: " + entry.name);
+                }
+                crc.update(output, 0, length);
+                time = probe.stage(Stage.INFLATE, time);
+                out.write(output, 0, length);
+                probe.bytes(length);
+                time = probe.stage(Stage.WRITE, time);
+            }
+            check(entry, crc.getValue(), inflater.getBytesWritten(), inflater.getBytesRead());
+        }
+        catch (DataFormatException e) {
+            throw new ZipException("invalid deflate data: " + entry.name);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Copies the output of a decoder into a stream and closes the decoder. Decoding stops at
+     * the next buffer once stopped is set or the thread is interrupted.
+     *
+     * @param stopped - flag to stop at, or null to only stop on an interrupt
+     * @return the number of bytes decoded
+     */
+    private static long decode(InputStream decoder, OutputStream out, CRC32 crc, CryptrProbe probe,
+            AtomicBoolean stopped) throws IOException {
+        byte[] output = new byte[BUFFER_SIZE];
+        long size = 0;
+        long time = probe.now();
+
+        try {
+            int length;
+            while ((length = decoder.read(output)) >= 0) {
+                if ((stopped != null && stopped.get()) || Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("extraction was stopped");
+                }
+                crc.update(output, 0, length);
+                time = probe.stage(Stage.INFLATE, time);
+                out.write(output, 0, length);
+                size += length;
+                probe.bytes(length);
+                time = probe.stage(Stage.WRITE, time);
+            }
+        }
+        finally {
+            decoder.close();
+        }
+        return size;
+    }
+
+    private static void check(Entry entry, long crc, long size, long compressedSize) throws ZipException {
+        if (crc != entry.crc || size != entry.size || compressedSize != entry.compressedSize) {
+            throw new ZipException("corrupt entry: " + entry.name);
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("extraction was stopped");
+        }
+    }
+
+    /**
+     * Reads the data of an entry from the buffer of this reader, up to its compressed size.
+     */
+    private class EntryStream extends InputStream {
+        private long remaining;
+
+        EntryStream(long compressedSize) {
+            this.remaining = compressedSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            fill();
+            remaining--;
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            fill();
+            int length = (int) Math.min(Math.min(count, remaining), limit - position);
+            System.arraycopy(buffer, position, data, offset, length);
+            position += length;
+            remaining -= length;
+            return length;
+        }
+    }
+
+    /**
+     * Refills the buffer if all of it has been read.
+     */
+    private void fill() throws IOException {
+        if (position < limit) {
+            return;
+        }
+        int length = in.read(buffer);
+        if (length < 0) {
+            throw new EOFException("unexpected end of archive");
+        }
+        position = 0;
+        limit = length;
+    }
+
+    private int readByte() throws IOException {
+        fill();
+        return buffer[position++] & 0xff;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) readByte();
+        }
+        return bytes;
+    }
+
+    private int readShort() throws IOException {
+        return readByte() | readByte() << 8;
+    }
+
+    private long readInt() throws IOException {
+        return readShort() | (long) readShort() << 16;
+    }
+
+    private long readLong() throws IOException {
+        return readInt() | readInt() << 32;
+    }
+
+    private static int getShort(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+    }
+
+    private static long getLong(byte[] b, int i) {
+        long value = 0;
+        for (int j = 7; j >= 0; j--) {
+            value = value << 8 | (b[i + j] & 0xff);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,237 @@
+package compressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+/**
+ * CryptrZipWriter writes a standard zip archive from entries which have already been
+ * compressed, so entries can be deflated independently on many threads and only assembled in
+ * order here. Zip64 records are written where sizes, offsets or the entry count need them.
+ * Entries compressed with the LZ codec are only readable by CryptrZipReader.
+ */
+class CryptrZipWriter {
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    // not a registered zip method, see CryptrCodec
+    static final int LZ = 0x4C5A;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int UTF8_FLAG = 1 << 11;
+    private static final int VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private final OutputStream out;
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private final int dosTime;
+    private long position = 0;
+    private long count = 0;
+
+    /**
+     * A compressed entry, with its data held either in memory or in a temporary file.
+     */
+    static class Entry {
+        final String name;
+        final int method;
+        final int level;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        final byte[] data;
+        final Path file;
+
+        Entry(String name, int method, int level, long crc, long size, long compressedSize, byte[] data,
+                Path file) {
+            this.name = name;
+            this.method = method;
+            this.level = level;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.data = data;
+            this.file = file;
+        }
+
+        /**
+         * Deletes the temporary file holding the data, if any.
+         */
+        void delete() {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                }
+                catch (IOException e) {
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param out - stream to write the archive to
+     */
+    CryptrZipWriter(OutputStream out) {
+        this.out = out;
+        this.dosTime = dosTime(LocalDateTime.now());
+    }
+
+    /**
+     * Writes an entry's local header and data.
+     */
+    void write(Entry entry) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        int flags = isAscii(entry.name) ? 0 : UTF8_FLAG;
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        long offset = position;
+
+        writeInt(out, LOCAL_HEADER_SIGNATURE);
+        writeShort(out, zip64 ? ZIP64_VERSION : VERSION);
+        writeShort(out, flags);
+        writeShort(out, entry.method);
+        writeInt(out, dosTime);
+        writeInt(out, (int) entry.crc);
+        writeInt(out, (int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+        writeInt(out, (int) (zip64 ? ZIP64_MAGIC : entry.size));
+        writeShort(out, name.length);
+        writeShort(out, zip64 ? 20 : 0);
+        out.write(name);
+        position += 30 + name.length;
+        if (zip64) {
+            writeShort(out, ZIP64_EXTRA_ID);
+            writeShort(out, 16);
+            writeLong(out, entry.size);
+            writeLong(out, entry.compressedSize);
+            position += 20;
+        }
+
+        if (entry.data != null) {
+            out.write(entry.data, 0, (int) entry.compressedSize);
+        }
+        else {
+            Files.copy(entry.file, out);
+        }
+        position += entry.compressedSize;
+
+        writeCentralHeader(entry, name, flags, offset);
+        count++;
+    }
+
+    /**
+     * Writes the central directory and end records. The stream is not closed.
+     */
+    void finish() throws IOException {
+        long centralOffset = position;
+        long centralSize = central.size();
+        central.writeTo(out);
+        position += centralSize;
+
+        boolean zip64 = count >= ZIP64_MAGIC_COUNT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = position;
+            writeInt(out, ZIP64_END_SIGNATURE);
+            writeLong(out, 44);
+            writeShort(out, ZIP64_VERSION);
+            writeShort(out, ZIP64_VERSION);
+            writeInt(out, 0);
+            writeInt(out, 0);
+            writeLong(out, count);
+            writeLong(out, count);
+            writeLong(out, centralSize);
+            writeLong(out, centralOffset);
+
+            writeInt(out, ZIP64_LOCATOR_SIGNATURE);
+            writeInt(out, 0);
+            writeLong(out, zip64EndOffset);
+            writeInt(out, 1);
+            position += 56 + 20;
+        }
+
+        writeInt(out, END_SIGNATURE);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, (int) Math.min(count, ZIP64_MAGIC_COUNT));
+        writeShort(out, (int) Math.min(count, ZIP64_MAGIC_COUNT));
+        writeInt(out, (int) Math.min(centralSize, ZIP64_MAGIC));
+        writeInt(out, (int) Math.min(centralOffset, ZIP64_MAGIC));
+        writeShort(out, 0);
+        position += 22;
+        out.flush();
+    }
+
+    private void writeCentralHeader(Entry entry, byte[] name, int flags, long offset) throws IOException {
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        if (entry.size >= ZIP64_MAGIC) {
+            writeLong(extra, entry.size);
+        }
+        if (entry.compressedSize >= ZIP64_MAGIC) {
+            writeLong(extra, entry.compressedSize);
+        }
+        if (offset >= ZIP64_MAGIC) {
+            writeLong(extra, offset);
+        }
+        boolean zip64 = extra.size() > 0;
+
+        writeInt(central, CENTRAL_HEADER_SIGNATURE);
+        writeShort(central, zip64 ? ZIP64_VERSION : VERSION);
+        writeShort(central, zip64 ? ZIP64_VERSION : VERSION);
+        writeShort(central, flags);
+        writeShort(central, entry.method);
+        writeInt(central, dosTime);
+        writeInt(central, (int) entry.crc);
+        writeInt(central, (int) Math.min(entry.compressedSize, ZIP64_MAGIC));
+        writeInt(central, (int) Math.min(entry.size, ZIP64_MAGIC));
+        writeShort(central, name.length);
+        writeShort(central, zip64 ? 4 + extra.size() : 0);
+        writeShort(central, 0);
+        writeShort(central, 0);
+        writeShort(central, 0);
+        writeInt(central, 0);
+        writeInt(central, (int) Math.min(offset, ZIP64_MAGIC));
+        central.write(name);
+        if (zip64) {
+            writeShort(central, ZIP64_EXTRA_ID);
+            writeShort(central, extra.size());
+            extra.writeTo(central);
+        }
+    }
+
+    private static int dosTime(LocalDateTime time) {
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static boolean isAscii(String s) {
+        return s.chars().allMatch(c -> c < 0x80);
+    }
+
+    private static void writeShort(OutputStream out, int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        writeShort(out, v & 0xffff);
+        writeShort(out, (v >>> 16) & 0xffff);
+    }
+
+    private static void writeLong(OutputStream out, long v) throws IOException {
+        writeInt(out, (int) v);
+        writeInt(out, (int) (v >>> 32));
+    }
+
+}
@@ -0,0 +1,859 @@
+package daemon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+import cipher.CryptrBatch;
+import cipher.CryptrCalibration;
+import cipher.CryptrCipher;
+import cipher.CryptrKey;
+import cipher.CryptrSession;
+import compressor.CryptrCompressor;
+import metrics.CryptrListener;
+import metrics.Stage;
+import pipeline.CryptrPipeline;
+
+/**
+ * CryptrDaemon is a long-running headless server which encrypts, decrypts and compresses
+ * files on request. Scripts which call it pay the startup of the JVM, the initialization of
+ * the providers and the warm-up of the JIT once, instead of on every call, so the latency of
+ * a request for a small file is close to the cost of the work itself.
+ *
+ * The daemon listens on a Unix domain socket, which only its owner can connect to, or on a
+ * loopback TCP port. Any local process can connect to the port, so a TCP client has to send
+ * "auth token" as its first line, with the secret the daemon writes to a token file only its
+ * owner can read, and a connection whose first line is anything else is closed unanswered.
+ * A single thread accepts connections and reads and writes requests with
+ * a selector, and requests run on a pool of workers, so a client may send many requests at
+ * once on one connection, and many clients may be connected at a time.
+ *
+ * Requests and responses are lines of UTF-8 text whose fields are separated by tabs. Every
+ * request starts with an ID chosen by the client, which is repeated in every response line:
+ *
+ *   id  ping
+ *   id  encrypt-key       input  output  keyFile
+ *   id  decrypt-key       input  output  keyFile
+ *   id  encrypt-password  input  output  password
+ *   id  decrypt-password  input  output  password
+ *   id  extract-key       input  outputDir  keyFile   [entry...]
+ *   id  extract-password  input  outputDir  password  [entry...]
+ *   id  compress          zipFile  file...
+ *   id  shutdown
+ *
+ * While a request runs, progress lines "id progress bytes" are sent at most ten times a
+ * second, followed by one final line "id done ok|failed code millis bytes stage=millis...",
+ * where code is the return code of the operation and the stages are those which took time.
+ * A request which cannot be parsed is answered with "id error message".
+ *
+ * Passwords are sent in the clear over the socket, and the daemon keeps a session for each of
+ * the last few passwords, so repeated requests do not derive the key again.
+ */
+public class CryptrDaemon implements Closeable {
+
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final long PROGRESS_INTERVAL_NANOS = 100_000_000;
+    private static final int SESSION_CAPACITY = 8;
+    private static final int WARMUP_SIZE = 1024 * 1024;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    private static final int TOKEN_LENGTH = 32;
+    private static final long DRAIN_POLL_MILLIS = 100;
+    private static final long DRAIN_TIMEOUT_NANOS = 5_000_000_000L;
+
+    private static final ThreadLocal<Request> CURRENT = new ThreadLocal<>();
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Path socketFile;
+    private final UserPrincipal owner;
+    private final Path tokenFile;
+    private final byte[] authLine;
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<>();
+    private final Map<String, SharedSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * An operation a request runs, and which of its return codes mean success.
+     */
+    private static class Command {
+        final IntSupplier operation;
+        final IntPredicate succeeded;
+
+        Command(IntSupplier operation, IntPredicate succeeded) {
+            this.operation = operation;
+            this.succeeded = succeeded;
+        }
+    }
+
+    /**
+     * A cached session and the number of running requests using it. A session which is evicted
+     * while requests use it is closed once the last of them has finished.
+     */
+    private static class SharedSession {
+        final CryptrSession session;
+        int users = 0;
+        boolean evicted = false;
+
+        SharedSession(CryptrSession session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * A connected client, with the partial request line read so far and the response lines
+     * waiting to be written.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final ByteBuffer input = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        final ConcurrentLinkedQueue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        boolean authenticated;
+        // set after a line which was too long, whose rest is dropped up to its newline
+        boolean discarding = false;
+
+        Connection(SocketChannel channel, boolean authenticated) {
+            this.channel = channel;
+            this.authenticated = authenticated;
+        }
+
+        /**
+         * Queues a response line and wakes the selector to write it. Responses to a client
+         * which has disconnected are dropped.
+         */
+        void send(String line) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            output.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            writable.add(this);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * A running request. It collects the events the listener reports from the worker running
+     * it, and from the threads it hands work to, so its stats only cover its own work.
+     */
+    private static class Request {
+        final String id;
+        final Connection connection;
+        final long start = System.nanoTime();
+        final long[] stageNanos = new long[Stage.values().length];
+        long bytes = 0;
+        long lastProgress = start;
+
+        Request(String id, Connection connection) {
+            this.id = id;
+            this.connection = connection;
+        }
+
+        synchronized void progress(long count) {
+            bytes += count;
+            long now = System.nanoTime();
+            if (now - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                lastProgress = now;
+                connection.send(id + "\tprogress\t" + bytes);
+            }
+        }
+
+        synchronized void stage(Stage stage, long nanos) {
+            stageNanos[stage.ordinal()] += nanos;
+        }
+
+        synchronized String done(int response, boolean succeeded) {
+            StringBuilder line = new StringBuilder(id).append("\tdone\t").append(succeeded ? "ok" : "failed")
+                    .append('\t').append(response)
+                    .append('\t').append(millis(System.nanoTime() - start))
+                    .append('\t').append(bytes);
+            for (Stage stage : Stage.values()) {
+                if (stageNanos[stage.ordinal()] > 0) {
+                    line.append('\t').append(stage.name().toLowerCase(Locale.ROOT)).append('=')
+                            .append(millis(stageNanos[stage.ordinal()]));
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Routes the events of every file to the request running on the reporting thread.
+     */
+    private static class RequestListener implements CryptrListener {
+        @Override
+        public void bytesProcessed(String file, long bytes) {
+            Request request = CURRENT.get();
+            if (request != null) {
+                request.progress(bytes);
+            }
+        }
+
+        @Override
+        public void stageTime(String file, Stage stage, long nanos) {
+            Request request = CURRENT.get();
+            if (request != null) {
+                request.stage(stage, nanos);
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks a request hands to other threads on the common ForkJoinPool, with the
+     * request set as current on them, so the events they report are routed to the request.
+     * The common pool is shared, so this executor cannot be shut down.
+     */
+    private static class RequestExecutor extends AbstractExecutorService {
+        private final Request request;
+
+        private RequestExecutor(Request request) {
+            this.request = request;
+        }
+
+        /**
+         * @return the executor for the request running on this thread
+         */
+        static RequestExecutor current() {
+            return new RequestExecutor(CURRENT.get());
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            ForkJoinPool.commonPool().execute(() -> {
+                CURRENT.set(request);
+                try {
+                    task.run();
+                }
+                finally {
+                    CURRENT.remove();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+
+    private CryptrDaemon(Selector selector, ServerSocketChannel server, Path socketFile, Path tokenFile,
+            byte[] authLine, int workers) throws IOException {
+        this.selector = selector;
+        this.server = server;
+        this.socketFile = socketFile;
+        this.owner = socketFile == null ? null : Files.getOwner(socketFile);
+        this.tokenFile = tokenFile;
+        this.authLine = authLine;
+        this.workers = Executors.newFixedThreadPool(workers);
+    }
+
+    /**
+     * Opens a daemon on a Unix domain socket, which is created with permissions for its owner
+     * only. Since the socket exists for a moment before its permissions are set, connections
+     * from other users are also refused by their peer credentials, where the platform reports
+     * them. A socket file left behind by a daemon which did not shut down is replaced.
+     *
+     * @param socketFile - path of the socket
+     * @return the daemon, which accepts requests once run() is called
+     * @throws IOException if the socket cannot be bound, or another daemon is listening on it
+     */
+    public static CryptrDaemon openUnix(String socketFile) throws IOException {
+        Path path = Paths.get(socketFile);
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+        if (Files.exists(path)) {
+            boolean listening;
+            try {
+                SocketChannel.open(address).close();
+                listening = true;
+            }
+            catch (IOException e) {
+                listening = false;
+            }
+            if (listening) {
+                throw new IOException("a daemon is already listening on " + socketFile);
+            }
+            // nothing is listening, so the socket was left behind
+            Files.deleteIfExists(path);
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(address);
+            try {
+                Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+            }
+            catch (UnsupportedOperationException e) {
+                // the directory of the socket has to protect it on file systems without modes
+            }
+            return open(server, path, null, null);
+        }
+        catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a daemon on a TCP port of the loopback interface, so only local clients can
+     * connect. Since any local process can, a new random token is written to a token file
+     * with permissions for its owner only, and every connection has to start with a line
+     * "auth token". A token file left behind is replaced.
+     *
+     * @param port - port to listen on, or 0 for any free port
+     * @param tokenFile - path to write the token to
+     * @return the daemon, which accepts requests once run() is called
+     * @throws IOException if the port cannot be bound or the token file cannot be written
+     */
+    public static CryptrDaemon openLoopback(int port, String tokenFile) throws IOException {
+        byte[] token = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(token);
+        String hex = HexFormat.of().formatHex(token);
+        Path path = Paths.get(tokenFile);
+
+        // the file is created with its permissions, so the token is never readable by others
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException e) {
+            // the directory of the token file has to protect it on file systems without modes
+            Files.createFile(path);
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            Files.write(path, (hex + "\n").getBytes(StandardCharsets.US_ASCII));
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            return open(server, null, path, ("auth\t" + hex).getBytes(StandardCharsets.US_ASCII));
+        }
+        catch (IOException | RuntimeException e) {
+            server.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    private static CryptrDaemon open(ServerSocketChannel server, Path socketFile, Path tokenFile, byte[] authLine)
+            throws IOException {
+        Selector selector = Selector.open();
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        CryptrDaemon daemon = new CryptrDaemon(selector, server, socketFile, tokenFile, authLine,
+                CryptrBatch.DEFAULT_MAX_IN_FLIGHT);
+        CryptrListener listener = new RequestListener();
+        CryptrCipher.setListener(listener);
+        CryptrCompressor.setListener(listener);
+        return daemon;
+    }
+
+    /**
+     * @return the address the daemon listens on
+     * @throws IOException if the socket has been closed
+     */
+    public SocketAddress address() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    /**
+     * Warms up the providers and the JIT on a background thread, so the first requests do
+     * not pay for it, and starts calibrating the chunked format.
+     */
+    public void warmUp() {
+        Thread thread = new Thread(() -> {
+            CryptrCalibration.start();
+            try (CryptrSession session = new CryptrSession("cryptr warm-up")) {
+                // the first key derivation runs PBKDF2 mostly interpreted, which takes seconds
+                session.key(session.salt());
+                CryptrKey key = CryptrCipher.generateKey();
+                byte[] data = new byte[WARMUP_SIZE];
+                for (int i = 0; i < WARMUP_ROUNDS && server.isOpen(); i++) {
+                    ByteArrayOutputStream encrypted = new ByteArrayOutputStream(WARMUP_SIZE + 16);
+                    CryptrCipher.encryptWithKey(new ByteArrayInputStream(data), encrypted, key);
+                    CryptrCipher.decryptWithKey(new ByteArrayInputStream(encrypted.toByteArray()),
+                            new ByteArrayOutputStream(WARMUP_SIZE), key);
+                }
+            }
+            catch (Exception e) {
+                // requests still work, they are only slower at first
+            }
+        }, "cryptr-warmup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Accepts and serves clients until stop() is called or a client requests shutdown. Before
+     * it returns, the running requests are finished and all their responses are written.
+     *
+     * @throws IOException if the selector fails
+     */
+    public void run() throws IOException {
+        while (server.isOpen()) {
+            selector.select();
+            if (!server.isOpen()) {
+                break;
+            }
+            registerWritable();
+            handleSelected();
+        }
+        drain();
+    }
+
+    /**
+     * Keeps writing responses, without reading new requests, until the running requests have
+     * finished and every response has been written or its client has gone. Clients get a few
+     * seconds after the last request finished to take their responses, so one which stopped
+     * reading does not keep the daemon from shutting down.
+     */
+    private void drain() throws IOException {
+        workers.shutdown();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                key.interestOps(0);
+            }
+        }
+
+        while (!workers.isTerminated()) {
+            selector.select(DRAIN_POLL_MILLIS);
+            registerWritable();
+            handleSelected();
+        }
+
+        // close() disconnects the clients whose responses are left after the deadline
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (hasOutput() && System.nanoTime() - deadline < 0) {
+            selector.select(DRAIN_POLL_MILLIS);
+            registerWritable();
+            handleSelected();
+        }
+    }
+
+    /**
+     * @return true iff a connected client has responses waiting to be written
+     */
+    private boolean hasOutput() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() != null && !((Connection) key.attachment()).output.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void registerWritable() {
+        for (Connection connection = writable.poll(); connection != null; connection = writable.poll()) {
+            SelectionKey key = connection.channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void handleSelected() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            try {
+                if (key.isValid() && key.isAcceptable()) {
+                    accept();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write(key);
+                }
+            }
+            catch (IOException e) {
+                // only this client is affected
+                disconnect(key);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and requests, and makes run() return once the running
+     * requests have finished and their responses are written. Can be called from any thread.
+     *
+     * @throws IOException if the socket cannot be closed
+     */
+    public void stop() throws IOException {
+        server.close();
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the daemon, waits for running requests to finish, disconnects all clients and
+     * removes the socket. Must not be called while run() is running on another thread.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!selector.isOpen()) {
+            return;
+        }
+
+        server.close();
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // requests are not interrupted, since their outputs would be left half done
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        if (socketFile != null) {
+            Files.deleteIfExists(socketFile);
+        }
+        if (tokenFile != null) {
+            Files.deleteIfExists(tokenFile);
+        }
+        CryptrCipher.setListener(null);
+        CryptrCompressor.setListener(null);
+        synchronized (sessions) {
+            sessions.values().forEach(CryptrDaemon::evict);
+            sessions.clear();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        if (socketFile != null && !fromOwner(channel)) {
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel, authLine == null));
+    }
+
+    /**
+     * @return true iff the peer of a Unix domain connection runs as the owner of the socket, or
+     *         the platform does not report peer credentials and only the permissions of the
+     *         socket protect it
+     */
+    private boolean fromOwner(SocketChannel channel) {
+        try {
+            UnixDomainPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return peer.user().equals(owner);
+        }
+        catch (UnsupportedOperationException e) {
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer input = connection.input;
+        if (connection.channel.read(input) < 0) {
+            disconnect(key);
+            return;
+        }
+
+        input.flip();
+        int start = 0;
+        for (int i = 0; i < input.limit(); i++) {
+            if (input.get(i) == '\n' && connection.discarding) {
+                connection.discarding = false;
+                start = i + 1;
+            }
+            else if (input.get(i) == '\n') {
+                String line = new String(input.array(), start, i - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                if (!connection.authenticated) {
+                    // nothing, not even an error, is sent to a client which does not know the token
+                    if (!MessageDigest.isEqual(line.getBytes(StandardCharsets.UTF_8), authLine)) {
+                        disconnect(key);
+                        return;
+                    }
+                    connection.authenticated = true;
+                }
+                else if (!line.isEmpty()) {
+                    submit(connection, line);
+                }
+            }
+        }
+        input.position(start);
+        input.compact();
+
+        if (!input.hasRemaining()) {
+            if (!connection.authenticated) {
+                disconnect(key);
+                return;
+            }
+            if (!connection.discarding) {
+                connection.send("-\terror\trequest longer than " + MAX_LINE_LENGTH + " bytes");
+                connection.discarding = true;
+            }
+            input.clear();
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        for (ByteBuffer buffer = connection.output.peek(); buffer != null; buffer = connection.output.peek()) {
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                // the socket is full, so wait until it can take more
+                return;
+            }
+            connection.output.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void disconnect(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        }
+        catch (IOException e) {
+            // the client is gone either way
+        }
+    }
+
+    /**
+     * Parses a request line and runs it on a worker.
+     */
+    private void submit(Connection connection, String line) throws IOException {
+        String[] fields = line.split("\t", -1);
+        String id = fields[0];
+        if (fields.length < 2) {
+            connection.send(id + "\terror\tmissing command");
+            return;
+        }
+
+        String name = fields[1];
+        String[] args = Arrays.copyOfRange(fields, 2, fields.length);
+        if (name.equals("shutdown") && args.length == 0) {
+            // the response is written along with those of the running requests before run() returns
+            connection.send(id + "\tdone\tok\t0\t0\t0");
+            stop();
+            return;
+        }
+
+        Command command = command(name, args);
+        if (command == null) {
+            connection.send(id + "\terror\tunknown command or wrong number of arguments: " + name);
+            return;
+        }
+
+        workers.execute(() -> {
+            Request request = new Request(id, connection);
+            CURRENT.set(request);
+            int response;
+            try {
+                response = command.operation.getAsInt();
+            }
+            catch (RuntimeException e) {
+                response = -2;
+            }
+            finally {
+                CURRENT.remove();
+            }
+            connection.send(request.done(response, command.succeeded.test(response)));
+        });
+    }
+
+    /**
+     * @return the command for a request, or null if there is no such command or it takes a
+     *         different number of arguments
+     */
+    private Command command(String name, String[] args) {
+        IntPredicate zero = response -> response == 0;
+
+        if (name.equals("ping") && args.length == 0) {
+            return new Command(() -> 0, zero);
+        }
+        else if (name.equals("encrypt-key") && args.length == 3) {
+            return new Command(() -> CryptrCipher.encryptWithKey(args[0], args[1], args[2]), zero);
+        }
+        else if (name.equals("decrypt-key") && args.length == 3) {
+            return new Command(() -> CryptrCipher.decryptWithKey(args[0], args[1], args[2]), zero);
+        }
+        else if (name.equals("encrypt-password") && args.length == 3) {
+            return new Command(() -> withSession(args[2], session -> CryptrCipher.cipherWithSession(args[0], args[1],
+                    session, CryptrCipher.Mode.ENCRYPT)), zero);
+        }
+        else if (name.equals("decrypt-password") && args.length == 3) {
+            return new Command(() -> withSession(args[2], session -> CryptrCipher.cipherWithSession(args[0], args[1],
+                    session, CryptrCipher.Mode.DECRYPT)), zero);
+        }
+        else if (name.equals("extract-key") && args.length >= 3) {
+            return new Command(() -> CryptrPipeline.decryptAndExtractWithKey(args[0], args[2], args[1],
+                    entries(args), RequestExecutor.current()), zero);
+        }
+        else if (name.equals("extract-password") && args.length >= 3) {
+            return new Command(() -> withSession(args[2], session -> CryptrPipeline.decryptAndExtractWithSession(
+                    args[0], session, args[1], entries(args), RequestExecutor.current())), zero);
+        }
+        else if (name.equals("compress") && args.length >= 2) {
+            // the compressor reports success as -1, and failure as the index of the file
+            return new Command(() -> CryptrCompressor.compress(Arrays.copyOfRange(args, 1, args.length), args[0]),
+                    response -> response == -1);
+        }
+        return null;
+    }
+
+    /**
+     * @return the names of the entries to extract after the first three arguments, or null to
+     *         extract all of them
+     */
+    private static Set<String> entries(String[] args) {
+        return args.length == 3 ? null : new HashSet<>(Arrays.asList(args).subList(3, args.length));
+    }
+
+    /**
+     * Runs an operation with the session for a password, which is kept for later requests with
+     * the same password until it is one of the least recently used. The session stays open
+     * while the operation runs, even if it is evicted meanwhile.
+     *
+     * @return the response of the operation
+     */
+    private int withSession(String password, ToIntFunction<CryptrSession> operation) {
+        SharedSession shared;
+        synchronized (sessions) {
+            shared = sessions.get(password);
+            if (shared == null) {
+                shared = new SharedSession(new CryptrSession(password));
+                sessions.put(password, shared);
+                if (sessions.size() > SESSION_CAPACITY) {
+                    Iterator<SharedSession> eldest = sessions.values().iterator();
+                    evict(eldest.next());
+                    eldest.remove();
+                }
+            }
+            shared.users++;
+        }
+
+        try {
+            return operation.applyAsInt(shared.session);
+        }
+        finally {
+            synchronized (sessions) {
+                shared.users--;
+                if (shared.evicted && shared.users == 0) {
+                    shared.session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a session which is removed from the cache, or leaves it to the last request still
+     * using it. Must be called while holding the lock on sessions.
+     */
+    private static void evict(SharedSession shared) {
+        shared.evicted = true;
+        if (shared.users == 0) {
+            shared.session.close();
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Runs a daemon until it is asked to shut down.
+     *
+     * Usage: CryptrDaemon --socket path | --port port --token tokenFile
+     */
+    public static void main(String[] args) throws IOException {
+        CryptrDaemon daemon;
+        if (args.length == 2 && args[0].equals("--socket")) {
+            daemon = openUnix(args[1]);
+        }
+        else if (args.length == 4 && args[0].equals("--port") && args[2].equals("--token")) {
+            daemon = openLoopback(Integer.parseInt(args[1]), args[3]);
+        }
+        else {
+            System.err.println("usage: CryptrDaemon --socket path | --port port --token tokenFile");
+            System.exit(2);
+            return;
+        }
+
+        try (CryptrDaemon running = daemon) {
+            System.out.println("cryptr daemon listening on " + running.address());
+            running.warmUp();
+            running.run();
+        }
+    }
+
+}
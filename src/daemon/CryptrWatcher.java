@@ -0,0 +1,684 @@
+package daemon;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import cipher.CryptrBatch;
+import cipher.CryptrCipher;
+import cipher.CryptrJob;
+import cipher.CryptrKeyring;
+import cipher.CryptrSession;
+import cipher.CryptrSyncGroup;
+import compressor.CryptrCompressor;
+import pipeline.CryptrPipeline;
+
+/**
+ * CryptrWatcher watches a staging directory and encrypts the files which are dropped into it
+ * into an output directory, so services can hand files over for encryption without anyone
+ * selecting them by hand and without launching a process per file.
+ *
+ * A file is picked up once it has not changed for a quiet period, so files which are still
+ * being written are left alone. Names starting with a dot or ending in .tmp or .part are
+ * ignored, so writers which write to a temporary name and then rename it are picked up as
+ * soon as they rename. Settled files wait in a bounded queue. When the queue is full the
+ * watcher stops taking events until it drains, and rescans the directory if events were
+ * lost in the meantime.
+ *
+ * A single encryptor takes everything which is queued as one batch, up to a limit, and
+ * encrypts it with CryptrBatch, so the outputs of a batch share a few fsyncs. A file which
+ * arrives while the directory is idle is encrypted on its own right away, while a burst of
+ * arrivals is absorbed by larger batches, which keeps the latency from drop to output low and
+ * steady. In compress mode every batch becomes one encrypted zip archive instead, compressed
+ * with the profile set with setProfile().
+ *
+ * A source file is deleted once its output has been committed, unless it changed while it was
+ * being encrypted, in which case it is picked up again. Files which fail are left in place.
+ */
+public class CryptrWatcher implements Closeable {
+
+    public static final long DEFAULT_QUIET_MILLIS = 300;
+    public static final int QUEUE_CAPACITY = 4096;
+    public static final int MAX_BATCH_FILES = 512;
+    public static final long MAX_BATCH_BYTES = 256L * 1024 * 1024;
+
+    // name of the keyring storing the keys of the files encrypted in key mode
+    private static final String KEYRING_NAME = "cryptr.keyring";
+    private static final long POLL_MILLIS = 50;
+    private static final DateTimeFormatter ARCHIVE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final Path stagingDir;
+    private final Path outputDir;
+    private final boolean useKey;
+    private final CryptrKeyring keyring;
+    private final CryptrSession session;
+    private final boolean compress;
+    private final long quietNanos;
+    private final WatchService watchService;
+    private final Map<Path, Candidate> candidates = new HashMap<>();
+    private final BlockingQueue<Arrival> ready = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Set<Path> queued = ConcurrentHashMap.newKeySet();
+    private final List<Thread> threads = new ArrayList<>();
+    private final CryptrBatch runner = new CryptrBatch();
+    private volatile CryptrCompressor.Profile profile = CryptrCompressor.Profile.BALANCED;
+    private volatile boolean running = false;
+    private long archives = 0;
+
+    /**
+     * The outcome of encrypting a batch of files.
+     */
+    public static class BatchResult {
+        public final int files;
+        public final long bytes;
+        public final List<String> failed;
+        public final String archive;
+        public final long nanos;
+        public final long latencyNanos;
+
+        BatchResult(int files, long bytes, List<String> failed, String archive, long nanos, long latencyNanos) {
+            this.files = files;
+            this.bytes = bytes;
+            this.failed = failed;
+            this.archive = archive;
+            this.nanos = nanos;
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d files, %d bytes, %d failed, %.1f ms, latency %.1f ms%s", files,
+                    bytes, failed.size(), nanos / 1e6, latencyNanos / 1e6, archive == null ? "" : " -> " + archive);
+        }
+    }
+
+    /**
+     * A file which changed recently, with its size and modification time when it last changed.
+     */
+    private static class Candidate {
+        final long seen;
+        long size;
+        long modified;
+        long changed;
+
+        Candidate(long seen) {
+            this.seen = seen;
+        }
+    }
+
+    /**
+     * A settled file waiting to be encrypted.
+     */
+    private static class Arrival {
+        final Path file;
+        final long seen;
+        final long size;
+        final long modified;
+
+        Arrival(Path file, long seen, long size, long modified) {
+            this.file = file;
+            this.seen = seen;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private CryptrWatcher(Path stagingDir, Path outputDir, boolean useKey, CryptrKeyring keyring,
+            CryptrSession session, boolean compress, long quietMillis) throws IOException {
+        this.stagingDir = stagingDir;
+        this.outputDir = outputDir;
+        this.useKey = useKey;
+        this.keyring = keyring;
+        this.session = session;
+        this.compress = compress;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.watchService = stagingDir.getFileSystem().newWatchService();
+        try {
+            stagingDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a watcher which encrypts files with key-based AES-256. The keys of the files are
+     * stored in a keyring in the output directory, and in compress mode every archive gets a
+     * key file next to it.
+     *
+     * @param stagingDir - directory to watch
+     * @param outputDir - directory to write the encrypted files to, created if needed
+     * @param compress - whether to write every batch as one encrypted zip archive
+     * @param quietMillis - how long a file must not change before it is picked up
+     * @return the watcher, which starts watching once start() is called
+     * @throws IOException on error opening the keyring or watching the directory
+     * @throws GeneralSecurityException if the keyring belongs to a different master key
+     */
+    public static CryptrWatcher withKey(String stagingDir, String outputDir, boolean compress, long quietMillis)
+            throws IOException, GeneralSecurityException {
+        Path staging = directory(stagingDir);
+        Path output = outputDirectory(staging, outputDir);
+        String keyringFile = output.resolve(KEYRING_NAME).toString();
+        CryptrKeyring keyring = compress ? null : CryptrKeyring.open(keyringFile, keyringFile + ".KEY");
+
+        try {
+            return new CryptrWatcher(staging, output, true, keyring, null, compress, quietMillis);
+        }
+        catch (IOException e) {
+            if (keyring != null) {
+                keyring.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a watcher which encrypts files using password-based AES-256. The key is derived
+     * once for the lifetime of the watcher.
+     *
+     * @param stagingDir - directory to watch
+     * @param outputDir - directory to write the encrypted files to, created if needed
+     * @param password - password to encrypt with
+     * @param compress - whether to write every batch as one encrypted zip archive
+     * @param quietMillis - how long a file must not change before it is picked up
+     * @return the watcher, which starts watching once start() is called
+     * @throws IOException on error watching the directory
+     */
+    public static CryptrWatcher withPassword(String stagingDir, String outputDir, String password,
+            boolean compress, long quietMillis) throws IOException {
+        Path staging = directory(stagingDir);
+        Path output = outputDirectory(staging, outputDir);
+        CryptrSession session = new CryptrSession(password);
+
+        try {
+            return new CryptrWatcher(staging, output, false, null, session, compress, quietMillis);
+        }
+        catch (IOException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the profile archives are compressed with in compress mode, which is balanced by
+     * default. FASTEST suits hot data which has to be archived as fast as it arrives.
+     *
+     * @param profile - profile to compress the following batches with
+     */
+    public void setProfile(CryptrCompressor.Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Starts watching. The files already in the staging directory are picked up as if they
+     * had just been dropped.
+     *
+     * @param onBatch - called with the result of every batch, from the encryptor thread
+     */
+    public synchronized void start(Consumer<BatchResult> onBatch) {
+        if (running || !threads.isEmpty()) {
+            throw new IllegalStateException("watcher was already started");
+        }
+        running = true;
+        threads.add(new Thread(this::watch, "cryptr-watcher"));
+        threads.add(new Thread(() -> encrypt(onBatch), "cryptr-watcher-encryptor"));
+        threads.forEach(Thread::start);
+    }
+
+    /**
+     * Stops watching, waiting for the batch which is being encrypted to finish. Queued files
+     * stay in the staging directory and are picked up when a watcher is started again.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        boolean interrupted = false;
+        synchronized (this) {
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+
+        try {
+            runner.close();
+            watchService.close();
+            if (keyring != null) {
+                keyring.close();
+            }
+        }
+        finally {
+            if (session != null) {
+                session.close();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Takes events from the watch service and moves files which have settled into the queue.
+     */
+    private void watch() {
+        try {
+            scan();
+            while (running) {
+                WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan();
+                            continue;
+                        }
+                        Path file = stagingDir.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            candidates.remove(file);
+                        }
+                        else {
+                            touch(file);
+                        }
+                    }
+                    if (!key.reset()) {
+                        // the staging directory is gone, but queued files are still encrypted
+                        System.err.println("cryptr watcher: " + stagingDir + " is no longer accessible");
+                        return;
+                    }
+                }
+                settle();
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // the watcher is closing
+        }
+        catch (IOException e) {
+            System.err.println("cryptr watcher: cannot read " + stagingDir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds every file in the staging directory as a candidate, for files which were dropped
+     * before watching started or whose events were lost.
+     */
+    private void scan() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(stagingDir)) {
+            for (Path file : files) {
+                touch(file);
+            }
+        }
+    }
+
+    /**
+     * Records that a file changed, restarting its quiet period.
+     */
+    private void touch(Path file) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part")) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Candidate candidate = candidates.computeIfAbsent(file, f -> new Candidate(now));
+        BasicFileAttributes attributes = attributes(file);
+        if (attributes == null) {
+            candidates.remove(file);
+            return;
+        }
+        candidate.size = attributes.size();
+        candidate.modified = attributes.lastModifiedTime().toMillis();
+        candidate.changed = now;
+    }
+
+    /**
+     * Queues the candidates which have not changed for the quiet period. Candidates which are
+     * already queued wait until their earlier copy has been encrypted. Blocks while the queue
+     * is full.
+     */
+    private void settle() throws InterruptedException {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Candidate>> iterator = candidates.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Candidate> entry = iterator.next();
+            Path file = entry.getKey();
+            Candidate candidate = entry.getValue();
+            if (now - candidate.changed < quietNanos || queued.contains(file)) {
+                continue;
+            }
+
+            // a file can change without an event, e.g. when it is written through a mapping
+            BasicFileAttributes attributes = attributes(file);
+            if (attributes == null) {
+                iterator.remove();
+                continue;
+            }
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (attributes.size() != candidate.size || modified != candidate.modified) {
+                candidate.size = attributes.size();
+                candidate.modified = modified;
+                candidate.changed = now;
+                continue;
+            }
+
+            iterator.remove();
+            queued.add(file);
+            Arrival arrival = new Arrival(file, candidate.seen, candidate.size, modified);
+            while (!ready.offer(arrival, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!running) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes batches from the queue and encrypts them until the watcher is closed.
+     */
+    private void encrypt(Consumer<BatchResult> onBatch) {
+        try {
+            while (running) {
+                Arrival first = ready.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                List<Arrival> batch = new ArrayList<>();
+                batch.add(first);
+                long bytes = first.size;
+                while (batch.size() < MAX_BATCH_FILES && bytes < MAX_BATCH_BYTES) {
+                    Arrival next = ready.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    bytes += next.size;
+                }
+
+                onBatch.accept(encrypt(batch, bytes));
+            }
+        }
+        catch (InterruptedException e) {
+            // the watcher is closing
+        }
+    }
+
+    private BatchResult encrypt(List<Arrival> batch, long bytes) {
+        long start = System.nanoTime();
+        String[] files = new String[batch.size()];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = batch.get(i).file.toString();
+        }
+
+        String archive = null;
+        boolean[] succeeded = new boolean[files.length];
+        if (compress) {
+            archive = nextArchive();
+            int response = useKey
+                    ? CryptrPipeline.compressAndEncryptWithKey(files, archive, archive + ".KEY", profile)
+                    : CryptrPipeline.compressAndEncryptWithSession(files, archive, session, profile);
+            Arrays.fill(succeeded, response == 0);
+        }
+        else {
+            encryptFiles(files, succeeded);
+        }
+
+        List<String> failed = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            Arrival arrival = batch.get(i);
+            if (succeeded[i]) {
+                deleteIfUnchanged(arrival);
+            }
+            else {
+                failed.add(files[i]);
+            }
+            queued.remove(arrival.file);
+        }
+
+        long end = System.nanoTime();
+        long latency = 0;
+        for (Arrival arrival : batch) {
+            latency = Math.max(latency, end - arrival.seen);
+        }
+        return new BatchResult(files.length, bytes, Collections.unmodifiableList(failed), archive, end - start,
+                latency);
+    }
+
+    /**
+     * Encrypts every file of a batch into the output directory under its own name, or a free
+     * variant of it. In key mode the keyring is saved before the outputs are committed, so no
+     * output is left whose key was lost. If the keyring cannot be saved the watcher stops, since
+     * the keyring still holds the keys of the discarded outputs and every later batch would
+     * fail the same way.
+     */
+    private void encryptFiles(String[] files, boolean[] succeeded) {
+        List<CryptrJob> jobs = new ArrayList<>();
+        Set<String> taken = new HashSet<>();
+        for (String file : files) {
+            String name = outputName(Paths.get(file).getFileName().toString(), taken);
+            String output = outputDir.resolve(name).toString();
+            if (useKey) {
+                jobs.add(CryptrJob.encryptWithKeyring(file, output, keyring, name));
+            }
+            else {
+                jobs.add(CryptrJob.cipherWithSession(file, output, session, CryptrCipher.Mode.ENCRYPT));
+            }
+        }
+
+        try (CryptrSyncGroup group = new CryptrSyncGroup()) {
+            List<CryptrBatch.Result> results = runner.run(jobs, result -> { }, group);
+            if (useKey) {
+                try {
+                    keyring.save();
+                }
+                catch (IOException | GeneralSecurityException e) {
+                    // closing the group discards the outputs, so the files stay staged
+                    System.err.println("cryptr watcher: cannot save keyring, stopping: " + e.getMessage());
+                    running = false;
+                    return;
+                }
+            }
+
+            results = CryptrBatch.commit(results, group);
+            for (int i = 0; i < files.length; i++) {
+                succeeded[i] = results.get(i).succeeded();
+            }
+        }
+    }
+
+    /**
+     * Deletes an encrypted source file, unless it changed after it settled.
+     */
+    private static void deleteIfUnchanged(Arrival arrival) {
+        BasicFileAttributes attributes = attributes(arrival.file);
+        if (attributes == null || attributes.size() != arrival.size
+                || attributes.lastModifiedTime().toMillis() != arrival.modified) {
+            return;
+        }
+        try {
+            Files.delete(arrival.file);
+        }
+        catch (IOException e) {
+            System.err.println("cryptr watcher: cannot delete " + arrival.file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Picks the name of an output which no existing output, keyring entry or other file of
+     * the batch uses. A file dropped again under the same name is routine, and its earlier
+     * output must not be replaced, since the earlier source is already gone. A name which is
+     * taken gets a sequence number before its extension.
+     */
+    private String outputName(String name, Set<String> taken) {
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        String candidate = name;
+        for (int n = 1; isTaken(candidate, taken); n++) {
+            candidate = stem + "-" + n + extension;
+        }
+        taken.add(candidate);
+        return candidate;
+    }
+
+    private boolean isTaken(String name, Set<String> taken) {
+        if (taken.contains(name) || Files.exists(outputDir.resolve(name), LinkOption.NOFOLLOW_LINKS)) {
+            return true;
+        }
+        if (!useKey) {
+            return false;
+        }
+        try {
+            return keyring.get(name) != null;
+        }
+        catch (GeneralSecurityException e) {
+            // a record stored under the name exists, even if it cannot be read
+            return true;
+        }
+    }
+
+    private String nextArchive() {
+        String time = LocalDateTime.now().format(ARCHIVE_TIME);
+        Path archive;
+        do {
+            // another watcher may have written to the same directory within the same millisecond
+            archive = outputDir.resolve("batch-" + time + "-" + archives++ + ".zip");
+        } while (Files.exists(archive, LinkOption.NOFOLLOW_LINKS)
+                || Files.exists(Paths.get(archive + ".KEY"), LinkOption.NOFOLLOW_LINKS));
+        return archive.toString();
+    }
+
+    /**
+     * @return the attributes of a regular file, or null if it is gone or not a regular file
+     */
+    private static BasicFileAttributes attributes(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            return attributes.isRegularFile() ? attributes : null;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Path directory(String directory) throws IOException {
+        Path path = Paths.get(directory).toAbsolutePath().normalize();
+        if (!Files.isDirectory(path)) {
+            throw new IOException("not a directory: " + directory);
+        }
+        return path;
+    }
+
+    private static Path outputDirectory(Path stagingDir, String outputDir) throws IOException {
+        Path path = Paths.get(outputDir).toAbsolutePath().normalize();
+        if (path.equals(stagingDir)) {
+            throw new IOException("the output directory must differ from the staging directory");
+        }
+        Files.createDirectories(path);
+        return path;
+    }
+
+    /**
+     * Watches a staging directory until the JVM is stopped, printing a line for every batch.
+     * With --password the password is read as the first line of standard input, so it does
+     * not show up in the process list.
+     */
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
+        boolean compress = false;
+        boolean password = false;
+        long quietMillis = DEFAULT_QUIET_MILLIS;
+        CryptrCompressor.Profile profile = CryptrCompressor.Profile.BALANCED;
+        List<String> directories = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--compress")) {
+                compress = true;
+            }
+            else if (args[i].equals("--password")) {
+                password = true;
+            }
+            else if (args[i].equals("--quiet") && i + 1 < args.length) {
+                quietMillis = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("--profile") && i + 1 < args.length) {
+                profile = CryptrCompressor.Profile.of(args[++i]);
+            }
+            else {
+                directories.add(args[i]);
+            }
+        }
+        if (directories.size() != 2 || profile == null) {
+            System.err.println("usage: CryptrWatcher [--compress] [--profile fastest|balanced|smallest] [--password]"
+                    + " [--quiet millis] stagingDir outputDir");
+            System.exit(2);
+            return;
+        }
+
+        CryptrWatcher watcher;
+        if (password) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String line = in.readLine();
+            if (line == null || line.isEmpty()) {
+                System.err.println("cryptr watcher: no password on standard input");
+                System.exit(2);
+                return;
+            }
+            watcher = withPassword(directories.get(0), directories.get(1), line, compress, quietMillis);
+        }
+        else {
+            watcher = withKey(directories.get(0), directories.get(1), compress, quietMillis);
+        }
+
+        watcher.setProfile(profile);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                watcher.close();
+            }
+            catch (IOException e) {
+                System.err.println("cryptr watcher: " + e.getMessage());
+            }
+        }));
+        System.out.println("cryptr watcher watching " + directories.get(0));
+        watcher.start(result -> System.out.println("batch: " + result));
+    }
+
+}
@@ -1,11 +1,26 @@
 package gui;
 
 import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
 
+import cipher.CryptrBatch;
 import cipher.CryptrCipher;
+import cipher.CryptrJob;
+import cipher.CryptrKeyring;
+import cipher.CryptrSession;
+import cipher.CryptrSyncGroup;
 import compressor.CryptrCompressor;
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -23,6 +38,8 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.text.Text;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import metrics.CryptrMetrics;
+import pipeline.CryptrPipeline;
 
 /**
  * CryptrGUI is a JavaFX application which allows users to easily encrypt and
@@ -30,6 +47,9 @@ import javafx.stage.Stage;
  */
 public class CryptrGUI extends Application {
 
+    // name of the keyring storing the keys of files encrypted together with a generated key
+    private static final String KEYRING_NAME = "cryptr.keyring";
+
     // true iff the user has selected to encrypt files
     private boolean encryptMode = false;
 
@@ -58,6 +78,8 @@ public class CryptrGUI extends Application {
         Button browseButton = new Button("Browse");
         zipOption.setAllowIndeterminate(false);
         zipLocation.setPromptText("Enter location to save .zip");
+        CheckBox extractOption = new CheckBox("Extract .zip archives?");
+        extractOption.setAllowIndeterminate(false);
 
         ToggleGroup group = new ToggleGroup();
         RadioButton keyOption = new RadioButton("Use a generated key");
@@ -72,6 +94,7 @@ public class CryptrGUI extends Application {
 
         Button startOperationButton = new Button();
         ProgressBar pb = new ProgressBar(0);
+        Text status = new Text();
         pb.setMaxWidth(Double.MAX_VALUE);
 
         // menuHandler switches the gui from selecting a mode to selecting files
@@ -99,12 +122,12 @@ public class CryptrGUI extends Application {
 
                 if (this.encryptMode) {
                     startOperationButton.setOnMouseClicked((MouseEvent f) -> {
-                        gridPane.add(pb, 0, 5, 2, 1);
                         boolean compress = zipOption.isSelected();
                         String zipFile = zipLocation.getCharacters().toString();
                         boolean useKey = group.getSelectedToggle() == keyOption;
                         String password = passwordField.getCharacters().toString();
-                        System.out.println(handleEncryption(files, compress, zipFile, useKey, password, pb));
+                        runOperation(files, () -> handleEncryption(files, compress, zipFile, useKey, password),
+                                gridPane, startOperationButton, pb, status);
                     });
 
                     startOperationButton.setText("Encrypt");
@@ -112,14 +135,16 @@ public class CryptrGUI extends Application {
                 }
                 else {
                     startOperationButton.setOnMouseClicked((MouseEvent f) -> {
-                        gridPane.add(pb, 0, 5, 2, 1);
                         boolean useKey = group.getSelectedToggle() == keyOption;
                         String keyFile = keyField.getCharacters().toString();
                         String password = passwordField.getCharacters().toString();
-                        System.out.println(handleDecryption(files, useKey, keyFile, password, pb));
+                        boolean extract = extractOption.isSelected();
+                        runOperation(files, () -> handleDecryption(files, useKey, keyFile, password, extract),
+                                gridPane, startOperationButton, pb, status);
                     });
 
                     startOperationButton.setText("Decrypt");
+                    gridPane.add(extractOption, 0, 1);
                     gridPane.add(keyField, 0, 3);
                     gridPane.add(browseButton, 1, 3);
                 }
@@ -188,6 +213,7 @@ public class CryptrGUI extends Application {
         browseButton.setStyle(smallButtonStyle);
         startOperationButton.setStyle(smallButtonStyle);
         pb.setStyle("-fx-accent: crimson;");
+        status.setStyle("-fx-font-size: 14px");
         gridPane.setStyle("-fx-background-color: slategray;");
 
         gridPane.add(title, 0, 0);
@@ -203,6 +229,53 @@ public class CryptrGUI extends Application {
         stage.show();
     }
 
+    /**
+     * Runs an operation on a background task, so the window stays responsive. The progress
+     * bar and status follow the task, and the start button cancels the task until it ends.
+     *
+     * @param files - files the operation processes
+     * @param operation - operation to run, returning one of the codes of handleEncryption
+     * @param gridPane - pane to show the progress bar and status in
+     * @param startButton - button which started the operation
+     * @param pb - progress bar to show the progress of the operation in
+     * @param status - text to show the result of each file in
+     */
+    private static void runOperation(List<File> files, Callable<Integer> operation, GridPane gridPane,
+            Button startButton, ProgressBar pb, Text status) {
+        EventHandler<? super MouseEvent> startHandler = startButton.getOnMouseClicked();
+        String startText = startButton.getText();
+
+        OperationTask task = new OperationTask(files, operation, (int response) -> {
+            pb.progressProperty().unbind();
+            status.textProperty().unbind();
+            if (response == 0) {
+                pb.setProgress(1);
+                status.setText("Done");
+            }
+            else if (response == -3) {
+                status.setText("Cancelled");
+            }
+            else {
+                status.setText("Failed (" + response + ")");
+            }
+            startButton.setText(startText);
+            startButton.setOnMouseClicked(startHandler);
+        });
+
+        if (!gridPane.getChildren().contains(pb)) {
+            gridPane.add(pb, 0, 5, 2, 1);
+            gridPane.add(status, 0, 6, 3, 1);
+        }
+        pb.progressProperty().bind(task.progressProperty());
+        status.textProperty().bind(task.messageProperty());
+        startButton.setText("Cancel");
+        startButton.setOnMouseClicked((MouseEvent e) -> task.cancel());
+
+        Thread thread = new Thread(task, "cryptr-operation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /**
      * Encrypts a list of files with a given configuration.
      *
@@ -211,59 +284,60 @@ public class CryptrGUI extends Application {
      * @param zipFile - the name of the zip file to create if compress is true
      * @param useKey - whether or not to use a key for encryption
      * @param password - the password to use for encryption if useKey is false
-     * @param pb - progress bar to set accordingly to progress on encrypting files
-     * @return -2 on other failure
+     * @return -3 if the thread was interrupted
+     *         -2 on other failure
      *         -1 if JRE does not support essential operations
      *         0 on success
      *         else returns the index of the file which failed to encrypt
      */
     private static int handleEncryption(List<File> files, boolean compress, String zipFile,
-            boolean useKey, String password, ProgressBar pb) {
+            boolean useKey, String password) {
         String[] filePaths = new String[files.size()];
         for (int i = 0; i < files.size(); i++) {
             filePaths[i] = files.get(i).getAbsolutePath();
         }
 
         if (compress) {
-            int response = CryptrCompressor.compress(filePaths, zipFile);
-            pb.setProgress(0.5);
-            if (response != -1) {
-                return response;
-            }
-
+            // the archive is compressed and encrypted in one pass, without storing the plain archive
+            int response;
             if (useKey) {
-                response = CryptrCipher.encryptWithKey(zipFile, zipFile, zipFile + ".KEY");
+                response = CryptrPipeline.compressAndEncryptWithKey(filePaths, zipFile, zipFile + ".KEY");
             }
             else {
-                response = CryptrCipher.cipherWithPassword(zipFile, zipFile, password,
-                        CryptrCipher.Mode.ENCRYPT);
+                try (CryptrSession session = new CryptrSession(password)) {
+                    response = CryptrPipeline.compressAndEncryptWithSession(filePaths, zipFile, session);
+                }
             }
 
-            pb.setProgress(1);
             if (response > 0) {
                 return -2;
             }
             return response;
         }
 
-        for (int i = 0; i < filePaths.length; i++, pb.setProgress(i * 1.0 / filePaths.length)) {
-            int response;
-            if (useKey) {
-                response = CryptrCipher.encryptWithKey(filePaths[i], filePaths[i], filePaths[i] + ".KEY");
-            }
-            else {
-                response = CryptrCipher.cipherWithPassword(filePaths[i], filePaths[i], password,
-                        CryptrCipher.Mode.ENCRYPT);
-            }
-            if (response > 0) {
-                return i;
+        if (useKey) {
+            // the keys of all files go into one keyring next to them, wrapped with one master key
+            String keyringFile = files.get(0).getAbsoluteFile().getParent() + File.separator + KEYRING_NAME;
+            try (CryptrKeyring keyring = CryptrKeyring.open(keyringFile, keyringFile + ".KEY")) {
+                List<CryptrJob> jobs = new ArrayList<>();
+                for (int i = 0; i < filePaths.length; i++) {
+                    jobs.add(CryptrJob.encryptWithKeyring(filePaths[i], filePaths[i], keyring, files.get(i).getName()));
+                }
+                return runBatch(jobs, keyring);
             }
-            if (response < 0) {
-                return response;
+            catch (IOException | GeneralSecurityException e) {
+                return -2;
             }
         }
 
-        return 0;
+        // the key is derived from the password once for the whole batch
+        try (CryptrSession session = new CryptrSession(password)) {
+            List<CryptrJob> jobs = new ArrayList<>();
+            for (String filePath : filePaths) {
+                jobs.add(CryptrJob.cipherWithSession(filePath, filePath, session, CryptrCipher.Mode.ENCRYPT));
+            }
+            return runBatch(jobs);
+        }
     }
 
     /**
@@ -271,30 +345,158 @@ public class CryptrGUI extends Application {
      *
      * @param files - list of files to decrypt
      * @param useKey - whether or not to use a key for decryption
-     * @param keyFile - path to key file to use for decryption if useKey is true
+     * @param keyFile - path to key file or keyring to use for decryption if useKey is true
      * @param password - the password to use for decryption if useKey is false
-     * @param pb - progress bar to set accordingly to progress on decrypting files
-     * @return -2 on other failure
+     * @param extract - whether the files are encrypted zip archives to extract next to them
+     * @return -3 if the thread was interrupted
+     *         -2 on other failure
      *         -1 if JRE does not support essential operations
      *         0 on success
      *         else returns the index of the file which failed to decrypt
      */
     private static int handleDecryption(List<File> files, boolean useKey, String keyFile,
-            String password, ProgressBar pb) {
+            String password, boolean extract) {
         String[] filePaths = new String[files.size()];
         for (int i = 0; i < files.size(); i++) {
             filePaths[i] = files.get(i).getAbsolutePath();
         }
 
-        for (int i = 0; i < filePaths.length; i++, pb.setProgress(i * 1.0 / filePaths.length)) {
-            int response;
-            if (useKey) {
-                response = CryptrCipher.decryptWithKey(filePaths[i], filePaths[i], keyFile);
+        // a keyring is told from a key file by its contents, so it works under any name
+        if (useKey && CryptrKeyring.isKeyring(keyFile)) {
+            if (!new File(keyFile + ".KEY").exists()) {
+                return -2;
             }
-            else {
-                response = CryptrCipher.cipherWithPassword(filePaths[i], filePaths[i], password,
-                        CryptrCipher.Mode.DECRYPT);
+            try (CryptrKeyring keyring = CryptrKeyring.open(keyFile, keyFile + ".KEY")) {
+                if (extract) {
+                    return extractArchives(files, i -> CryptrPipeline.decryptAndExtractWithKeyring(filePaths[i],
+                            keyring, files.get(i).getName(), extractDirectory(files.get(i)), null));
+                }
+
+                List<CryptrJob> jobs = new ArrayList<>();
+                for (int i = 0; i < filePaths.length; i++) {
+                    jobs.add(CryptrJob.decryptWithKeyring(filePaths[i], filePaths[i], keyring, files.get(i).getName()));
+                }
+                return runBatch(jobs);
+            }
+            catch (IOException | GeneralSecurityException e) {
+                return -2;
             }
+        }
+
+        // the key is derived from the password once for the whole batch
+        try (CryptrSession session = useKey ? null : new CryptrSession(password)) {
+            if (extract) {
+                return extractArchives(files, i -> useKey
+                        ? CryptrPipeline.decryptAndExtractWithKey(filePaths[i], keyFile, extractDirectory(files.get(i)),
+                                null)
+                        : CryptrPipeline.decryptAndExtractWithSession(filePaths[i], session,
+                                extractDirectory(files.get(i)), null));
+            }
+
+            List<CryptrJob> jobs = new ArrayList<>();
+            for (String filePath : filePaths) {
+                if (useKey) {
+                    jobs.add(CryptrJob.decryptWithKey(filePath, filePath, keyFile));
+                }
+                else {
+                    jobs.add(CryptrJob.cipherWithSession(filePath, filePath, session, CryptrCipher.Mode.DECRYPT));
+                }
+            }
+            return runBatch(jobs);
+        }
+    }
+
+    /**
+     * Decrypts and extracts encrypted zip archives one after another, each in one pass without
+     * storing the plain archive.
+     *
+     * @param files - list of archives to extract
+     * @param extraction - extracts the archive at an index, returning a CryptrPipeline response
+     * @return -3 if the thread was interrupted
+     *         -2 on other failure
+     *         -1 if JRE does not support essential operations
+     *         0 on success
+     *         else returns the index of the archive which failed to extract
+     */
+    private static int extractArchives(List<File> files, IntUnaryOperator extraction) {
+        for (int i = 0; i < files.size(); i++) {
+            int response = extraction.applyAsInt(i);
+            if (response > 0) {
+                return i;
+            }
+            if (response < 0) {
+                return response;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the directory to extract an archive into, named after the archive without its
+     *         extension
+     */
+    private static String extractDirectory(File archive) {
+        String name = archive.getName();
+        int extension = name.lastIndexOf('.');
+        name = extension > 0 ? name.substring(0, extension) : name + "-extracted";
+        return new File(archive.getAbsoluteFile().getParentFile(), name).getPath();
+    }
+
+    /**
+     * Runs a batch of jobs concurrently which do not store keys.
+     *
+     * @see #runBatch(List, CryptrKeyring)
+     */
+    private static int runBatch(List<CryptrJob> jobs) {
+        try {
+            return runBatch(jobs, null);
+        }
+        catch (IOException | GeneralSecurityException e) {
+            // only saving a keyring throws
+            return -2;
+        }
+    }
+
+    /**
+     * Runs a batch of jobs concurrently. The files are replaced together once all jobs have
+     * finished, after the keyring holding their keys has been saved, so a crash never leaves
+     * a file encrypted with a key which was lost. Interrupting the thread cancels the batch,
+     * but the files which were already processed are still replaced.
+     *
+     * @param jobs - jobs to run
+     * @param keyring - keyring the jobs store keys in, or null
+     * @return -3 if the thread was interrupted
+     *         -2 on other failure
+     *         -1 if JRE does not support essential operations
+     *         0 on success
+     *         else returns the index of the first file which failed
+     * @throws IOException on error saving the keyring
+     * @throws GeneralSecurityException if the keyring cannot be saved with its master key
+     */
+    private static int runBatch(List<CryptrJob> jobs, CryptrKeyring keyring)
+            throws IOException, GeneralSecurityException {
+        List<CryptrBatch.Result> results;
+
+        try (CryptrBatch batch = new CryptrBatch(); CryptrSyncGroup group = new CryptrSyncGroup()) {
+            results = batch.run(jobs, result -> { }, group);
+
+            // the interrupt of a cancel is held back, since the finished files still need their keys
+            boolean interrupted = Thread.interrupted();
+            try {
+                if (keyring != null) {
+                    keyring.save();
+                }
+                results = CryptrBatch.commit(results, group);
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            int response = results.get(i).response;
             if (response > 0) {
                 return i;
             }
@@ -306,6 +508,90 @@ public class CryptrGUI extends Application {
         return 0;
     }
 
+    /**
+     * Runs an operation in the background, collecting metrics for it while reporting the
+     * bytes processed across all of its files as progress and the result of each file as its
+     * message. Cancelling the task interrupts the operation, which stops at its next block.
+     */
+    private static class OperationTask extends Task<Integer> {
+
+        private final Callable<Integer> operation;
+        private final IntConsumer onFinished;
+        private final long total;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private final CryptrMetrics metrics = new CryptrMetrics() {
+
+            @Override
+            public void bytesProcessed(String file, long count) {
+                super.bytesProcessed(file, count);
+                // a stream without a file, such as an archive being encrypted, repeats bytes of the files
+                if (file != null) {
+                    updateProgress(processed.addAndGet(count), total);
+                }
+            }
+
+            @Override
+            public void fileFinished(String file, long count, long nanos, int response) {
+                super.fileFinished(file, count, nanos, response);
+                if (file != null) {
+                    String name = new File(file).getName();
+                    updateMessage(response == 0 ? name + ": done" : name + ": failed (" + response + ")");
+                }
+            }
+
+        };
+
+        /**
+         * @param files - files the operation processes
+         * @param operation - operation to run
+         * @param onFinished - called on the JavaFX thread with the response of the operation once
+         *                     it has stopped, which is after any cancel has taken effect
+         */
+        OperationTask(List<File> files, Callable<Integer> operation, IntConsumer onFinished) {
+            long total = 0;
+            for (File file : files) {
+                total += file.length();
+            }
+
+            this.operation = operation;
+            this.onFinished = onFinished;
+            this.total = Math.max(1, total);
+            updateProgress(0, this.total);
+        }
+
+        @Override
+        protected Integer call() throws Exception {
+            int response = -2;
+
+            if (!started.compareAndSet(false, true)) {
+                return -3;
+            }
+
+            CryptrCipher.setListener(metrics);
+            CryptrCompressor.setListener(metrics);
+            try {
+                response = operation.call();
+                return response;
+            }
+            finally {
+                CryptrCipher.setListener(null);
+                CryptrCompressor.setListener(null);
+                int result = response;
+                Platform.runLater(() -> onFinished.accept(result));
+            }
+        }
+
+        @Override
+        protected void cancelled() {
+            // a task cancelled before it started never calls back from call()
+            if (started.compareAndSet(false, true)) {
+                onFinished.accept(-3);
+            }
+        }
+
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
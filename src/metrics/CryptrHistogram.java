@@ -0,0 +1,117 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * CryptrHistogram counts non-negative values in buckets which grow with the value, so any
+ * range of values is covered in a fixed amount of memory while percentiles stay within 12.5%
+ * of the true value. Recording is lock-free and safe from any thread.
+ */
+public class CryptrHistogram {
+
+    // every power of two is split into 2^SUB_BITS linear buckets
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of all recorded values
+     */
+    public long sum() {
+        return sum.get();
+    }
+
+    /**
+     * @return the largest recorded value, or 0 if none were recorded
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if none were recorded
+     */
+    public double mean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket it falls into.
+     *
+     * @param percentile - percentile between 0 and 100
+     * @return the estimated value, or 0 if no values were recorded
+     */
+    public long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_COUNT + sub) << (exponent - SUB_BITS)) + width - 1;
+    }
+
+}
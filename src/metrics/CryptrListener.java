@@ -0,0 +1,58 @@
+package metrics;
+
+/**
+ * CryptrListener receives progress and timings from CryptrCipher and CryptrCompressor as they
+ * work through files. Every method does nothing by default, so a listener only overrides the
+ * events it needs.
+ *
+ * Files may be processed on many threads at once, so implementations must be thread-safe and
+ * should return quickly, since they are called on the threads doing the work.
+ */
+public interface CryptrListener {
+
+    /**
+     * A listener which ignores every event.
+     */
+    CryptrListener NONE = new CryptrListener() {};
+
+    /**
+     * Called when a file starts being processed.
+     *
+     * @param file - path or name of the file
+     * @param size - size of the file in bytes, or -1 if it is not known
+     */
+    default void fileStarted(String file, long size) {
+    }
+
+    /**
+     * Called each time a block of a file has been processed.
+     *
+     * @param file - path or name of the file
+     * @param bytes - number of input bytes processed since the last call
+     */
+    default void bytesProcessed(String file, long bytes) {
+    }
+
+    /**
+     * Called with the time spent in one stage of processing a file. A stage may be reported
+     * many times for the same file, once for every block.
+     *
+     * @param file - path or name of the file
+     * @param stage - stage which took the time
+     * @param nanos - time spent in the stage, in nanoseconds
+     */
+    default void stageTime(String file, Stage stage, long nanos) {
+    }
+
+    /**
+     * Called when a file has been processed, whether or not it succeeded.
+     *
+     * @param file - path or name of the file
+     * @param bytes - number of input bytes processed
+     * @param nanos - time taken for the whole file, in nanoseconds
+     * @param response - return code of the operation, which is 0 on success
+     */
+    default void fileFinished(String file, long bytes, long nanos, int response) {
+    }
+
+}
@@ -0,0 +1,151 @@
+package metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CryptrMetrics is a listener which collects counters and histograms over every file it is
+ * told about: files and bytes processed, failures, the time per file and the time spent in
+ * each stage. snapshot() exports everything as flat named values for monitoring systems.
+ */
+public class CryptrMetrics implements CryptrListener {
+
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    private static final double BYTES_PER_MB = 1024.0 * 1024.0;
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final CryptrHistogram fileTime = new CryptrHistogram();
+    private final CryptrHistogram fileBytes = new CryptrHistogram();
+    private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+
+    public CryptrMetrics() {
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void bytesProcessed(String file, long count) {
+        bytes.add(count);
+    }
+
+    @Override
+    public void stageTime(String file, Stage stage, long nanos) {
+        stageNanos[stage.ordinal()].add(nanos);
+    }
+
+    @Override
+    public void fileFinished(String file, long count, long nanos, int response) {
+        files.increment();
+        if (response != 0) {
+            failures.increment();
+        }
+        fileTime.record(nanos);
+        fileBytes.record(count);
+    }
+
+    /**
+     * @return the number of files processed, including failures
+     */
+    public long files() {
+        return files.sum();
+    }
+
+    /**
+     * @return the number of files which failed
+     */
+    public long failures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the number of input bytes processed
+     */
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return the histogram of the time taken per file, in nanoseconds
+     */
+    public CryptrHistogram fileTime() {
+        return fileTime;
+    }
+
+    /**
+     * @return the histogram of input bytes per file
+     */
+    public CryptrHistogram fileBytes() {
+        return fileBytes;
+    }
+
+    /**
+     * @return the total time spent in a stage over all files, in nanoseconds
+     */
+    public long stageNanos(Stage stage) {
+        return stageNanos[stage.ordinal()].sum();
+    }
+
+    /**
+     * @return the average throughput of a single file in MB/s, which is the total size of
+     *         all files over the total time spent on them
+     */
+    public double throughput() {
+        long nanos = fileTime.sum();
+        return nanos == 0 ? 0 : fileBytes.sum() / BYTES_PER_MB / (nanos / 1e9);
+    }
+
+    /**
+     * Exports the current values under stable names, with times in milliseconds.
+     *
+     * @return the values, in a fixed order
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("files", files());
+        values.put("failures", failures());
+        values.put("bytes", bytes());
+        values.put("throughput.mb_per_s", throughput());
+        values.put("file.time.mean.ms", fileTime.mean() / NANOS_PER_MILLI);
+        values.put("file.time.p50.ms", fileTime.percentile(50) / NANOS_PER_MILLI);
+        values.put("file.time.p99.ms", fileTime.percentile(99) / NANOS_PER_MILLI);
+        values.put("file.time.max.ms", fileTime.max() / NANOS_PER_MILLI);
+        for (Stage stage : Stage.values()) {
+            values.put("stage." + stage.name().toLowerCase(Locale.ROOT) + ".ms", stageNanos(stage) / NANOS_PER_MILLI);
+        }
+        return values;
+    }
+
+    /**
+     * Clears all counters and histograms.
+     */
+    public void reset() {
+        files.reset();
+        failures.reset();
+        bytes.reset();
+        fileTime.reset();
+        fileBytes.reset();
+        for (LongAdder adder : stageNanos) {
+            adder.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Number> value : snapshot().entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            Number number = value.getValue();
+            builder.append(value.getKey()).append('=').append(number instanceof Double
+                    ? String.format(Locale.ROOT, "%.2f", number.doubleValue()) : number.toString());
+        }
+        return builder.toString();
+    }
+
+}
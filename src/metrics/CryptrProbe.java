@@ -0,0 +1,76 @@
+package metrics;
+
+/**
+ * CryptrProbe reports the events of processing a single file to a listener. It keeps the
+ * file name, start time and byte count, so the code doing the work only needs to mark where
+ * each stage ends.
+ *
+ * A probe is used by one thread at a time.
+ */
+public class CryptrProbe {
+
+    private final CryptrListener listener;
+    private final String file;
+    private final long start;
+    private long bytes = 0;
+
+    private CryptrProbe(CryptrListener listener, String file) {
+        this.listener = listener;
+        this.file = file;
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Starts reporting on a file.
+     *
+     * @param listener - listener to report to
+     * @param file - path or name of the file
+     * @param size - size of the file in bytes, or -1 if it is not known
+     * @return the probe for the file
+     */
+    public static CryptrProbe start(CryptrListener listener, String file, long size) {
+        CryptrProbe probe = new CryptrProbe(listener, file);
+        listener.fileStarted(file, size);
+        return probe;
+    }
+
+    /**
+     * @return the current time, to pass to stage() once the stage has ended
+     */
+    public long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Reports the time spent in a stage which began at since.
+     *
+     * @param stage - stage which has just ended
+     * @param since - time the stage began, from now() or a previous stage()
+     * @return the current time, which is also when the next stage begins
+     */
+    public long stage(Stage stage, long since) {
+        long now = System.nanoTime();
+        listener.stageTime(file, stage, now - since);
+        return now;
+    }
+
+    /**
+     * Reports that a number of input bytes were processed.
+     */
+    public void bytes(long count) {
+        bytes += count;
+        listener.bytesProcessed(file, count);
+    }
+
+    /**
+     * Reports that the file has been processed.
+     *
+     * @param response - return code of the operation
+     * @return response, so a probe can be finished in a return statement
+     */
+    public int finish(int response) {
+        listener.fileFinished(file, bytes, System.nanoTime() - start, response);
+        return response;
+    }
+
+}
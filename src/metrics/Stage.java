@@ -0,0 +1,19 @@
+package metrics;
+
+/**
+ * Stage is a step of encrypting, compressing or extracting a file which is timed separately.
+ */
+public enum Stage {
+    // deriving or loading the key and setting up the cipher
+    KDF,
+    // reading the input file
+    READ,
+    // encrypting or decrypting
+    CIPHER,
+    // compressing, including passing the compressed data on to the next stage
+    DEFLATE,
+    // decompressing
+    INFLATE,
+    // writing the output
+    WRITE
+}
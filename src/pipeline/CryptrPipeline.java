@@ -0,0 +1,362 @@
+package pipeline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.NoSuchPaddingException;
+
+import cipher.CryptrCipher;
+import cipher.CryptrJob;
+import cipher.CryptrKey;
+import cipher.CryptrKeyring;
+import cipher.CryptrOutputFile;
+import cipher.CryptrSession;
+import compressor.CryptrCompressor;
+
+/**
+ * CryptrPipeline chains compression and encryption into a single pass. The zip archive is
+ * streamed straight into the cipher and on to the output file, so the files are read once,
+ * the encrypted archive is written once, and the plaintext archive never touches the disk.
+ * Entries are compressed in parallel with the codecs of a CryptrCompressor.Profile, and have
+ * their sizes in their local headers, so they can be decompressed in parallel again when the
+ * archive is extracted.
+ *
+ * The output is the same as compressing with CryptrCompressor and then encrypting the archive
+ * with CryptrCipher, and is decrypted with CryptrCipher as usual. The reverse pipeline
+ * decrypts an archive and extracts it in a single pass, again without storing the plaintext
+ * archive.
+ */
+public class CryptrPipeline {
+
+    /**
+     * Represents the encryption stage at the end of a pipeline.
+     */
+    private static interface Encryption {
+        OutputStream wrap(OutputStream out) throws GeneralSecurityException;
+    }
+
+    /**
+     * Represents the decryption stage at the start of a pipeline.
+     */
+    private static interface Decryption {
+        InputStream open(String encryptedFile) throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * Compresses multiple files into a zip archive encrypted with key-based AES-256, with the
+     * balanced profile.
+     *
+     * @see #compressAndEncryptWithKey(String[], String, String, CryptrCompressor.Profile)
+     */
+    public static int compressAndEncryptWithKey(String[] files, String outputFile, String keyFile) {
+        return compressAndEncryptWithKey(files, outputFile, keyFile, CryptrCompressor.Profile.BALANCED);
+    }
+
+    /**
+     * Compresses multiple files into a zip archive encrypted with key-based AES-256.
+     *
+     * @param files - list of file paths for each file to compress
+     * @param outputFile - path to store the encrypted archive
+     * @param keyFile - path to store the key file
+     * @param profile - profile to pick the codec of each entry with
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading an input file
+     *          2 on error writing output file
+     *          3 on error writing key file
+     */
+    public static int compressAndEncryptWithKey(String[] files, String outputFile, String keyFile,
+            CryptrCompressor.Profile profile) {
+        CryptrKey key;
+
+        try {
+            key = CryptrCipher.generateKey();
+        }
+        catch (NoSuchAlgorithmException e) {
+            return -1;
+        }
+
+        return CryptrCipher.withKeyFile(key, keyFile,
+                () -> compressAndEncrypt(files, outputFile, profile, out -> CryptrCipher.encryptingStream(out, key)));
+    }
+
+    /**
+     * Compresses multiple files into a zip archive encrypted using password-based AES-256 with
+     * the password of a session, with the balanced profile.
+     *
+     * @see #compressAndEncryptWithSession(String[], String, CryptrSession, CryptrCompressor.Profile)
+     */
+    public static int compressAndEncryptWithSession(String[] files, String outputFile, CryptrSession session) {
+        return compressAndEncryptWithSession(files, outputFile, session, CryptrCompressor.Profile.BALANCED);
+    }
+
+    /**
+     * Compresses multiple files into a zip archive encrypted using password-based AES-256 with
+     * the password of a session.
+     *
+     * @param files - list of file paths for each file to compress
+     * @param outputFile - path to store the encrypted archive
+     * @param session - session holding the password
+     * @param profile - profile to pick the codec of each entry with
+     * @return -3 if the thread was interrupted
+     *         -2 on failure
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading an input file
+     *          2 on error writing output file
+     */
+    public static int compressAndEncryptWithSession(String[] files, String outputFile, CryptrSession session,
+            CryptrCompressor.Profile profile) {
+        return compressAndEncrypt(files, outputFile, profile, out -> CryptrCipher.encryptingStream(out, session));
+    }
+
+    /**
+     * Creates a job which compresses multiple files into a zip archive encrypted with
+     * key-based AES-256, to run in a CryptrBatch next to other jobs. The job has no single
+     * input file.
+     *
+     * @see #compressAndEncryptWithKey(String[], String, String)
+     */
+    public static CryptrJob compressAndEncryptJob(String[] files, String outputFile, String keyFile) {
+        return CryptrJob.of(null, outputFile, CryptrCompressor.memory(files),
+                (in, out) -> compressAndEncryptWithKey(files, out, keyFile));
+    }
+
+    /**
+     * Creates a job which compresses multiple files into a zip archive encrypted using
+     * password-based AES-256 with the password of a session, to run in a CryptrBatch next to
+     * other jobs. The job has no single input file.
+     *
+     * @see #compressAndEncryptWithSession(String[], String, CryptrSession)
+     */
+    public static CryptrJob compressAndEncryptJob(String[] files, String outputFile, CryptrSession session) {
+        return CryptrJob.of(null, outputFile, CryptrCompressor.memory(files),
+                (in, out) -> compressAndEncryptWithSession(files, out, session));
+    }
+
+    private static int compressAndEncrypt(String[] files, String outputFile, CryptrCompressor.Profile profile,
+            Encryption encryption) {
+        // large deflated entries wait in temporary files next to the output until they are written
+        Path tempDir = Paths.get(outputFile).toAbsolutePath().getParent();
+
+        try (CryptrOutputFile output = CryptrOutputFile.open(outputFile)) {
+            int response;
+
+            try (OutputStream out = encryption.wrap(output.stream())) {
+                response = CryptrCompressor.compressParallel(files, out, ForkJoinPool.commonPool(), tempDir, profile,
+                        null);
+            }
+            catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                return -1;
+            }
+            catch (GeneralSecurityException e) {
+                return -2;
+            }
+
+            if (response == -3) {
+                return -3;
+            }
+            if (response == -2) {
+                return 2;
+            }
+            if (response != -1) {
+                return 1;
+            }
+
+            output.commit();
+            return 0;
+        }
+        catch (IOException e) {
+            // an interrupted channel fails with an IOException too
+            return Thread.currentThread().isInterrupted() ? -3 : 2;
+        }
+    }
+
+    /**
+     * Decrypts a zip archive encrypted with key-based AES-256 and extracts it into a directory
+     * on the common ForkJoinPool.
+     *
+     * @see #decryptAndExtractWithKey(String, String, String, Set, ExecutorService)
+     */
+    public static int decryptAndExtractWithKey(String encryptedFile, String keyFile, String outputDir,
+            Set<String> names) {
+        return decryptAndExtractWithKey(encryptedFile, keyFile, outputDir, names, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decrypts a zip archive encrypted with key-based AES-256 and extracts it into a directory
+     * in a single pass. The archive is decrypted as it is read and entries are extracted in
+     * parallel, so the plaintext archive is never stored.
+     *
+     * @param encryptedFile - path of the encrypted archive
+     * @param keyFile - path of the key file generated during encryption
+     * @param outputDir - directory to extract the entries into, created if needed
+     * @param names - names of the entries to extract, or null to extract all of them
+     * @param executor - executor to inflate entries on
+     * @return -3 if the thread was interrupted
+     *         -2 on failure, including a wrong key or a damaged archive
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading the encrypted archive
+     *          2 on error writing an extracted file
+     *          3 on error reading key file
+     */
+    public static int decryptAndExtractWithKey(String encryptedFile, String keyFile, String outputDir,
+            Set<String> names, ExecutorService executor) {
+        CryptrKey key;
+
+        if (!Files.isReadable(Paths.get(encryptedFile))) {
+            return 1;
+        }
+
+        try {
+            key = CryptrCipher.readKeyFile(keyFile);
+        }
+        catch (ClassNotFoundException e) {
+            return -2;
+        }
+        catch (IOException e) {
+            return 3;
+        }
+
+        return decryptAndExtract(encryptedFile, outputDir, names, executor,
+                file -> CryptrCipher.decryptingStream(file, key));
+    }
+
+    /**
+     * Decrypts a zip archive encrypted using password-based AES-256 with the password of a
+     * session and extracts it into a directory on the common ForkJoinPool.
+     *
+     * @see #decryptAndExtractWithSession(String, CryptrSession, String, Set, ExecutorService)
+     */
+    public static int decryptAndExtractWithSession(String encryptedFile, CryptrSession session, String outputDir,
+            Set<String> names) {
+        return decryptAndExtractWithSession(encryptedFile, session, outputDir, names, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decrypts a zip archive encrypted using password-based AES-256 with the password of a
+     * session and extracts it into a directory in a single pass.
+     *
+     * @param encryptedFile - path of the encrypted archive
+     * @param session - session holding the password
+     * @param outputDir - directory to extract the entries into, created if needed
+     * @param names - names of the entries to extract, or null to extract all of them
+     * @param executor - executor to inflate entries on
+     * @return -3 if the thread was interrupted
+     *         -2 on failure, including a wrong password or a damaged archive
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading the encrypted archive
+     *          2 on error writing an extracted file
+     */
+    public static int decryptAndExtractWithSession(String encryptedFile, CryptrSession session, String outputDir,
+            Set<String> names, ExecutorService executor) {
+        if (!Files.isReadable(Paths.get(encryptedFile))) {
+            return 1;
+        }
+        return decryptAndExtract(encryptedFile, outputDir, names, executor,
+                file -> CryptrCipher.decryptingStream(file, session));
+    }
+
+    /**
+     * Decrypts a zip archive encrypted with a key from a keyring and extracts it into a
+     * directory on the common ForkJoinPool.
+     *
+     * @see #decryptAndExtractWithKeyring(String, CryptrKeyring, String, String, Set, ExecutorService)
+     */
+    public static int decryptAndExtractWithKeyring(String encryptedFile, CryptrKeyring keyring, String fileId,
+            String outputDir, Set<String> names) {
+        return decryptAndExtractWithKeyring(encryptedFile, keyring, fileId, outputDir, names,
+                ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decrypts a zip archive encrypted with a key from a keyring and extracts it into a
+     * directory in a single pass.
+     *
+     * @param encryptedFile - path of the encrypted archive
+     * @param keyring - keyring the key was stored in during encryption
+     * @param fileId - ID the key was stored under
+     * @param outputDir - directory to extract the entries into, created if needed
+     * @param names - names of the entries to extract, or null to extract all of them
+     * @param executor - executor to inflate entries on
+     * @return -3 if the thread was interrupted
+     *         -2 on failure, including a damaged archive
+     *         -1 if JRE does not support essential operations
+     *          0 on success
+     *          1 on error reading the encrypted archive
+     *          2 on error writing an extracted file
+     *          3 if the keyring holds no key for the archive
+     */
+    public static int decryptAndExtractWithKeyring(String encryptedFile, CryptrKeyring keyring, String fileId,
+            String outputDir, Set<String> names, ExecutorService executor) {
+        CryptrKey key;
+
+        if (!Files.isReadable(Paths.get(encryptedFile))) {
+            return 1;
+        }
+
+        try {
+            key = keyring.get(fileId);
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return -1;
+        }
+        catch (GeneralSecurityException e) {
+            return -2;
+        }
+        if (key == null) {
+            return 3;
+        }
+
+        return decryptAndExtract(encryptedFile, outputDir, names, executor,
+                file -> CryptrCipher.decryptingStream(file, key));
+    }
+
+    private static int decryptAndExtract(String encryptedFile, String outputDir, Set<String> names,
+            ExecutorService executor, Decryption decryption) {
+        InputStream in;
+
+        try {
+            in = decryption.open(encryptedFile);
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return -1;
+        }
+        catch (GeneralSecurityException e) {
+            return -2;
+        }
+        catch (IOException e) {
+            return 1;
+        }
+
+        int response = -2;
+        try (InputStream input = in) {
+            response = CryptrCompressor.extract(input, outputDir, names, executor);
+        }
+        catch (IOException e) {
+            // failing to close a file which was only read does not lose anything
+        }
+
+        if (response == -3 || response == -2) {
+            return response;
+        }
+        if (response != -1) {
+            return 2;
+        }
+        return 0;
+    }
+
+}